@@ -0,0 +1,51 @@
+package nifi.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes the results as JSON, so that they can be
+ * compared between releases.
+ * <p>
+ * Usage: {@code java -jar target/benchmarks.jar [JMH options]}. Unless
+ * {@code -rf} or {@code -rff} is given, results are written to
+ * {@code jmh-result.json}. For example, {@code -p algorithm=LBPH} limits
+ * the runs to one algorithm.
+ */
+public final class BenchmarkMain {
+
+    /** Default result file. */
+    private static final String RESULT_FILE = "jmh-result.json";
+
+    /**
+     * Constructor.
+     */
+    private BenchmarkMain() {
+    }
+
+    /**
+     * Main method.
+     *
+     * @param aArgs JMH command line options
+     * @throws CommandLineOptionException exception
+     * @throws RunnerException exception
+     */
+    public static void main(final String[] aArgs)
+            throws CommandLineOptionException, RunnerException {
+
+        CommandLineOptions cmdOptions = new CommandLineOptions(aArgs);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions);
+        if (!cmdOptions.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cmdOptions.getResult().hasValue()) {
+            options.result(RESULT_FILE);
+        }
+        new Runner(options.build()).run();
+    }
+}
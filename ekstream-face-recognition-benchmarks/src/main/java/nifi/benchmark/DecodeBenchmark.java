@@ -0,0 +1,89 @@
+package nifi.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import nifi.FaceRecognitionProcessor;
+import nifi.FrameDecoder;
+import nifi.MatPool;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of a PNG video frame: the ImageIO, toFrame and convertToMat
+ * path against the native imdecode path of {@link FrameDecoder}, which
+ * decodes into pooled images.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    /** Encoded frame. */
+    private byte[] frame;
+
+    /** Converter for Frames and Mats. */
+    private OpenCVFrameConverter.ToMat converter;
+
+    /** Pool of decoded frames. */
+    private MatPool pool;
+
+    /** Native decoder. */
+    private FrameDecoder decoder;
+
+    /**
+     * Generates the frame.
+     */
+    @Setup
+    public void setUp() {
+        frame = SyntheticFaces.encode(SyntheticFaces.face(0, 0), ".png");
+        converter = new OpenCVFrameConverter.ToMat();
+        pool = new MatPool(1);
+        decoder = new FrameDecoder(pool);
+    }
+
+    /**
+     * Decodes through ImageIO, toFrame and convertToMat.
+     *
+     * @return decoded frame
+     * @throws IOException exception
+     */
+    @Benchmark
+    public Mat java2d() throws IOException {
+        Frame result = FaceRecognitionProcessor.toFrame(
+                ImageIO.read(new ByteArrayInputStream(frame)));
+        return converter.convertToMat(result);
+    }
+
+    /**
+     * Decodes natively with imdecode into a pooled image.
+     *
+     * @return number of rows of the decoded frame
+     * @throws IOException exception
+     */
+    @Benchmark
+    public int imdecode() throws IOException {
+        Mat result = decoder.decode(new ByteArrayInputStream(frame), frame.length);
+        int rows = result.rows();
+        pool.release(result);
+        return rows;
+    }
+}
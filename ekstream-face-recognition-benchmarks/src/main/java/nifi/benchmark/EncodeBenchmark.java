@@ -0,0 +1,58 @@
+package nifi.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import nifi.FaceRecognitionProcessor;
+
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PNG encoding of a frame with {@link FaceRecognitionProcessor#toByteArray(Frame)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+    /** Frame to encode. */
+    private Frame frame;
+
+    /**
+     * Generates the frame.
+     *
+     * @throws IOException exception
+     */
+    @Setup
+    public void setUp() throws IOException {
+        byte[] png = SyntheticFaces.encode(SyntheticFaces.face(0, 0), ".png");
+        frame = FaceRecognitionProcessor.toFrame(ImageIO.read(new ByteArrayInputStream(png)));
+    }
+
+    /**
+     * Encodes the frame as PNG.
+     *
+     * @return encoded frame
+     * @throws IOException exception
+     */
+    @Benchmark
+    public byte[] toByteArray() throws IOException {
+        return FaceRecognitionProcessor.toByteArray(frame);
+    }
+}
@@ -0,0 +1,193 @@
+package nifi.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import nifi.GallerySettings;
+import nifi.HnswIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Search latency of an {@link HnswIndex} against the exact scan over
+ * clustered vectors standing for the Eigen or Fisher projections of a
+ * gallery, one cluster per identity. Latencies are sampled, so JMH reports
+ * their percentiles, p99 included; the recall@1 of the index, the share of
+ * queries whose nearest vector it finds, is printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HnswBenchmark {
+
+    /** Number of dimensions of the subspace. */
+    private static final int DIMENSIONS = 64;
+
+    /** Number of vectors per identity. */
+    private static final int IMAGES_PER_IDENTITY = 10;
+
+    /** Number of queries, cycled through by the benchmarks. */
+    private static final int QUERIES = 1000;
+
+    /** Number of vectors in the gallery. */
+    @Param({"10000", "100000"})
+    private int size;
+
+    /** Maximum number of neighbours of a node. */
+    @Param({"16"})
+    private int m;
+
+    /** Beam width of a search. */
+    @Param({"16", "64", "256"})
+    private int efSearch;
+
+    /** Gallery vectors, one after the other. */
+    private float[] vectors;
+
+    /** Queries, one after the other. */
+    private float[] queries;
+
+    /** Index over the gallery. */
+    private HnswIndex index;
+
+    /** Neighbours found by the index. */
+    private int[] ids;
+
+    /** Distances of the neighbours found by the index. */
+    private float[] distances;
+
+    /** Current query. */
+    private final float[] query = new float[DIMENSIONS];
+
+    /** Next query. */
+    private int next;
+
+    /**
+     * Generates the gallery and the queries, builds the index and measures
+     * its recall.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        Random random = new Random(size);
+        float[] centers = new float[size / IMAGES_PER_IDENTITY * DIMENSIONS];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = (float) random.nextGaussian();
+        }
+        vectors = new float[size * DIMENSIONS];
+        for (int i = 0; i < size; i++) {
+            sample(centers, i / IMAGES_PER_IDENTITY, random, vectors, i);
+        }
+        queries = new float[QUERIES * DIMENSIONS];
+        for (int i = 0; i < QUERIES; i++) {
+            sample(centers, random.nextInt(size / IMAGES_PER_IDENTITY), random, queries, i);
+        }
+
+        long start = System.currentTimeMillis();
+        index = HnswIndex.build(vectors, DIMENSIONS, m, GallerySettings.HNSW_EF_CONSTRUCTION);
+        long buildTime = System.currentTimeMillis() - start;
+        ids = new int[efSearch];
+        distances = new float[efSearch];
+
+        int found = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            nextQuery();
+            if (index.search(query, efSearch, ids, distances) > 0 && ids[0] == exact(query)) {
+                found++;
+            }
+        }
+        System.out.println("size=" + size + " m=" + m + " efSearch=" + efSearch
+                + " build=" + buildTime + " ms recall@1=" + (double) found / QUERIES);
+    }
+
+    /**
+     * Searches the nearest vector with the index.
+     *
+     * @return nearest vector
+     */
+    @Benchmark
+    public int hnsw() {
+        index.search(nextQuery(), efSearch, ids, distances);
+        return ids[0];
+    }
+
+    /**
+     * Searches the nearest vector by comparing the query with every vector.
+     *
+     * @return nearest vector
+     */
+    @Benchmark
+    public int exact() {
+        return exact(nextQuery());
+    }
+
+    /**
+     * Returns the next query.
+     *
+     * @return query
+     */
+    private float[] nextQuery() {
+
+        System.arraycopy(queries, next * DIMENSIONS, query, 0, DIMENSIONS);
+        next = (next + 1) % QUERIES;
+        return query;
+    }
+
+    /**
+     * Searches the nearest vector of a query by comparing it with every
+     * vector.
+     *
+     * @param aQuery query
+     * @return nearest vector
+     */
+    private int exact(final float[] aQuery) {
+
+        int result = -1;
+        float best = Float.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            float distance = 0;
+            int offset = i * DIMENSIONS;
+            for (int j = 0; j < DIMENSIONS; j++) {
+                float diff = vectors[offset + j] - aQuery[j];
+                distance += diff * diff;
+            }
+            if (distance < best) {
+                best = distance;
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes a vector of an identity: the center of its cluster plus noise.
+     *
+     * @param aCenters cluster centers
+     * @param aIdentity identity
+     * @param aRandom random generator
+     * @param aVectors vectors
+     * @param aIndex index of the vector
+     */
+    private static void sample(final float[] aCenters, final int aIdentity, final Random aRandom,
+            final float[] aVectors, final int aIndex) {
+
+        for (int j = 0; j < DIMENSIONS; j++) {
+            aVectors[aIndex * DIMENSIONS + j] = aCenters[aIdentity * DIMENSIONS + j]
+                    + 0.3f * (float) aRandom.nextGaussian();
+        }
+    }
+}
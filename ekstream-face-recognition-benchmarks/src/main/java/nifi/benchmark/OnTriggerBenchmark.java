@@ -0,0 +1,131 @@
+package nifi.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nifi.FaceRecognitionProcessor;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end recognition of frames through the processor's onTrigger,
+ * driven by the NiFi mock framework. Results are per frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OnTriggerBenchmark {
+
+    /** Number of frames recognised per benchmark invocation. */
+    private static final int FRAMES = 64;
+
+    /** Maximum time to wait for the background training, in milliseconds. */
+    private static final long TRAINING_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    /** Face recognition algorithm. */
+    @Param({"Fisher", "Eigen", "LBPH", "JavaFisher", "JavaEigen", "JavaLBPH"})
+    private String algorithm;
+
+    /** Number of frames processed per onTrigger. */
+    @Param({"1", "16", "64"})
+    private int batchSize;
+
+    /** Number of concurrent tasks. */
+    @Param({"1", "4"})
+    private int concurrentTasks;
+
+    /** Training set folder. */
+    private File trainingSet;
+
+    /** Encoded frames. */
+    private byte[][] frames;
+
+    /** Test runner. */
+    private TestRunner runner;
+
+    /**
+     * Generates the training set and frames, and waits for the processor
+     * to be trained.
+     *
+     * @throws IOException exception
+     * @throws InterruptedException exception
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+
+        trainingSet = SyntheticFaces.trainingSet(50, 10);
+        frames = new byte[FRAMES][];
+        for (int i = 0; i < FRAMES; i++) {
+            frames[i] = SyntheticFaces.encode(SyntheticFaces.face(i % 50, 10 + i), ".png");
+        }
+
+        runner = TestRunners.newTestRunner(FaceRecognitionProcessor.class);
+        runner.setProperty(FaceRecognitionProcessor.TRAINING_SET, trainingSet.getPath());
+        runner.setProperty(FaceRecognitionProcessor.FACE_RECOGNIZER, algorithm);
+        runner.setProperty(FaceRecognitionProcessor.SAVE_IMAGES, "false");
+        runner.setProperty(FaceRecognitionProcessor.BATCH_SIZE, String.valueOf(batchSize));
+        runner.setThreadCount(concurrentTasks);
+
+        // the processor yields until the background training is complete
+        runner.enqueue(frames[0]);
+        long deadline = System.currentTimeMillis() + TRAINING_TIMEOUT;
+        boolean initialize = true;
+        while (!runner.isQueueEmpty()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Training did not complete in time.");
+            }
+            runner.run(1, false, initialize);
+            initialize = false;
+            Thread.sleep(10);
+        }
+        runner.clearTransferState();
+    }
+
+    /**
+     * Stops the processor and deletes the training set.
+     *
+     * @throws IOException exception
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        runner.run(1, true, false);
+        SyntheticFaces.delete(trainingSet);
+    }
+
+    /**
+     * Recognises a batch of frames.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void onTrigger() {
+
+        for (byte[] frame : frames) {
+            runner.enqueue(frame);
+        }
+        runner.run((FRAMES + batchSize - 1) / batchSize, false, false);
+        // with concurrent tasks a trigger may find the queue already drained
+        while (!runner.isQueueEmpty()) {
+            runner.run(1, false, false);
+        }
+        runner.clearTransferState();
+    }
+}
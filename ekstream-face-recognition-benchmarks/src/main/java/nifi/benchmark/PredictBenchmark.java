@@ -0,0 +1,151 @@
+package nifi.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import nifi.FaceModel;
+import nifi.FaceRecognitionProcessor;
+import nifi.LbphEngine;
+import nifi.Prediction;
+import nifi.ShardedSearch;
+import nifi.SubspaceEngine;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Prediction latency per algorithm against the size of the training set,
+ * alone and with concurrent threads. Fisher, Eigen and LBPH predict through
+ * OpenCV; JavaFisher, JavaEigen and JavaLBPH through {@link SubspaceEngine}
+ * and {@link LbphEngine} with the same trained models, also with the scan
+ * split into shards searched in parallel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredictBenchmark {
+
+    /** Number of training images per identity. */
+    private static final int IMAGES_PER_IDENTITY = 10;
+
+    /** Number of shards of a sharded search. */
+    private static final int SHARDS = 4;
+
+    /** Face recognition algorithm. */
+    @Param({"Fisher", "Eigen", "LBPH", "JavaFisher", "JavaEigen", "JavaLBPH"})
+    private String algorithm;
+
+    /** Number of identities in the training set. */
+    @Param({"10", "50", "200"})
+    private int identities;
+
+    /** Training set folder. */
+    private File trainingSet;
+
+    /** Trained model. */
+    private FaceModel model;
+
+    /** Trained model searching in shards, the same model for OpenCV. */
+    private FaceModel shardedModel;
+
+    /** Pool searching the shards. */
+    private ForkJoinPool searchPool;
+
+    /** Face to recognise, not part of the training set. */
+    private Mat face;
+
+    /**
+     * Generates the training set and trains the model.
+     *
+     * @throws IOException exception
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        trainingSet = SyntheticFaces.trainingSet(identities, IMAGES_PER_IDENTITY);
+        model = new FaceModel(algorithm,
+                FaceRecognitionProcessor.train(trainingSet.getPath(), algorithm));
+        face = SyntheticFaces.face(identities / 2, IMAGES_PER_IDENTITY);
+
+        searchPool = new ForkJoinPool(SHARDS);
+        ShardedSearch sharding = new ShardedSearch(searchPool, SHARDS, 0);
+        shardedModel = model;
+        if (model.getGallery() instanceof LbphEngine) {
+            shardedModel = model.withGallery(
+                    ((LbphEngine) model.getGallery()).withSharding(sharding));
+        } else if (model.getGallery() instanceof SubspaceEngine) {
+            shardedModel = model.withGallery(
+                    ((SubspaceEngine) model.getGallery()).withSharding(sharding));
+        }
+    }
+
+    /**
+     * Deletes the training set.
+     *
+     * @throws IOException exception
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        searchPool.shutdown();
+        SyntheticFaces.delete(trainingSet);
+    }
+
+    /**
+     * Predicts the closest label.
+     *
+     * @return prediction
+     */
+    @Benchmark
+    public Prediction predict() {
+        return model.predict(face);
+    }
+
+    /**
+     * Predicts the closest label from four threads sharing the model.
+     *
+     * @return prediction
+     */
+    @Benchmark
+    @Threads(4)
+    public Prediction predictConcurrently() {
+        return model.predict(face);
+    }
+
+    /**
+     * Predicts the closest label, searching the gallery in shards.
+     *
+     * @return prediction
+     */
+    @Benchmark
+    public Prediction predictSharded() {
+        return shardedModel.predict(face);
+    }
+
+    /**
+     * Predicts the five closest labels.
+     *
+     * @return predictions
+     */
+    @Benchmark
+    public List<Prediction> predictTop5() {
+        return model.predict(face, 5);
+    }
+}
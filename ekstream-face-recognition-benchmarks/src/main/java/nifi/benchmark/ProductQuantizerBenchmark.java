@@ -0,0 +1,246 @@
+package nifi.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import nifi.ProductQuantizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Nearest-neighbour search over product quantization codes, an asymmetric
+ * scan followed by an exact re-ranking of the closest candidates, against
+ * the exact scan of the float vectors, over clustered vectors standing for
+ * the Eigen or Fisher projections of a gallery. The size of the codes
+ * against the vectors and the recall@1 of the quantized search are printed
+ * once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProductQuantizerBenchmark {
+
+    /** Number of dimensions of the subspace. */
+    private static final int DIMENSIONS = 64;
+
+    /** Number of vectors per identity. */
+    private static final int IMAGES_PER_IDENTITY = 10;
+
+    /** Number of queries, cycled through by the benchmarks. */
+    private static final int QUERIES = 1000;
+
+    /** Number of vectors in the gallery. */
+    @Param({"10000", "100000"})
+    private int size;
+
+    /** Number of subspaces, i.e. bytes per vector. */
+    @Param({"8", "16"})
+    private int subspaces;
+
+    /** Number of candidates re-ranked exactly. */
+    @Param({"64"})
+    private int rerank;
+
+    /** Gallery vectors, one after the other. */
+    private float[] vectors;
+
+    /** Queries, one after the other. */
+    private float[] queries;
+
+    /** Quantizer. */
+    private ProductQuantizer quantizer;
+
+    /** Codes of the gallery vectors. */
+    private byte[] codes;
+
+    /** Lookup table of the query. */
+    private float[] table;
+
+    /** Candidates of the quantized scan. */
+    private int[] candidates;
+
+    /** Approximate distances of the candidates. */
+    private float[] candidateDistances;
+
+    /** Current query. */
+    private final float[] query = new float[DIMENSIONS];
+
+    /** Next query. */
+    private int next;
+
+    /**
+     * Generates the gallery and the queries, quantizes the gallery and
+     * measures the recall of the quantized search.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        Random random = new Random(size);
+        float[] centers = new float[size / IMAGES_PER_IDENTITY * DIMENSIONS];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = (float) random.nextGaussian();
+        }
+        vectors = new float[size * DIMENSIONS];
+        for (int i = 0; i < size; i++) {
+            sample(centers, i / IMAGES_PER_IDENTITY, random, vectors, i);
+        }
+        queries = new float[QUERIES * DIMENSIONS];
+        for (int i = 0; i < QUERIES; i++) {
+            sample(centers, random.nextInt(size / IMAGES_PER_IDENTITY), random, queries, i);
+        }
+
+        quantizer = ProductQuantizer.train(vectors, DIMENSIONS, subspaces);
+        codes = quantizer.encode(vectors);
+        table = new float[quantizer.tableLength()];
+        candidates = new int[rerank];
+        candidateDistances = new float[rerank];
+
+        int found = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            nextQuery();
+            if (quantized() == exact()) {
+                found++;
+            }
+        }
+        next = 0;
+        System.out.println("size=" + size + " subspaces=" + subspaces + " rerank=" + rerank
+                + " codes=" + codes.length + " B vectors=" + 4L * vectors.length
+                + " B recall@1=" + (double) found / QUERIES);
+    }
+
+    /**
+     * Searches the nearest vector through the codes.
+     *
+     * @return nearest vector
+     */
+    @Benchmark
+    public int quantizedSearch() {
+        nextQuery();
+        return quantized();
+    }
+
+    /**
+     * Searches the nearest vector by comparing the query with every vector.
+     *
+     * @return nearest vector
+     */
+    @Benchmark
+    public int exactSearch() {
+        nextQuery();
+        return exact();
+    }
+
+    /**
+     * Moves to the next query.
+     */
+    private void nextQuery() {
+        System.arraycopy(queries, next * DIMENSIONS, query, 0, DIMENSIONS);
+        next = (next + 1) % QUERIES;
+    }
+
+    /**
+     * Searches the nearest vector of the query through the codes, then
+     * re-ranks the closest candidates exactly.
+     *
+     * @return nearest vector
+     */
+    private int quantized() {
+
+        quantizer.table(query, table);
+        int count = 0;
+        for (int n = 0; n < size; n++) {
+            float distance = quantizer.distance(table, codes, n);
+            if (count == rerank && distance >= candidateDistances[count - 1]) {
+                continue;
+            }
+            int i = count < rerank ? count++ : count - 1;
+            while (i > 0 && candidateDistances[i - 1] > distance) {
+                candidateDistances[i] = candidateDistances[i - 1];
+                candidates[i] = candidates[i - 1];
+                i--;
+            }
+            candidateDistances[i] = distance;
+            candidates[i] = n;
+        }
+
+        int result = -1;
+        float best = Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            float distance = distance(candidates[i]);
+            if (distance < best) {
+                best = distance;
+                result = candidates[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Searches the nearest vector of the query by comparing it with every
+     * vector.
+     *
+     * @return nearest vector
+     */
+    private int exact() {
+
+        int result = -1;
+        float best = Float.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            float distance = distance(i);
+            if (distance < best) {
+                best = distance;
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the squared distance between the query and a vector.
+     *
+     * @param aVector index of the vector
+     * @return squared distance
+     */
+    private float distance(final int aVector) {
+
+        float result = 0;
+        int offset = aVector * DIMENSIONS;
+        for (int j = 0; j < DIMENSIONS; j++) {
+            float diff = vectors[offset + j] - query[j];
+            result += diff * diff;
+        }
+        return result;
+    }
+
+    /**
+     * Writes a vector of an identity: the center of its cluster plus noise.
+     *
+     * @param aCenters cluster centers
+     * @param aIdentity identity
+     * @param aRandom random generator
+     * @param aVectors vectors
+     * @param aIndex index of the vector
+     */
+    private static void sample(final float[] aCenters, final int aIdentity, final Random aRandom,
+            final float[] aVectors, final int aIndex) {
+
+        for (int j = 0; j < DIMENSIONS; j++) {
+            aVectors[aIndex * DIMENSIONS + j] = aCenters[aIdentity * DIMENSIONS + j]
+                    + 0.3f * (float) aRandom.nextGaussian();
+        }
+    }
+}
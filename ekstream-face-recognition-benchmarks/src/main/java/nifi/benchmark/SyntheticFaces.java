@@ -0,0 +1,178 @@
+package nifi.benchmark;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_imgcodecs;
+
+/**
+ * Generator of synthetic grayscale faces, so that the benchmarks run
+ * offline and on a reproducible data set.
+ * <p>
+ * Every identity is a face with its own shape, eyes, mouth, brightness and
+ * skin texture. Every image of an identity is shifted by a few pixels and
+ * gets its own lighting and noise.
+ */
+public final class SyntheticFaces {
+
+    /** Side of the generated square images, in pixels. */
+    public static final int SIZE = 64;
+
+    /** Seed of the generator. */
+    private static final long SEED = 42;
+
+    /**
+     * Constructor.
+     */
+    private SyntheticFaces() {
+    }
+
+    /**
+     * Generates a training set folder with images named "&lt;label&gt;-&lt;n&gt;.png".
+     *
+     * @param aIdentities number of identities
+     * @param aImagesPerIdentity number of images per identity
+     * @return training set folder
+     * @throws IOException exception
+     */
+    public static File trainingSet(final int aIdentities, final int aImagesPerIdentity)
+            throws IOException {
+
+        File dir = Files.createTempDirectory("faces-").toFile();
+        for (int label = 0; label < aIdentities; label++) {
+            for (int n = 0; n < aImagesPerIdentity; n++) {
+                Mat image = face(label, n);
+                opencv_imgcodecs.imwrite(new File(dir, label + "-" + n + ".png").getPath(),
+                        image);
+                image.release();
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * Generates an image of a face.
+     *
+     * @param aLabel identity
+     * @param aVariant variant of the image
+     * @return grayscale image of {@link #SIZE} x {@link #SIZE} pixels
+     */
+    public static Mat face(final int aLabel, final int aVariant) {
+
+        Random identity = new Random(SEED * 31 + aLabel);
+        double faceWidth = SIZE * (0.30 + 0.08 * identity.nextDouble());
+        double faceHeight = SIZE * (0.38 + 0.08 * identity.nextDouble());
+        double eyeDistance = SIZE * (0.12 + 0.06 * identity.nextDouble());
+        double eyeHeight = SIZE * (0.38 + 0.06 * identity.nextDouble());
+        double eyeRadius = SIZE * (0.04 + 0.03 * identity.nextDouble());
+        double mouthHeight = SIZE * (0.66 + 0.06 * identity.nextDouble());
+        double mouthWidth = SIZE * (0.10 + 0.10 * identity.nextDouble());
+        double skin = 140 + 60 * identity.nextDouble();
+        double[] texture = new double[9];
+        for (int i = 0; i < texture.length; i++) {
+            texture[i] = identity.nextDouble();
+        }
+
+        Random variant = new Random(SEED * 131 + aLabel * 1009L + aVariant);
+        double shiftX = variant.nextGaussian() * 1.5;
+        double shiftY = variant.nextGaussian() * 1.5;
+        double light = 0.85 + 0.3 * variant.nextDouble();
+        double centreX = SIZE / 2.0 + shiftX;
+        double centreY = SIZE / 2.0 + shiftY;
+
+        byte[] pixels = new byte[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+
+                double dx = (x - centreX) / faceWidth;
+                double dy = (y - centreY) / faceHeight;
+                double value = 40 + 30.0 * y / SIZE;
+
+                if (dx * dx + dy * dy <= 1) {
+                    value = skin;
+                    for (int i = 0; i < 3; i++) {
+                        value += 12 * texture[3 * i] * Math.sin(
+                                (1 + 4 * texture[3 * i + 1]) * x / SIZE * 2 * Math.PI
+                                + (1 + 4 * texture[3 * i + 2]) * y / SIZE * 2 * Math.PI);
+                    }
+                    double ey = y - (centreY - faceHeight + eyeHeight);
+                    double ex1 = x - (centreX - eyeDistance);
+                    double ex2 = x - (centreX + eyeDistance);
+                    if (ex1 * ex1 + ey * ey <= eyeRadius * eyeRadius
+                            || ex2 * ex2 + ey * ey <= eyeRadius * eyeRadius) {
+                        value = 30;
+                    }
+                    double my = y - (centreY - faceHeight + mouthHeight);
+                    if (Math.abs(my) < 1.5 && Math.abs(x - centreX) < mouthWidth) {
+                        value = 60;
+                    }
+                }
+
+                value = value * light + variant.nextGaussian() * 6;
+                pixels[y * SIZE + x] = (byte) Math.max(0, Math.min(255, (int) value));
+            }
+        }
+
+        Mat result = new Mat(SIZE, SIZE, CV_8UC1);
+        ByteBuffer buffer = result.createBuffer();
+        buffer.put(pixels);
+        return result;
+    }
+
+    /**
+     * Encodes an image.
+     *
+     * @param aImage image
+     * @param aExtension extension of the format, e.g. ".png"
+     * @return encoded image
+     */
+    public static byte[] encode(final Mat aImage, final String aExtension) {
+
+        BytePointer buffer = new BytePointer();
+        opencv_imgcodecs.imencode(aExtension, aImage, buffer);
+        byte[] result = new byte[(int) buffer.limit()];
+        buffer.get(result);
+        buffer.deallocate();
+        return result;
+    }
+
+    /**
+     * Deletes a generated folder.
+     *
+     * @param aDir folder
+     * @throws IOException exception
+     */
+    public static void delete(final File aDir) throws IOException {
+
+        if (null == aDir || !aDir.exists()) {
+            return;
+        }
+        Files.walkFileTree(aDir.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(final Path aFile, final BasicFileAttributes aAttrs)
+                    throws IOException {
+                Files.delete(aFile);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path aPath, final IOException aExc)
+                    throws IOException {
+                Files.delete(aPath);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,96 @@
+package nifi.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import nifi.FaceRecognitionProcessor;
+import nifi.PackedTrainingSet;
+import nifi.TrainingSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading time of a training set folder against the number of decoding
+ * threads, and of the same training set packed into a memory-mapped
+ * gallery file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingSetBenchmark {
+
+    /** Number of threads decoding training images. */
+    @Param({"1", "2", "4", "8"})
+    private int parallelism;
+
+    /** Training set folder. */
+    private File trainingSet;
+
+    /** Training images. */
+    private File[] imageFiles;
+
+    /** Gallery file packed from the training set. */
+    private File gallery;
+
+    /**
+     * Generates a training set of 2000 images.
+     *
+     * @throws IOException exception
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        trainingSet = SyntheticFaces.trainingSet(200, 10);
+        imageFiles = FaceRecognitionProcessor.listImages(trainingSet.getPath());
+        gallery = File.createTempFile("faces", PackedTrainingSet.EXTENSION);
+        PackedTrainingSet.pack(imageFiles, gallery, 0, 0, parallelism);
+    }
+
+    /**
+     * Deletes the training set.
+     *
+     * @throws IOException exception
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticFaces.delete(trainingSet);
+        Files.deleteIfExists(gallery.toPath());
+    }
+
+    /**
+     * Decodes the training set.
+     *
+     * @return training set
+     */
+    @Benchmark
+    public TrainingSet load() {
+        return TrainingSet.load(imageFiles, parallelism);
+    }
+
+    /**
+     * Maps the gallery file.
+     *
+     * @return training set
+     * @throws IOException exception
+     */
+    @Benchmark
+    public TrainingSet packed() throws IOException {
+        return PackedTrainingSet.load(gallery);
+    }
+}
@@ -0,0 +1,147 @@
+package nifi;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_imgcodecs;
+
+/**
+ * Writes images to a folder on a background thread, so that encoding and
+ * disk I/O never slow down the recognition.
+ * <p>
+ * Pending images are held in a bounded queue. When the queue is full, new
+ * images are either dropped or the submitting thread waits for a free slot.
+ * Written and dropped images are handed back to a {@link MatPool}.
+ */
+public class AsyncImageWriter {
+
+    /** Maximum time to wait for pending images when closing, in seconds. */
+    private static final long CLOSE_TIMEOUT = 5;
+
+    /** Output folder. */
+    private final File dir;
+
+    /** Logger. */
+    private final ComponentLog logger;
+
+    /** Pool the images are handed back to. */
+    private final MatPool pool;
+
+    /** Executor writing images. */
+    private final ThreadPoolExecutor executor;
+
+    /** Number of dropped images. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param aDir output folder
+     * @param aQueueSize maximum number of pending images
+     * @param aBlockWhenFull whether to wait for a free slot instead of
+     *            dropping images when the queue is full
+     * @param aPool pool the images are handed back to
+     * @param aLogger logger
+     */
+    public AsyncImageWriter(final File aDir, final int aQueueSize, final boolean aBlockWhenFull,
+            final MatPool aPool, final ComponentLog aLogger) {
+
+        dir = aDir;
+        pool = aPool;
+        logger = aLogger;
+
+        RejectedExecutionHandler rejectionHandler = new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(final Runnable aTask,
+                    final ThreadPoolExecutor aExecutor) {
+
+                if (aBlockWhenFull && !aExecutor.isShutdown()) {
+                    try {
+                        aExecutor.getQueue().put(aTask);
+                        return;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                dropped.incrementAndGet();
+                throw new RejectedExecutionException();
+            }
+        };
+
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(aQueueSize), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable aRunnable) {
+                        Thread thread = new Thread(aRunnable, "AsyncImageWriter-" + dir.getName());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, rejectionHandler);
+    }
+
+    /**
+     * Submits an image to be written. The writer takes ownership of the
+     * image and hands it back to the pool once it is written or dropped.
+     *
+     * @param aName file name, its extension selects the format
+     * @param aImage image
+     * @return false if the image has been dropped
+     */
+    public boolean submit(final String aName, final Mat aImage) {
+
+        final File file = new File(dir, aName);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        opencv_imgcodecs.imwrite(file.getPath(), aImage);
+                    } catch (RuntimeException e) {
+                        logger.warn("Failed to write " + file, e);
+                    } finally {
+                        pool.release(aImage);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pool.release(aImage);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of images dropped so far.
+     *
+     * @return number of dropped images
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops accepting images and waits a while for pending ones to be
+     * written.
+     */
+    public void close() {
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                logger.warn("Discarding " + executor.shutdownNow().size()
+                        + " images not written within " + CLOSE_TIMEOUT + " s.");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package nifi;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.presets.opencv_objdetect;
+
+/**
+ * A NiFi processor, which recognises many cropped faces packed into a single
+ * FlowFile and writes all predictions into a single result FlowFile, so that
+ * thousands of faces cost one FlowFile and one provenance event instead of
+ * one each.
+ * <p>
+ * The input is a sequence of face records, each one made of a big-endian
+ * unsigned 16-bit length, the UTF-8 id of the face, a big-endian 32-bit
+ * length and the encoded face image, see {@link #writeRecord}. The output
+ * has one JSON object per line and face, in the order of the input.
+ */
+@InputRequirement(Requirement.INPUT_REQUIRED)
+@Tags({"ekstream", "face", "recognition", "batch"})
+@CapabilityDescription("This processor takes as input FlowFiles packing many cropped faces, "
+        + "each one with an id, recognises them and writes the predictions as JSON lines "
+        + "into a single FlowFile.")
+@WritesAttributes({
+    @WritesAttribute(attribute = BatchFaceRecognitionProcessor.RECORD_COUNT_ATTRIBUTE,
+            description = "The number of faces in the FlowFile."),
+    @WritesAttribute(attribute = BatchFaceRecognitionProcessor.RECOGNIZED_COUNT_ATTRIBUTE,
+            description = "The number of recognised faces."),
+    @WritesAttribute(attribute = FaceRecognitionProcessor.ALGORITHM_ATTRIBUTE,
+            description = "The face recognition algorithm."),
+    @WritesAttribute(attribute = FaceRecognitionProcessor.LATENCY_ATTRIBUTE,
+            description = "The time spent decoding and recognising the faces, in "
+                    + "nanoseconds.")})
+public class BatchFaceRecognitionProcessor extends AbstractProcessor {
+
+    /** Relationship "Success". */
+    public static final Relationship REL_SUCCESS = new Relationship.Builder().name("success")
+            .description("The predictions for the faces of a FlowFile, one JSON object per "
+                    + "line.").build();
+
+    /** Relationship "Original". */
+    public static final Relationship REL_ORIGINAL = new Relationship.Builder().name("original")
+            .description("FlowFiles whose faces have been recognised.").build();
+
+    /** Relationship "Failure". */
+    public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+            .description("FlowFiles that are not a valid sequence of face records. Faces "
+                    + "that cannot be decoded are reported in the predictions instead.")
+            .build();
+
+    /** Attribute with the number of faces. */
+    public static final String RECORD_COUNT_ATTRIBUTE = "record.count";
+
+    /** Attribute with the number of recognised faces. */
+    public static final String RECOGNIZED_COUNT_ATTRIBUTE = "face.recognized.count";
+
+    /** MIME type of the predictions. */
+    public static final String MIME_TYPE = "application/x-ndjson";
+
+    /** Processor property. */
+    public static final PropertyDescriptor FACE_MODEL_SERVICE = new PropertyDescriptor.Builder()
+            .fromPropertyDescriptor(FaceRecognitionProcessor.FACE_MODEL_SERVICE)
+            .description("Specifies the controller service providing the face recognizer.")
+            .required(true)
+            .build();
+
+    /** Size of the read buffer of the input, in bytes. */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /** Pool of decoded faces. */
+    private final MatPool matPool = new MatPool(1);
+
+    /** Face decoders, one per thread. */
+    private final ThreadLocal<FrameDecoder> decoder = new ThreadLocal<FrameDecoder>() {
+        @Override
+        protected FrameDecoder initialValue() {
+            return new FrameDecoder(matPool);
+        }
+    };
+
+    /** Face normalizers, one per thread, or null if faces are not normalized. */
+    private volatile ThreadLocal<FaceNormalizer> faceNormalizers;
+
+    /** Service providing the face model. */
+    private volatile FaceModelService modelService;
+
+    /** List of processor properties. */
+    private List<PropertyDescriptor> properties;
+
+    /** List of processor relationships. */
+    private Set<Relationship> relationships;
+
+    /** Logger. */
+    private ComponentLog logger;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+
+        Loader.load(opencv_objdetect.class);
+
+        logger = getLogger();
+
+        final Set<Relationship> procRels = new HashSet<>();
+        procRels.add(REL_SUCCESS);
+        procRels.add(REL_ORIGINAL);
+        procRels.add(REL_FAILURE);
+        relationships = Collections.unmodifiableSet(procRels);
+
+        final List<PropertyDescriptor> supDescriptors = new ArrayList<>();
+        supDescriptors.add(FACE_MODEL_SERVICE);
+        supDescriptors.add(FaceRecognitionProcessor.CONFIDENCE_THRESHOLD);
+        supDescriptors.add(FaceRecognitionProcessor.PREDICTION_COUNT);
+        supDescriptors.add(FaceRecognitionProcessor.RESIZE_FACES);
+        supDescriptors.add(FaceRecognitionProcessor.EQUALIZATION);
+        properties = Collections.unmodifiableList(supDescriptors);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return properties;
+    }
+
+    /**
+     * Looks up the face model service and sets up the normalization of the
+     * faces.
+     *
+     * @param aContext process context
+     */
+    @OnScheduled
+    public void onScheduled(final ProcessContext aContext) {
+
+        matPool.setCapacity(aContext.getMaxConcurrentTasks());
+
+        final boolean resize = aContext.getProperty(FaceRecognitionProcessor.RESIZE_FACES)
+                .asBoolean();
+        final String equalization = aContext.getProperty(FaceRecognitionProcessor.EQUALIZATION)
+                .getValue();
+        faceNormalizers = null;
+        if (resize || !FaceNormalizer.EQUALIZE_NONE.equals(equalization)) {
+            faceNormalizers = new ThreadLocal<FaceNormalizer>() {
+                @Override
+                protected FaceNormalizer initialValue() {
+                    return new FaceNormalizer(resize, equalization);
+                }
+            };
+        }
+
+        modelService = aContext.getProperty(FACE_MODEL_SERVICE)
+                .asControllerService(FaceModelService.class);
+    }
+
+    /**
+     * Releases the face model service and frees pooled faces.
+     */
+    @OnStopped
+    public void onStopped() {
+        modelService = null;
+        matPool.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onTrigger(final ProcessContext aContext, final ProcessSession aSession)
+            throws ProcessException {
+
+        FaceModelService service = modelService;
+        final FaceModel model = null == service ? null : service.getModel();
+        if (null == model) {
+            aContext.yield();
+            return;
+        }
+
+        FlowFile flowFile = aSession.get();
+        if (null == flowFile) {
+            return;
+        }
+
+        final ThreadLocal<FaceNormalizer> normalizers = faceNormalizers;
+        final int predictionCount = aContext.getProperty(FaceRecognitionProcessor.PREDICTION_COUNT)
+                .asInteger();
+        final double threshold = aContext.getProperty(
+                FaceRecognitionProcessor.CONFIDENCE_THRESHOLD).isSet()
+                ? aContext.getProperty(FaceRecognitionProcessor.CONFIDENCE_THRESHOLD).asDouble()
+                : Double.MAX_VALUE;
+
+        // the predictions are short, so they are collected before being
+        // written instead of reading and writing two FlowFiles at once
+        final StringBuilder json = new StringBuilder();
+        // faces read, recognised and failed
+        final int[] counts = new int[3];
+        final long start = System.nanoTime();
+        final long size = flowFile.getSize();
+
+        try {
+            aSession.read(flowFile, new InputStreamCallback() {
+
+                @Override
+                public void process(final InputStream aStream) throws IOException {
+
+                    FrameDecoder faceDecoder = decoder.get();
+                    DataInputStream in = new DataInputStream(
+                            new BufferedInputStream(aStream, READ_BUFFER_SIZE));
+
+                    // the record lengths are checked against the content left, so
+                    // that a corrupt length cannot claim more memory than that
+                    long remaining = size;
+                    int high;
+                    while ((high = in.read()) >= 0) {
+                        byte[] id = new byte[(high << 8) | in.readUnsignedByte()];
+                        in.readFully(id);
+                        int length = in.readInt();
+                        remaining -= 2 + id.length + 4;
+                        if (length < 0 || length > remaining
+                                || faceDecoder.read(in, length) != length) {
+                            throw new EOFException("Truncated face record "
+                                    + new String(id, StandardCharsets.UTF_8));
+                        }
+                        remaining -= length;
+
+                        json.append("{\"id\":");
+                        appendString(json, new String(id, StandardCharsets.UTF_8));
+                        counts[0]++;
+
+                        Mat face = faceDecoder.decode(length);
+                        if (null == face) {
+                            counts[2]++;
+                            json.append(",\"error\":\"Cannot decode the face\"}\n");
+                            continue;
+                        }
+                        List<Prediction> predictions;
+                        Prediction best;
+                        try {
+                            Mat normalized = null == normalizers ? face
+                                    : normalizers.get().normalize(face, model);
+                            predictions = model.predict(normalized, predictionCount);
+                            best = predictions.get(0);
+                        } catch (RuntimeException e) {
+                            counts[2]++;
+                            json.append(",\"error\":");
+                            appendString(json, String.valueOf(e.getMessage()));
+                            json.append("}\n");
+                            continue;
+                        } finally {
+                            matPool.release(face);
+                        }
+
+                        boolean recognized = best.getLabel() >= 0
+                                && best.getConfidence() <= threshold;
+                        if (recognized) {
+                            counts[1]++;
+                        }
+                        json.append(",\"label\":").append(best.getLabel())
+                                .append(",\"confidence\":").append(best.getConfidence())
+                                .append(",\"recognized\":").append(recognized);
+                        if (predictionCount > 1) {
+                            json.append(",\"predictions\":[");
+                            for (int i = 0; i < predictions.size(); i++) {
+                                json.append(0 == i ? "" : ",").append("{\"label\":")
+                                        .append(predictions.get(i).getLabel())
+                                        .append(",\"confidence\":")
+                                        .append(predictions.get(i).getConfidence())
+                                        .append('}');
+                            }
+                            json.append(']');
+                        }
+                        json.append("}\n");
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.error("Failed to recognise the faces of " + flowFile, e);
+            aSession.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put(RECORD_COUNT_ATTRIBUTE, String.valueOf(counts[0]));
+        attributes.put(RECOGNIZED_COUNT_ATTRIBUTE, String.valueOf(counts[1]));
+        attributes.put(FaceRecognitionProcessor.ALGORITHM_ATTRIBUTE, model.getAlgorithm());
+        attributes.put(FaceRecognitionProcessor.LATENCY_ATTRIBUTE,
+                String.valueOf(System.nanoTime() - start));
+        attributes.put(CoreAttributes.MIME_TYPE.key(), MIME_TYPE);
+
+        final byte[] content = json.toString().getBytes(StandardCharsets.UTF_8);
+        FlowFile result = aSession.write(aSession.create(flowFile), new OutputStreamCallback() {
+            @Override
+            public void process(final OutputStream aStream) throws IOException {
+                aStream.write(content);
+            }
+        });
+        aSession.transfer(aSession.putAllAttributes(result, attributes), REL_SUCCESS);
+        aSession.transfer(flowFile, REL_ORIGINAL);
+
+        int unrecognized = counts[0] - counts[1] - counts[2];
+        if (counts[1] > 0) {
+            aSession.adjustCounter("Faces recognised", counts[1], false);
+        }
+        if (unrecognized > 0) {
+            aSession.adjustCounter("Faces unrecognized", unrecognized, false);
+        }
+        if (counts[2] > 0) {
+            aSession.adjustCounter("Faces failed", counts[2], false);
+        }
+    }
+
+    /**
+     * Writes a face record in the input format of the processor.
+     *
+     * @param aOut output
+     * @param aId id of the face, at most 65535 bytes in UTF-8
+     * @param aImage encoded face image
+     * @throws IOException exception
+     */
+    public static void writeRecord(final DataOutputStream aOut, final String aId,
+            final byte[] aImage) throws IOException {
+
+        byte[] id = aId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > 0xFFFF) {
+            throw new IOException("Face id of " + id.length + " bytes is too long.");
+        }
+        aOut.writeShort(id.length);
+        aOut.write(id);
+        aOut.writeInt(aImage.length);
+        aOut.write(aImage);
+    }
+
+    /**
+     * Appends a JSON string.
+     *
+     * @param aJson JSON text
+     * @param aValue string
+     */
+    private static void appendString(final StringBuilder aJson, final String aValue) {
+
+        aJson.append('"');
+        for (int i = 0; i < aValue.length(); i++) {
+            char c = aValue.charAt(i);
+            if ('"' == c || '\\' == c) {
+                aJson.append('\\').append(c);
+            } else if (c < 0x20) {
+                aJson.append(String.format("\\u%04x", (int) c));
+            } else {
+                aJson.append(c);
+            }
+        }
+        aJson.append('"');
+    }
+}
@@ -0,0 +1,93 @@
+package nifi;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.RectVector;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.bytedeco.javacpp.opencv_objdetect.CascadeClassifier;
+
+/**
+ * Detects faces in grayscale frames with a Haar or LBP cascade classifier.
+ * <p>
+ * The classifier keeps working buffers between detections, so the detector
+ * is not thread-safe, every thread needs its own instance. The native
+ * classifier is freed by {@link #close()}.
+ */
+public class FaceDetector {
+
+    /** Cascade classifier. */
+    private final CascadeClassifier classifier;
+
+    /** Scale factor between two detection scales. */
+    private final double scaleFactor;
+
+    /** Minimum number of neighbour detections a face needs to be kept. */
+    private final int minNeighbors;
+
+    /** Minimum size of a face. */
+    private final Size minSize;
+
+    /** Maximum size of a face, unbounded. */
+    private final Size maxSize = new Size();
+
+    /** Faces detected in the last frame. */
+    private final RectVector faces = new RectVector();
+
+    /**
+     * Constructor.
+     *
+     * @param aCascadeFile file with a Haar or LBP cascade, e.g.
+     *            haarcascade_frontalface_default.xml or
+     *            lbpcascade_frontalface.xml
+     * @param aScaleFactor scale factor between two detection scales, greater
+     *            than 1
+     * @param aMinNeighbors minimum number of neighbour detections a face
+     *            needs to be kept
+     * @param aMinSize minimum width and height of a face in pixels
+     */
+    public FaceDetector(final String aCascadeFile, final double aScaleFactor,
+            final int aMinNeighbors, final int aMinSize) {
+
+        classifier = new CascadeClassifier();
+        if (!classifier.load(aCascadeFile) || classifier.empty()) {
+            classifier.deallocate();
+            throw new IllegalArgumentException("Cannot load the cascade " + aCascadeFile);
+        }
+        scaleFactor = aScaleFactor;
+        minNeighbors = aMinNeighbors;
+        minSize = new Size(aMinSize, aMinSize);
+    }
+
+    /**
+     * Detects the faces in a frame.
+     *
+     * @param aFrame grayscale frame
+     * @return number of faces, see {@link #getFace(int)}
+     */
+    public int detect(final Mat aFrame) {
+        classifier.detectMultiScale(aFrame, faces, scaleFactor, minNeighbors, 0, minSize,
+                maxSize);
+        return (int) faces.size();
+    }
+
+    /**
+     * Returns a face detected in the last frame.
+     *
+     * @param aIndex index of the face
+     * @return bounding box of the face
+     */
+    public Rect getFace(final int aIndex) {
+        return faces.get(aIndex);
+    }
+
+    /**
+     * Frees the native classifier and buffers. The detector and the faces it
+     * has returned cannot be used afterwards.
+     */
+    public void close() {
+        classifier.deallocate();
+        faces.deallocate();
+        minSize.deallocate();
+        maxSize.deallocate();
+    }
+}
@@ -0,0 +1,283 @@
+package nifi;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+import org.bytedeco.javacpp.opencv_face.LBPHFaceRecognizer;
+
+/**
+ * A trained face recognizer together with the algorithm it has been trained
+ * with and its gallery of training samples.
+ * <p>
+ * A model is immutable once published, so it is shared read-only by all
+ * concurrent tasks. The only exception is an LBPH model enrolling new
+ * images, see {@link #enrol(TrainingSet, TrainingManifest)}.
+ * <p>
+ * A model predicting through a Java Eigen or Fisher gallery may drop its
+ * face recognizer, see {@link #withoutRecognizer()}.
+ */
+public class FaceModel {
+
+    /** Face recognition algorithm. */
+    private final String algorithm;
+
+    /** Trained face recognizer, or null if released. */
+    private final FaceRecognizer recognizer;
+
+    /** Gallery of training samples, or null if not supported. */
+    private final Gallery gallery;
+
+    /**
+     * Whether predictions are computed in Java by the gallery rather than by
+     * the face recognizer.
+     */
+    private final boolean javaEngine;
+
+    /** Training images of the model, or null if unknown. */
+    private final TrainingManifest manifest;
+
+    /** Lock of the face recognizer, shared by all models using it. */
+    private final ReadWriteLock lock;
+
+    /** Width of the training images, or 0 if unknown. */
+    private final int faceWidth;
+
+    /** Height of the training images, or 0 if unknown. */
+    private final int faceHeight;
+
+    /**
+     * Constructor.
+     *
+     * @param aAlgorithm face recognition algorithm
+     * @param aRecognizer trained face recognizer
+     */
+    public FaceModel(final String aAlgorithm, final FaceRecognizer aRecognizer) {
+        this(aAlgorithm, aRecognizer, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param aAlgorithm face recognition algorithm
+     * @param aRecognizer trained face recognizer
+     * @param aManifest training images of the model, or null if unknown
+     */
+    public FaceModel(final String aAlgorithm, final FaceRecognizer aRecognizer,
+            final TrainingManifest aManifest) {
+        this(aAlgorithm, aRecognizer, aManifest, 0, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param aAlgorithm face recognition algorithm
+     * @param aRecognizer trained face recognizer
+     * @param aManifest training images of the model, or null if unknown
+     * @param aFaceWidth width of the training images, or 0 if unknown
+     * @param aFaceHeight height of the training images, or 0 if unknown
+     */
+    public FaceModel(final String aAlgorithm, final FaceRecognizer aRecognizer,
+            final TrainingManifest aManifest, final int aFaceWidth, final int aFaceHeight) {
+        this(aAlgorithm, aRecognizer, aManifest, aFaceWidth, aFaceHeight,
+                new ReentrantReadWriteLock(), Gallery.of(aRecognizer, aAlgorithm));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param aAlgorithm face recognition algorithm
+     * @param aRecognizer trained face recognizer
+     * @param aManifest training images of the model, or null if unknown
+     * @param aFaceWidth width of the training images, or 0 if unknown
+     * @param aFaceHeight height of the training images, or 0 if unknown
+     * @param aLock lock of the face recognizer
+     * @param aGallery gallery of training samples, or null if not supported
+     */
+    private FaceModel(final String aAlgorithm, final FaceRecognizer aRecognizer,
+            final TrainingManifest aManifest, final int aFaceWidth, final int aFaceHeight,
+            final ReadWriteLock aLock, final Gallery aGallery) {
+        algorithm = aAlgorithm;
+        recognizer = aRecognizer;
+        manifest = aManifest;
+        faceWidth = aFaceWidth;
+        faceHeight = aFaceHeight;
+        lock = aLock;
+        gallery = aGallery;
+        javaEngine = gallery instanceof LbphEngine || gallery instanceof SubspaceEngine;
+    }
+
+    /**
+     * Tells whether the model can enrol new images without being retrained.
+     *
+     * @return true for LBPH models
+     */
+    public boolean isUpdatable() {
+        return recognizer instanceof LBPHFaceRecognizer;
+    }
+
+    /**
+     * Enrols new images into the face recognizer of an updatable model.
+     * <p>
+     * OpenCV updates the face recognizer in place, so predictions through
+     * the face recognizer wait for the update; gallery searches do not, they
+     * keep reading the samples of this model. The returned model shares the
+     * face recognizer with this one.
+     *
+     * @param aImages new images
+     * @param aManifest training images of the updated model
+     * @return updated model
+     */
+    public FaceModel enrol(final TrainingSet aImages, final TrainingManifest aManifest) {
+
+        if (!isUpdatable()) {
+            throw new UnsupportedOperationException(algorithm + " models cannot be updated.");
+        }
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            aImages.update(recognizer);
+        } finally {
+            writeLock.unlock();
+        }
+        // a Java LBPH gallery appends the new histograms instead of copying
+        // all of them again out of the face recognizer
+        Gallery enrolled = gallery instanceof LbphEngine
+                ? ((LbphEngine) gallery).withAdded(aImages) : Gallery.of(recognizer, algorithm);
+        return new FaceModel(algorithm, recognizer, aManifest, faceWidth, faceHeight, lock,
+                enrolled);
+    }
+
+    /**
+     * Returns a model searching another gallery of the same training
+     * samples, e.g. an indexed one. The returned model shares the face
+     * recognizer with this one.
+     *
+     * @param aGallery gallery of the training samples of the model
+     * @return model
+     */
+    public FaceModel withGallery(final Gallery aGallery) {
+        return new FaceModel(algorithm, recognizer, manifest, faceWidth, faceHeight, lock,
+                aGallery);
+    }
+
+    /**
+     * Returns a model predicting through its Eigen or Fisher gallery alone,
+     * which reads nothing from the face recognizer once built. The face
+     * recognizer can then be released; the returned model cannot be saved.
+     *
+     * @return model without face recognizer
+     */
+    public FaceModel withoutRecognizer() {
+
+        if (!(gallery instanceof SubspaceEngine)) {
+            throw new IllegalStateException(algorithm
+                    + " models cannot predict without their face recognizer.");
+        }
+        return new FaceModel(algorithm, null, manifest, faceWidth, faceHeight, lock, gallery);
+    }
+
+    /**
+     * Predicts the label of a face.
+     *
+     * @param aFace grayscale face
+     * @return prediction
+     */
+    public Prediction predict(final Mat aFace) {
+
+        if (javaEngine) {
+            return predict(aFace, 1).get(0);
+        }
+
+        int[] label = new int[1];
+        double[] confidence = new double[1];
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            recognizer.predict(aFace, label, confidence);
+        } finally {
+            readLock.unlock();
+        }
+        return new Prediction(label[0], confidence[0]);
+    }
+
+    /**
+     * Predicts the closest labels of a face.
+     *
+     * @param aFace grayscale face
+     * @param aCount maximum number of labels
+     * @return predictions, the closest first
+     */
+    public List<Prediction> predict(final Mat aFace, final int aCount) {
+
+        if ((1 == aCount && !javaEngine) || null == gallery) {
+            return Collections.singletonList(predict(aFace));
+        }
+
+        TopK result = new TopK(aCount);
+        gallery.search(aFace, result);
+        if (0 == result.size()) {
+            return Collections.singletonList(new Prediction(-1, Double.MAX_VALUE));
+        }
+        return result.toPredictions();
+    }
+
+    /**
+     * Returns the face recognition algorithm.
+     *
+     * @return algorithm
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns the training images of the model.
+     *
+     * @return manifest, or null if unknown
+     */
+    public TrainingManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Returns the width of the training images.
+     *
+     * @return width, or 0 if unknown
+     */
+    public int getFaceWidth() {
+        return faceWidth;
+    }
+
+    /**
+     * Returns the height of the training images.
+     *
+     * @return height, or 0 if unknown
+     */
+    public int getFaceHeight() {
+        return faceHeight;
+    }
+
+    /**
+     * Returns the gallery of training samples.
+     *
+     * @return gallery, or null if not supported
+     */
+    public Gallery getGallery() {
+        return gallery;
+    }
+
+    /**
+     * Returns the trained face recognizer.
+     *
+     * @return face recognizer, or null if released
+     */
+    public FaceRecognizer getRecognizer() {
+        return recognizer;
+    }
+}
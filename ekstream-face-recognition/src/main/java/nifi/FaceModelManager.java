@@ -0,0 +1,435 @@
+package nifi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+/**
+ * Owns the lifecycle of a face model: trains or loads it in background,
+ * rebuilds it when the training set changes and publishes the current one.
+ * <p>
+ * Managers are shared: all components asking for the same training set,
+ * algorithm, model file, training parallelism, reloading and gallery
+ * settings get the same manager, so the model is trained and held in memory
+ * once per JVM. Components differing in any of them get managers of their
+ * own. Each component acquires a manager with {@link #acquire} and hands it
+ * back with {@link #release()}; the manager stops once it is no longer
+ * used. The logger of the first component to acquire a manager receives the
+ * training messages. Sharded gallery scans run on a fork/join pool owned by
+ * the manager.
+ */
+public final class FaceModelManager {
+
+    /** Managers in use, by key. */
+    private static final Map<String, FaceModelManager> MANAGERS = new HashMap<>();
+
+    /** Key of the manager. */
+    private final String key;
+
+    /** Directory with training images. */
+    private final String trainingDir;
+
+    /** Face recognition algorithm. */
+    private final String algorithm;
+
+    /** Model file, or null. */
+    private final ModelFile modelFile;
+
+    /** Number of threads decoding training images. */
+    private final int parallelism;
+
+    /** How the gallery of the face model is searched. */
+    private final GallerySettings gallerySettings;
+
+    /** Logger. */
+    private final ComponentLog logger;
+
+    /** Executor building the face model in background. */
+    private final ExecutorService trainingExecutor;
+
+    /** Pool searching gallery shards, or null if galleries are not sharded. */
+    private final ForkJoinPool searchPool;
+
+    /** Split of gallery scans into shards. */
+    private final ShardedSearch sharding;
+
+    /** Watcher of the training set, or null if the model is not reloaded. */
+    private TrainingSetWatcher trainingSetWatcher;
+
+    /** Number of components using the manager. */
+    private int references;
+
+    /**
+     * Face model, published once the background training is complete and
+     * replaced as a whole when it is rebuilt. Prediction does not modify the
+     * model, so it is shared read-only by all concurrent tasks.
+     */
+    private volatile FaceModel faceModel;
+
+    /**
+     * Constructor.
+     *
+     * @param aKey key of the manager
+     * @param aTrainingDir directory with training images
+     * @param aAlgorithm face recognition algorithm
+     * @param aModelFile model file, or null
+     * @param aParallelism number of threads decoding training images
+     * @param aGallerySettings how the gallery of the face model is searched
+     * @param aLogger logger
+     */
+    private FaceModelManager(final String aKey, final String aTrainingDir,
+            final String aAlgorithm, final String aModelFile, final int aParallelism,
+            final GallerySettings aGallerySettings, final ComponentLog aLogger) {
+
+        key = aKey;
+        trainingDir = aTrainingDir;
+        algorithm = aAlgorithm;
+        modelFile = null == aModelFile ? null : new ModelFile(new File(aModelFile));
+        parallelism = aParallelism;
+        gallerySettings = aGallerySettings;
+        logger = aLogger;
+
+        int searchParallelism = aGallerySettings.getSearchParallelism();
+        if (searchParallelism > 1) {
+            searchPool = new ForkJoinPool(searchParallelism);
+            sharding = new ShardedSearch(searchPool, searchParallelism,
+                    aGallerySettings.getParallelThreshold());
+        } else {
+            searchPool = null;
+            sharding = ShardedSearch.SEQUENTIAL;
+        }
+
+        trainingExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable aRunnable) {
+                Thread thread = new Thread(aRunnable, "FaceModelManager-training");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the manager of a face model, starting it if it is not used
+     * yet. Every call must be matched by a call to {@link #release()}.
+     *
+     * @param aTrainingDir directory with training images
+     * @param aAlgorithm face recognition algorithm
+     * @param aModelFile model file, or null
+     * @param aParallelism number of threads decoding training images
+     * @param aReloadDelay quiet period after a change of the training set
+     *            before the model is rebuilt, in milliseconds, or a negative
+     *            value if the model is not rebuilt
+     * @param aGallerySettings how the gallery of the face model is searched
+     * @param aLogger logger
+     * @return manager
+     * @throws IOException if the training set cannot be watched
+     */
+    public static FaceModelManager acquire(final String aTrainingDir, final String aAlgorithm,
+            final String aModelFile, final int aParallelism, final long aReloadDelay,
+            final GallerySettings aGallerySettings, final ComponentLog aLogger)
+            throws IOException {
+
+        String key = new File(aTrainingDir).getAbsolutePath() + '\n' + aAlgorithm + '\n'
+                + (null == aModelFile ? "" : new File(aModelFile).getAbsolutePath()) + '\n'
+                + aParallelism + '\n' + aReloadDelay + '\n' + aGallerySettings;
+
+        synchronized (MANAGERS) {
+            FaceModelManager result = MANAGERS.get(key);
+            if (null == result) {
+                result = new FaceModelManager(key, aTrainingDir, aAlgorithm, aModelFile,
+                        aParallelism, aGallerySettings, aLogger);
+                result.start(aReloadDelay);
+                MANAGERS.put(key, result);
+            }
+            result.references++;
+            return result;
+        }
+    }
+
+    /**
+     * Hands the manager back. The last component to release it stops it.
+     */
+    public void release() {
+
+        synchronized (MANAGERS) {
+            if (--references > 0) {
+                return;
+            }
+            MANAGERS.remove(key);
+        }
+
+        if (null != trainingSetWatcher) {
+            try {
+                trainingSetWatcher.close();
+            } catch (IOException e) {
+                logger.warn("Failed to stop watching the training set.", e);
+            }
+        }
+        shutdown();
+    }
+
+    /**
+     * Stops the background training and the shard searches.
+     */
+    private void shutdown() {
+
+        trainingExecutor.shutdownNow();
+        if (null != searchPool) {
+            searchPool.shutdown();
+        }
+    }
+
+    /**
+     * Returns the current face model.
+     *
+     * @return face model, or null while the first one is being built
+     */
+    public FaceModel getModel() {
+        return faceModel;
+    }
+
+    /**
+     * Starts building the face model in background and, if requested,
+     * watching the training set.
+     *
+     * @param aReloadDelay quiet period after a change of the training set,
+     *            in milliseconds, or a negative value
+     * @throws IOException if the training set cannot be watched
+     */
+    private void start(final long aReloadDelay) throws IOException {
+
+        final Runnable build = new Runnable() {
+
+            @Override
+            public void run() {
+
+                long start = System.currentTimeMillis();
+                try {
+                    // in-flight predictions keep using the model they have read
+                    faceModel = prepareGallery(buildModel(faceModel));
+                } catch (RuntimeException e) {
+                    logger.error("Failed to train the face recognizer.", e);
+                    return;
+                }
+                logger.info("Face recognizer ready in "
+                        + (System.currentTimeMillis() - start) + " ms.");
+            }
+        };
+        trainingExecutor.submit(build);
+
+        if (aReloadDelay >= 0) {
+            try {
+                // a gallery file is replaced as a whole, so its folder is watched
+                File watched = new File(trainingDir).getAbsoluteFile();
+                if (PackedTrainingSet.isPacked(watched)) {
+                    watched = watched.getParentFile();
+                }
+                trainingSetWatcher = new TrainingSetWatcher(watched, aReloadDelay,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                trainingExecutor.submit(build);
+                            }
+                        }, logger);
+            } catch (IOException e) {
+                shutdown();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Builds a face model. Models able to enrol new images are updated when
+     * images have only been added to their training set; otherwise, if a
+     * model file is given and it matches the training set, the face
+     * recognizer is loaded from it; otherwise the face recognizer is trained
+     * and saved to the model file.
+     *
+     * @param aCurrent current face model, or null
+     * @return face model
+     */
+    private FaceModel buildModel(final FaceModel aCurrent) {
+
+        File[] imageFiles = FaceRecognitionProcessor.listImages(trainingDir);
+        TrainingManifest manifest = TrainingManifest.of(imageFiles);
+        String fingerprint = ModelFile.fingerprint(imageFiles, algorithm);
+        Size faceSize = TrainingSet.faceSize(imageFiles);
+        int width = null == faceSize ? 0 : faceSize.width();
+        int height = null == faceSize ? 0 : faceSize.height();
+
+        if (null != aCurrent && aCurrent.isUpdatable() && null != aCurrent.getManifest()
+                && aCurrent.getManifest().isContainedIn(manifest)) {
+            return enrol(aCurrent, imageFiles, manifest, fingerprint);
+        }
+
+        if (null != modelFile) {
+            FaceRecognizer recognizer = FaceRecognitionProcessor.createRecognizer(algorithm);
+            try {
+                if (modelFile.load(recognizer, fingerprint)) {
+                    logger.info("Face recognizer loaded from " + modelFile.getFile());
+                    return new FaceModel(algorithm, recognizer, manifest, width, height);
+                }
+
+                FaceModel stale = new FaceModel(algorithm, recognizer, null);
+                if (stale.isUpdatable()) {
+                    TrainingManifest staleManifest = modelFile.loadStale(recognizer, algorithm);
+                    if (null != staleManifest && staleManifest.isContainedIn(manifest)) {
+                        logger.info("Face recognizer loaded from " + modelFile.getFile());
+                        stale = new FaceModel(algorithm, recognizer, staleManifest, width,
+                                height);
+                        return enrol(stale, imageFiles, manifest, fingerprint);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to load the face recognizer from " + modelFile.getFile()
+                        + ", retraining.", e);
+            }
+        }
+
+        FaceModel result = new FaceModel(algorithm,
+                FaceRecognitionProcessor.train(imageFiles, algorithm, parallelism), manifest,
+                width, height);
+        save(result, fingerprint);
+        return result;
+    }
+
+    /**
+     * Prepares the gallery of a face model as the settings ask, if the
+     * gallery supports it: with an HNSW index in front of it, or compressed
+     * by product quantization, and scanned in shards.
+     *
+     * @param aModel face model
+     * @return face model searching the prepared gallery, or the given one
+     */
+    private FaceModel prepareGallery(final FaceModel aModel) {
+
+        if (aModel.getGallery() instanceof LbphEngine) {
+            LbphEngine engine = (LbphEngine) aModel.getGallery();
+            return null == searchPool ? aModel : aModel.withGallery(engine.withSharding(sharding));
+        }
+        if (!(aModel.getGallery() instanceof SubspaceEngine)) {
+            return aModel;
+        }
+
+        SubspaceEngine engine = (SubspaceEngine) aModel.getGallery();
+        if (gallerySettings.isHnsw()) {
+            return aModel.withGallery(index(engine));
+        }
+        if (gallerySettings.isQuantized()) {
+            long start = System.currentTimeMillis();
+            SubspaceEngine quantized;
+            try {
+                quantized = engine.quantize(gallerySettings.getPqSubspaces(),
+                        gallerySettings.getPqRerank(),
+                        null == modelFile ? null : modelFile.getProjectionsFile());
+            } catch (IOException e) {
+                logger.warn("Failed to map the projections of the quantized gallery, "
+                        + "searching it uncompressed.", e);
+                return aModel.withGallery(engine.withSharding(sharding));
+            }
+            logger.info("Gallery of " + quantized.size() + " faces quantized in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+
+            // the model has been saved, and the projections held by the face
+            // recognizer would outweigh the codes
+            FaceModel result = aModel.withGallery(quantized.withSharding(sharding))
+                    .withoutRecognizer();
+            aModel.getRecognizer().deallocate();
+            return result;
+        }
+        return null == searchPool ? aModel : aModel.withGallery(engine.withSharding(sharding));
+    }
+
+    /**
+     * Puts an HNSW index in front of a gallery. The index is loaded from
+     * next to the model file if it has been built over the same
+     * projections, otherwise it is built and saved there.
+     *
+     * @param aEngine gallery
+     * @return gallery searching the index
+     */
+    private SubspaceEngine index(final SubspaceEngine aEngine) {
+
+        float[] vectors = aEngine.projectionRows();
+        int m = gallerySettings.getHnswM();
+        HnswIndex index = null;
+        if (null != modelFile) {
+            try {
+                index = modelFile.loadIndex(vectors, aEngine.getComponents(), m,
+                        GallerySettings.HNSW_EF_CONSTRUCTION);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to load the HNSW index of " + modelFile.getFile()
+                        + ", rebuilding.", e);
+            }
+        }
+
+        if (null == index) {
+            long start = System.currentTimeMillis();
+            index = HnswIndex.build(vectors, aEngine.getComponents(), m,
+                    GallerySettings.HNSW_EF_CONSTRUCTION);
+            logger.info("HNSW index of " + index.size() + " faces built in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+            if (null != modelFile) {
+                try {
+                    modelFile.saveIndex(index);
+                } catch (IOException e) {
+                    logger.warn("Failed to save the HNSW index of " + modelFile.getFile(), e);
+                }
+            }
+        }
+        return aEngine.withIndex(index, gallerySettings.getHnswEfSearch());
+    }
+
+    /**
+     * Enrols the images added to the training set of a face model.
+     *
+     * @param aModel updatable face model
+     * @param aImageFiles training images
+     * @param aManifest manifest of the training images
+     * @param aFingerprint fingerprint of the training images
+     * @return updated face model
+     */
+    private FaceModel enrol(final FaceModel aModel, final File[] aImageFiles,
+            final TrainingManifest aManifest, final String aFingerprint) {
+
+        File[] added = aModel.getManifest().added(aImageFiles);
+        if (0 == added.length) {
+            // nothing added to a training set which contains the model's one
+            return aModel;
+        }
+
+        FaceModel result = aModel.enrol(TrainingSet.load(added, parallelism), aManifest);
+        logger.info("Enrolled " + added.length + " new training images.");
+        save(result, aFingerprint);
+        return result;
+    }
+
+    /**
+     * Saves a face model to the model file, if any.
+     *
+     * @param aModel face model
+     * @param aFingerprint fingerprint of the training images
+     */
+    private void save(final FaceModel aModel, final String aFingerprint) {
+
+        if (null == modelFile) {
+            return;
+        }
+        try {
+            modelFile.save(aModel, aFingerprint);
+            logger.info("Face recognizer saved to " + modelFile.getFile());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to save the face recognizer to " + modelFile.getFile(), e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package nifi;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+/**
+ * A controller service providing a face model to several processors, so
+ * that the model is trained and held in memory once.
+ */
+@Tags({"ekstream", "face", "recognition"})
+@CapabilityDescription("Provides a trained face recognizer shared by face recognition "
+        + "processors.")
+public interface FaceModelService extends ControllerService {
+
+    /**
+     * Returns the current face model. The model is thread-safe and may be
+     * used by any number of concurrent tasks; it is replaced as a whole
+     * when it is rebuilt, so callers should read it once per invocation.
+     *
+     * @return face model, or null while the first one is being built
+     */
+    FaceModel getModel();
+}
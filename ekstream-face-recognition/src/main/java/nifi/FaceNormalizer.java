@@ -0,0 +1,138 @@
+package nifi;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.bytedeco.javacpp.opencv_imgproc;
+import org.bytedeco.javacpp.opencv_imgproc.CLAHE;
+
+/**
+ * Brings faces to the form of the training images before prediction:
+ * grayscale, of the size of the training images and optionally with an
+ * equalized histogram.
+ * <p>
+ * Eigen and Fisher face recognizers only accept faces of the exact size of
+ * their training images, and every algorithm predicts best on faces
+ * prepared like the training images. Equalization is only consistent if the
+ * training images have been equalized the same way.
+ * <p>
+ * The normalized face is written into images owned by the normalizer and
+ * reused by the next face, so normalization does not allocate once the
+ * geometry is stable. The normalizer is not thread-safe, every thread needs
+ * its own instance.
+ */
+public class FaceNormalizer {
+
+    /** No histogram equalization. */
+    public static final String EQUALIZE_NONE = "None";
+
+    /** Global histogram equalization. */
+    public static final String EQUALIZE_GLOBAL = "Global";
+
+    /** Contrast limited adaptive histogram equalization. */
+    public static final String EQUALIZE_CLAHE = "CLAHE";
+
+    /** Contrast limit of CLAHE. */
+    private static final double CLAHE_CLIP_LIMIT = 2.0;
+
+    /** Number of CLAHE tiles per row and column. */
+    private static final int CLAHE_TILES = 8;
+
+    /** Whether faces are resized to the size of the training images. */
+    private final boolean resize;
+
+    /** Histogram equalization, e.g. {@link #EQUALIZE_CLAHE}. */
+    private final String equalization;
+
+    /** CLAHE operator, or null. */
+    private final CLAHE clahe;
+
+    /** Grayscale face. */
+    private final Mat gray = new Mat();
+
+    /** Resized face. */
+    private final Mat resized = new Mat();
+
+    /** Equalized face. */
+    private final Mat equalized = new Mat();
+
+    /** Size of the training images, reused while it does not change. */
+    private final Size size = new Size();
+
+    /**
+     * Constructor.
+     *
+     * @param aResize whether faces are resized to the size of the training
+     *            images
+     * @param aEqualization histogram equalization, e.g.
+     *            {@link #EQUALIZE_CLAHE}
+     */
+    public FaceNormalizer(final boolean aResize, final String aEqualization) {
+
+        resize = aResize;
+        equalization = aEqualization;
+        clahe = EQUALIZE_CLAHE.equals(aEqualization)
+                ? opencv_imgproc.createCLAHE(CLAHE_CLIP_LIMIT,
+                        new Size(CLAHE_TILES, CLAHE_TILES))
+                : null;
+    }
+
+    /**
+     * Normalizes a face for a face model.
+     *
+     * @param aFace face
+     * @param aModel face model
+     * @return normalized face, either the given one if it needs no change,
+     *         or an image owned by the normalizer, valid until the next call
+     */
+    public Mat normalize(final Mat aFace, final FaceModel aModel) {
+        return normalize(aFace, aModel.getFaceWidth(), aModel.getFaceHeight());
+    }
+
+    /**
+     * Normalizes a face.
+     *
+     * @param aFace face
+     * @param aWidth width of the training images, or 0 if unknown
+     * @param aHeight height of the training images, or 0 if unknown
+     * @return normalized face, either the given one if it needs no change,
+     *         or an image owned by the normalizer, valid until the next call
+     */
+    public Mat normalize(final Mat aFace, final int aWidth, final int aHeight) {
+
+        Mat result = aFace;
+        switch (result.channels()) {
+        case 3:
+            opencv_imgproc.cvtColor(result, gray, opencv_imgproc.COLOR_BGR2GRAY);
+            result = gray;
+            break;
+        case 4:
+            opencv_imgproc.cvtColor(result, gray, opencv_imgproc.COLOR_BGRA2GRAY);
+            result = gray;
+            break;
+        default:
+            break;
+        }
+
+        if (resize && aWidth > 0 && aHeight > 0
+                && (result.cols() != aWidth || result.rows() != aHeight)) {
+            if (size.width() != aWidth || size.height() != aHeight) {
+                size.width(aWidth).height(aHeight);
+            }
+            // area interpolation for shrinking, which is the usual case,
+            // linear for enlarging small detections
+            int interpolation = result.cols() > aWidth ? opencv_imgproc.INTER_AREA
+                    : opencv_imgproc.INTER_LINEAR;
+            opencv_imgproc.resize(result, resized, size, 0, 0, interpolation);
+            result = resized;
+        }
+
+        if (null != clahe) {
+            clahe.apply(result, equalized);
+            result = equalized;
+        } else if (EQUALIZE_GLOBAL.equals(equalization)) {
+            opencv_imgproc.equalizeHist(result, equalized);
+            result = equalized;
+        }
+        return result;
+    }
+}
@@ -1,6 +1,6 @@
 package nifi;
 
-import static org.bytedeco.javacpp.opencv_core.CV_32SC1;
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
@@ -8,23 +8,38 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.IntBuffer;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.imageio.ImageIO;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
@@ -36,10 +51,9 @@ import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.bytedeco.javacpp.Loader;
 import org.bytedeco.javacpp.opencv_face;
-import org.bytedeco.javacpp.opencv_imgcodecs;
 import org.bytedeco.javacpp.opencv_core.IplImage;
 import org.bytedeco.javacpp.opencv_core.Mat;
-import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_core.Rect;
 import org.bytedeco.javacpp.opencv_face.FaceRecognizer;
 import org.bytedeco.javacpp.presets.opencv_objdetect;
 import org.bytedeco.javacv.Frame;
@@ -53,7 +67,33 @@ import org.bytedeco.javacv.OpenCVFrameConverter;
 @InputRequirement(Requirement.INPUT_REQUIRED)
 @Tags({"ekstream", "face", "recognition"})
 @CapabilityDescription("This processor takes as input video frames with detected human faces,"
-        + "and recognises these faces.")
+        + "and recognises these faces. Optionally, it detects the faces in full video frames "
+        + "itself and emits one FlowFile per face.")
+@WritesAttributes({
+    @WritesAttribute(attribute = FaceRecognitionProcessor.LABEL_ATTRIBUTE,
+            description = "The predicted label of the face."),
+    @WritesAttribute(attribute = FaceRecognitionProcessor.CONFIDENCE_ATTRIBUTE,
+            description = "The distance to the closest training image, lower is better."),
+    @WritesAttribute(attribute = "face.N.label",
+            description = "The N-th closest label, if more than one prediction is requested."),
+    @WritesAttribute(attribute = "face.N.confidence",
+            description = "The confidence of the N-th closest label."),
+    @WritesAttribute(attribute = FaceRecognitionProcessor.ALGORITHM_ATTRIBUTE,
+            description = "The face recognition algorithm."),
+    @WritesAttribute(attribute = FaceRecognitionProcessor.LATENCY_ATTRIBUTE,
+            description = "The time spent decoding and recognising the frame, in nanoseconds."),
+    @WritesAttribute(attribute = FaceRecognitionProcessor.FACE_COUNT_ATTRIBUTE,
+            description = "The number of faces detected in the frame, if faces are detected."),
+    @WritesAttribute(attribute = FaceRecognitionProcessor.FACE_INDEX_ATTRIBUTE,
+            description = "The index of the detected face in the frame, from 0."),
+    @WritesAttribute(attribute = FaceRecognitionProcessor.FACE_X_ATTRIBUTE,
+            description = "The left edge of the detected face in the frame, in pixels."),
+    @WritesAttribute(attribute = FaceRecognitionProcessor.FACE_Y_ATTRIBUTE,
+            description = "The top edge of the detected face in the frame, in pixels."),
+    @WritesAttribute(attribute = FaceRecognitionProcessor.FACE_WIDTH_ATTRIBUTE,
+            description = "The width of the detected face, in pixels."),
+    @WritesAttribute(attribute = FaceRecognitionProcessor.FACE_HEIGHT_ATTRIBUTE,
+            description = "The height of the detected face, in pixels.")})
 public class FaceRecognitionProcessor extends AbstractProcessor {
 
     /** Allowable value. */
@@ -68,14 +108,94 @@ public class FaceRecognitionProcessor extends AbstractProcessor {
     public static final AllowableValue LBPH = new AllowableValue("LBPH",
             "LBPH Face Recognition", "Face recognition using the LBPH algorithm.");
 
+    /** Allowable value. */
+    public static final AllowableValue JAVA_LBPH = new AllowableValue("JavaLBPH",
+            "LBPH Face Recognition in Java", "Face recognition using the LBPH algorithm, "
+            + "trained by OpenCV and predicted in Java.");
+
+    /** Allowable value. */
+    public static final AllowableValue JAVA_FISHER = new AllowableValue("JavaFisher",
+            "Fisher Face Recognition in Java", "Face recognition using the Fisher algorithm, "
+            + "trained by OpenCV and predicted in Java.");
+
+    /** Allowable value. */
+    public static final AllowableValue JAVA_EIGEN = new AllowableValue("JavaEigen",
+            "Eigen Face Recognition in Java", "Face recognition using the Eigen algorithm, "
+            + "trained by OpenCV and predicted in Java.");
+
+    /** Allowable value. */
+    public static final AllowableValue DROP = new AllowableValue("Drop",
+            "Drop", "Images are dropped while the queue is full.");
+
+    /** Allowable value. */
+    public static final AllowableValue BLOCK = new AllowableValue("Block",
+            "Block", "Recognition waits until the queue has room for the image.");
+
     /** Relationship "Success". */
     public static final Relationship REL_SUCCESS = new Relationship.Builder().name("success")
-            .description("Video frames have been properly captured.").build();
+            .description("Video frames with a recognised face.").build();
+
+    /** Relationship "Unrecognized". */
+    public static final Relationship REL_UNRECOGNIZED = new Relationship.Builder()
+            .name("unrecognized")
+            .description("Video frames with a face that does not match any training image "
+                    + "within the confidence threshold.").build();
+
+    /** Relationship "Failure". */
+    public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+            .description("Video frames that cannot be decoded or recognised.").build();
+
+    /** Relationship "Original". */
+    public static final Relationship REL_ORIGINAL = new Relationship.Builder().name("original")
+            .description("Video frames in which faces have been detected by the processor. "
+                    + "The detected faces are emitted as child FlowFiles to success or "
+                    + "unrecognized.").build();
+
+    /** Attribute with the predicted label. */
+    public static final String LABEL_ATTRIBUTE = "face.label";
+
+    /** Attribute with the confidence of the prediction. */
+    public static final String CONFIDENCE_ATTRIBUTE = "face.confidence";
+
+    /** Attribute with the face recognition algorithm. */
+    public static final String ALGORITHM_ATTRIBUTE = "face.algorithm";
+
+    /** Attribute with the time spent decoding and recognising the frame. */
+    public static final String LATENCY_ATTRIBUTE = "face.latency.nanos";
+
+    /** Attribute with the number of detected faces. */
+    public static final String FACE_COUNT_ATTRIBUTE = "face.count";
+
+    /** Attribute with the index of a detected face. */
+    public static final String FACE_INDEX_ATTRIBUTE = "face.index";
+
+    /** Attribute with the left edge of a detected face. */
+    public static final String FACE_X_ATTRIBUTE = "face.x";
+
+    /** Attribute with the top edge of a detected face. */
+    public static final String FACE_Y_ATTRIBUTE = "face.y";
+
+    /** Attribute with the width of a detected face. */
+    public static final String FACE_WIDTH_ATTRIBUTE = "face.width";
+
+    /** Attribute with the height of a detected face. */
+    public static final String FACE_HEIGHT_ATTRIBUTE = "face.height";
+
+    /** Processor property. */
+    public static final PropertyDescriptor FACE_MODEL_SERVICE = new PropertyDescriptor.Builder()
+            .name("Face Model Service")
+            .description("Specifies the controller service providing the face recognizer, so "
+                    + "that several processors share it. If set, the training properties of "
+                    + "this processor are ignored.")
+            .identifiesControllerService(FaceModelService.class)
+            .required(false)
+            .build();
 
     /** Processor property. */
     public static final PropertyDescriptor TRAINING_SET = new PropertyDescriptor.Builder()
             .name("Folder with training images.")
-            .description("Specified the folder where trainaing images are located.")
+            .description("Specified the folder where trainaing images are located, or a "
+                    + "gallery file packed from it (" + PackedTrainingSet.EXTENSION + ").")
             .defaultValue("test")
             .required(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
@@ -85,7 +205,7 @@ public class FaceRecognitionProcessor extends AbstractProcessor {
     public static final PropertyDescriptor FACE_RECOGNIZER = new PropertyDescriptor.Builder()
             .name("Face recognition algorithm.")
             .description("Specified the Face recognition algorithm to be applied.")
-            .allowableValues(FISHER, EIGEN, LBPH)
+            .allowableValues(FISHER, EIGEN, LBPH, JAVA_FISHER, JAVA_EIGEN, JAVA_LBPH)
             .defaultValue(FISHER.getValue())
             .required(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
@@ -101,14 +221,404 @@ public class FaceRecognitionProcessor extends AbstractProcessor {
             .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
             .build();
 
-    /** Face recognizer. */
-    private static FaceRecognizer faceRecognizer;
+    /** Processor property. */
+    public static final PropertyDescriptor IMAGE_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Image Directory")
+            .description("Specifies the folder where interim results are saved.")
+            .defaultValue(".")
+            .required(true)
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor IMAGE_SAMPLING_RATE = new PropertyDescriptor.Builder()
+            .name("Image Sampling Rate")
+            .description("Specifies that only every N-th frame is saved.")
+            .defaultValue("1")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
 
-    /** Converter for Frames and IplImages. */
-    private static OpenCVFrameConverter.ToIplImage converter;
+    /** Processor property. */
+    public static final PropertyDescriptor IMAGE_QUEUE_SIZE = new PropertyDescriptor.Builder()
+            .name("Image Queue Size")
+            .description("Specifies the maximum number of images waiting to be saved.")
+            .defaultValue("100")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
 
-    /** Converter for byte arrays and images. */
-    private static Java2DFrameConverter flatConverter;
+    /** Processor property. */
+    public static final PropertyDescriptor IMAGE_QUEUE_POLICY = new PropertyDescriptor.Builder()
+            .name("Image Queue Full Policy")
+            .description("Specifies what happens to an image when the queue of images waiting "
+                    + "to be saved is full.")
+            .allowableValues(DROP, BLOCK)
+            .defaultValue(DROP.getValue())
+            .required(true)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor MODEL_FILE = new PropertyDescriptor.Builder()
+            .name("Model File")
+            .description("Specifies the file where the trained face recognizer is stored. "
+                    + "If the file exists and has been trained on the current training set "
+                    + "with the same algorithm, it is loaded instead of training the face "
+                    + "recognizer; otherwise the face recognizer is trained and saved to the "
+                    + "file. The file extension (.yml, .xml, .yml.gz) selects the format.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor RELOAD_ON_CHANGE = new PropertyDescriptor.Builder()
+            .name("Reload on Change")
+            .description("Specifies whether the face recognizer is rebuilt in background when "
+                    + "training images are added, changed or removed. The current face "
+                    + "recognizer is used until the new one is ready.")
+            .allowableValues(new HashSet<String>(Arrays.asList("true", "false")))
+            .defaultValue("false")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor RELOAD_DELAY = new PropertyDescriptor.Builder()
+            .name("Reload Delay")
+            .description("Specifies how long the training set must remain unchanged before "
+                    + "the face recognizer is rebuilt.")
+            .defaultValue("10 sec")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor TRAINING_PARALLELISM = new PropertyDescriptor.Builder()
+            .name("Training Parallelism")
+            .description("Specifies the number of threads decoding training images.")
+            .defaultValue(String.valueOf(Runtime.getRuntime().availableProcessors()))
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor HNSW_M = new PropertyDescriptor.Builder()
+            .name("HNSW M")
+            .description("Specifies the maximum number of neighbours of a face in an HNSW "
+                    + "approximate nearest-neighbour index over the training images, built "
+                    + "after training and saved next to the model file. Larger values find "
+                    + "the closest face more often but take more memory and time to build. "
+                    + "Applies to the JavaEigen and JavaFisher face recognizers. If not set, "
+                    + "every training image is compared with the face.")
+            .required(false)
+            .addValidator(StandardValidators.createLongValidator(2, 128, true))
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor HNSW_EF_SEARCH = new PropertyDescriptor.Builder()
+            .name("HNSW efSearch")
+            .description("Specifies the number of candidate faces explored by a search of the "
+                    + "HNSW index, at least the number of predictions. Larger values find the "
+                    + "closest face more often but take longer.")
+            .defaultValue("64")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor PQ_SUBSPACES = new PropertyDescriptor.Builder()
+            .name("Product Quantization Subspaces")
+            .description("Specifies the number of bytes a training image is compressed into by "
+                    + "product quantization, at most the number of Eigen or Fisher components. "
+                    + "Faces are compared with the compressed training images through lookup "
+                    + "tables, and the closest candidates are re-ranked exactly against the "
+                    + "training images, memory-mapped from a file next to the model file, or "
+                    + "from a temporary file. Applies to the JavaEigen and JavaFisher face "
+                    + "recognizers, unless an HNSW index is used; LBPH histograms are not "
+                    + "compressed. If not set, the training images are not compressed.")
+            .required(false)
+            .addValidator(StandardValidators.createLongValidator(1, 1024, true))
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor PQ_RERANK = new PropertyDescriptor.Builder()
+            .name("Product Quantization Re-rank")
+            .description("Specifies the number of closest compressed training images which are "
+                    + "compared exactly with the face, at least the number of predictions.")
+            .defaultValue("64")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor SEARCH_PARALLELISM = new PropertyDescriptor.Builder()
+            .name("Search Parallelism")
+            .description("Specifies the number of threads comparing a face with the training "
+                    + "images, each scanning a shard of them. Applies to the JavaEigen, "
+                    + "JavaFisher and JavaLBPH face recognizers, unless an HNSW index is used.")
+            .defaultValue("1")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor SEARCH_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Parallel Search Threshold")
+            .description("Specifies the number of training images below which a face is "
+                    + "compared with them by a single thread, as splitting a small search "
+                    + "costs more than it saves.")
+            .defaultValue("2000")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    /** Validator of decimal numbers, which NiFi 1.0.0 does not provide. */
+    private static final Validator NUMBER_VALIDATOR = new Validator() {
+        @Override
+        public ValidationResult validate(final String aSubject, final String aInput,
+                final ValidationContext aContext) {
+
+            boolean valid;
+            try {
+                valid = !Double.isNaN(Double.parseDouble(aInput));
+            } catch (NumberFormatException e) {
+                valid = false;
+            }
+            return new ValidationResult.Builder().subject(aSubject).input(aInput).valid(valid)
+                    .explanation(valid ? null : "not a number").build();
+        }
+    };
+
+    /** Processor property. */
+    public static final PropertyDescriptor CONFIDENCE_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Confidence Threshold")
+            .description("Specifies the maximum distance between a face and the closest training "
+                    + "image for the face to be recognised. The distance is reported as the "
+                    + "confidence of the prediction, so lower values are better. If not set, "
+                    + "every face with a predicted label is recognised.")
+            .required(false)
+            .addValidator(NUMBER_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor PREDICTION_COUNT = new PropertyDescriptor.Builder()
+            .name("Number of Predictions")
+            .description("Specifies how many of the closest labels are predicted for a face. "
+                    + "If greater than 1, every label and its confidence are written to the "
+                    + "face.N.label and face.N.confidence attributes, the closest first.")
+            .defaultValue("1")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Batch Size")
+            .description("Specifies the maximum number of video frames processed "
+                    + "in a single invocation of the processor.")
+            .defaultValue("1")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor METRICS_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Metrics Reporting Interval")
+            .description("Specifies how often the latency percentiles of the read, decode, "
+                    + "predict, save and transfer stages are computed and published as "
+                    + "counters, to the metrics file and through JMX.")
+            .defaultValue("1 min")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor METRICS_FILE = new PropertyDescriptor.Builder()
+            .name("Metrics File")
+            .description("Specifies the file where the latency percentiles are written in the "
+                    + "Prometheus text format, e.g. for the textfile collector of the node "
+                    + "exporter. If not set, no file is written.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor DETECT_FACES = new PropertyDescriptor.Builder()
+            .name("Detect Faces")
+            .description("Specifies whether faces are detected in the incoming video frames "
+                    + "with a cascade classifier. If true, every detected face is recognised "
+                    + "and emitted as a child FlowFile, and the frame is routed to original. "
+                    + "If false, every frame is expected to be a cropped face.")
+            .allowableValues(new HashSet<String>(Arrays.asList("true", "false")))
+            .defaultValue("false")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor CASCADE_FILE = new PropertyDescriptor.Builder()
+            .name("Cascade File")
+            .description("Specifies the Haar or LBP cascade detecting faces, e.g. "
+                    + "haarcascade_frontalface_default.xml or lbpcascade_frontalface.xml "
+                    + "from OpenCV. Required if faces are detected.")
+            .required(false)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor SCALE_FACTOR = new PropertyDescriptor.Builder()
+            .name("Detection Scale Factor")
+            .description("Specifies how much the frame is downscaled between two detection "
+                    + "scales. Must be greater than 1; lower values find more faces but are "
+                    + "slower.")
+            .defaultValue("1.1")
+            .required(true)
+            .addValidator(NUMBER_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor MIN_NEIGHBORS = new PropertyDescriptor.Builder()
+            .name("Detection Min Neighbors")
+            .description("Specifies how many overlapping detections a face needs to be kept; "
+                    + "higher values give fewer false detections.")
+            .defaultValue("3")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor MIN_FACE_SIZE = new PropertyDescriptor.Builder()
+            .name("Minimum Face Size")
+            .description("Specifies the minimum width and height of a detected face, "
+                    + "in pixels.")
+            .defaultValue("30")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor RESULT_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("Result Cache Size")
+            .description("Specifies how many recent predictions are cached, so that repeated "
+                    + "frames are answered without being recognised again. Identical frames "
+                    + "are matched by a hash of their content, before they are decoded. "
+                    + "0 disables the cache.")
+            .defaultValue("0")
+            .required(true)
+            .addValidator(StandardValidators.createLongValidator(0, RecognitionCache.MAX_SIZE,
+                    true))
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor RESULT_CACHE_TTL = new PropertyDescriptor.Builder()
+            .name("Result Cache TTL")
+            .description("Specifies how long a cached prediction is used.")
+            .defaultValue("10 sec")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor HASH_DISTANCE = new PropertyDescriptor.Builder()
+            .name("Perceptual Hash Distance")
+            .description("Specifies the maximum Hamming distance between the 64-bit perceptual "
+                    + "hashes of two faces for the cached prediction of one to be used for "
+                    + "the other. If not set, only identical frames are matched.")
+            .required(false)
+            .addValidator(StandardValidators.createLongValidator(0, 64, true))
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor RESIZE_FACES = new PropertyDescriptor.Builder()
+            .name("Resize Faces")
+            .description("Specifies whether faces are resized to the size of the training "
+                    + "images before prediction, which Eigen and Fisher face recognizers "
+                    + "require.")
+            .allowableValues(new HashSet<String>(Arrays.asList("true", "false")))
+            .defaultValue("true")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .build();
+
+    /** Processor property. */
+    public static final PropertyDescriptor EQUALIZATION = new PropertyDescriptor.Builder()
+            .name("Histogram Equalization")
+            .description("Specifies how the histogram of faces is equalized before prediction: "
+                    + "not at all, globally, or with contrast limited adaptive histogram "
+                    + "equalization (CLAHE). The training images are expected to be "
+                    + "equalized the same way.")
+            .allowableValues(FaceNormalizer.EQUALIZE_NONE, FaceNormalizer.EQUALIZE_GLOBAL,
+                    FaceNormalizer.EQUALIZE_CLAHE)
+            .defaultValue(FaceNormalizer.EQUALIZE_NONE)
+            .required(true)
+            .build();
+
+    /** Service providing the face model, or null if the processor trains its own. */
+    private volatile FaceModelService modelService;
+
+    /** Manager of the face model trained by the processor, or null. */
+    private volatile FaceModelManager modelManager;
+
+    /** Writer of interim results, or null if they are not saved. */
+    private volatile AsyncImageWriter imageWriter;
+
+    /** Number of frames seen by the image writer, for sampling. */
+    private final AtomicLong frameCount = new AtomicLong();
+
+    /** Cache of recent predictions, or null if disabled. */
+    private volatile RecognitionCache resultCache;
+
+    /** Perceptual hashers, one per thread. */
+    private final ThreadLocal<PerceptualHasher> hashers = new ThreadLocal<PerceptualHasher>() {
+        @Override
+        protected PerceptualHasher initialValue() {
+            return new PerceptualHasher();
+        }
+    };
+
+    /** Face normalizers, one per thread, or null if faces are not normalized. */
+    private volatile ThreadLocal<FaceNormalizer> faceNormalizers;
+
+    /** Face detectors, one per thread, or null if faces are not detected. */
+    private volatile ThreadLocal<FaceDetector> faceDetectors;
+
+    /** Latency histograms of the recognition stages. */
+    private volatile LatencyMetrics metrics;
+
+    /** Name of the latency MBean, or null if it is not registered. */
+    private ObjectName metricsName;
+
+    /** File with the latency percentiles, or null. */
+    private volatile File metricsFile;
+
+    /** Pool of decoded video frames. */
+    private final MatPool matPool = new MatPool(1);
+
+    /** Decoder of video frames, one per thread. */
+    private final ThreadLocal<FrameDecoder> decoder = new ThreadLocal<FrameDecoder>() {
+        @Override
+        protected FrameDecoder initialValue() {
+            return new FrameDecoder(matPool);
+        }
+    };
+
+    /** Converter for Frames and IplImages, one per thread. */
+    private static final ThreadLocal<OpenCVFrameConverter.ToIplImage> CONVERTER =
+            new ThreadLocal<OpenCVFrameConverter.ToIplImage>() {
+                @Override
+                protected OpenCVFrameConverter.ToIplImage initialValue() {
+                    return new OpenCVFrameConverter.ToIplImage();
+                }
+            };
+
+    /** Converter for byte arrays and images, one per thread. */
+    private static final ThreadLocal<Java2DFrameConverter> FLAT_CONVERTER =
+            new ThreadLocal<Java2DFrameConverter>() {
+                @Override
+                protected Java2DFrameConverter initialValue() {
+                    return new Java2DFrameConverter();
+                }
+            };
 
     /** List of processor properties. */
     private List<PropertyDescriptor> properties;
@@ -131,17 +641,47 @@ public class FaceRecognitionProcessor extends AbstractProcessor {
 
         final Set<Relationship> procRels = new HashSet<>();
         procRels.add(REL_SUCCESS);
+        procRels.add(REL_UNRECOGNIZED);
+        procRels.add(REL_FAILURE);
+        procRels.add(REL_ORIGINAL);
         relationships = Collections.unmodifiableSet(procRels);
 
         final List<PropertyDescriptor> supDescriptors = new ArrayList<>();
+        supDescriptors.add(FACE_MODEL_SERVICE);
         supDescriptors.add(TRAINING_SET);
         supDescriptors.add(FACE_RECOGNIZER);
         supDescriptors.add(SAVE_IMAGES);
+        supDescriptors.add(IMAGE_DIRECTORY);
+        supDescriptors.add(IMAGE_SAMPLING_RATE);
+        supDescriptors.add(IMAGE_QUEUE_SIZE);
+        supDescriptors.add(IMAGE_QUEUE_POLICY);
+        supDescriptors.add(MODEL_FILE);
+        supDescriptors.add(TRAINING_PARALLELISM);
+        supDescriptors.add(RELOAD_ON_CHANGE);
+        supDescriptors.add(RELOAD_DELAY);
+        supDescriptors.add(HNSW_M);
+        supDescriptors.add(HNSW_EF_SEARCH);
+        supDescriptors.add(PQ_SUBSPACES);
+        supDescriptors.add(PQ_RERANK);
+        supDescriptors.add(SEARCH_PARALLELISM);
+        supDescriptors.add(SEARCH_THRESHOLD);
+        supDescriptors.add(CONFIDENCE_THRESHOLD);
+        supDescriptors.add(PREDICTION_COUNT);
+        supDescriptors.add(BATCH_SIZE);
+        supDescriptors.add(METRICS_INTERVAL);
+        supDescriptors.add(METRICS_FILE);
+        supDescriptors.add(DETECT_FACES);
+        supDescriptors.add(CASCADE_FILE);
+        supDescriptors.add(SCALE_FACTOR);
+        supDescriptors.add(MIN_NEIGHBORS);
+        supDescriptors.add(MIN_FACE_SIZE);
+        supDescriptors.add(RESULT_CACHE_SIZE);
+        supDescriptors.add(RESULT_CACHE_TTL);
+        supDescriptors.add(HASH_DISTANCE);
+        supDescriptors.add(RESIZE_FACES);
+        supDescriptors.add(EQUALIZATION);
         properties = Collections.unmodifiableList(supDescriptors);
 
-        converter = new OpenCVFrameConverter.ToIplImage();
-        flatConverter = new Java2DFrameConverter();
-
         logger.info("Initialision complete!");
     }
 
@@ -161,6 +701,182 @@ public class FaceRecognitionProcessor extends AbstractProcessor {
         return properties;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext aContext) {
+
+        final List<ValidationResult> results = new ArrayList<>();
+        if (aContext.getProperty(DETECT_FACES).asBoolean()) {
+            if (!aContext.getProperty(CASCADE_FILE).isSet()) {
+                results.add(new ValidationResult.Builder().subject(CASCADE_FILE.getName())
+                        .valid(false).explanation("required if faces are detected").build());
+            }
+            String scaleFactor = aContext.getProperty(SCALE_FACTOR).getValue();
+            try {
+                if (Double.parseDouble(scaleFactor) <= 1) {
+                    results.add(new ValidationResult.Builder().subject(SCALE_FACTOR.getName())
+                            .input(scaleFactor).valid(false)
+                            .explanation("must be greater than 1").build());
+                }
+            } catch (NumberFormatException e) {
+                // reported by the validator of the property
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Looks up the face model service or starts training the face recognizer
+     * in background, so that the first incoming frame is not held up by the
+     * training. Processors with the same training settings share the face
+     * recognizer, see {@link FaceModelManager}.
+     *
+     * @param aContext process context
+     */
+    @OnScheduled
+    public void onScheduled(final ProcessContext aContext) {
+
+        // every task holds one frame at a time, the image writer up to a
+        // queue of frames plus the one being written
+        int poolCapacity = aContext.getMaxConcurrentTasks();
+        if (aContext.getProperty(SAVE_IMAGES).asBoolean()) {
+            int queueSize = aContext.getProperty(IMAGE_QUEUE_SIZE).asInteger();
+            poolCapacity += queueSize + 1;
+            imageWriter = new AsyncImageWriter(
+                    new File(aContext.getProperty(IMAGE_DIRECTORY).getValue()), queueSize,
+                    BLOCK.getValue().equals(aContext.getProperty(IMAGE_QUEUE_POLICY).getValue()),
+                    matPool, logger);
+        }
+        matPool.setCapacity(poolCapacity);
+
+        int cacheSize = aContext.getProperty(RESULT_CACHE_SIZE).asInteger();
+        resultCache = 0 == cacheSize ? null : new RecognitionCache(cacheSize,
+                aContext.getProperty(RESULT_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS),
+                aContext.getProperty(HASH_DISTANCE).isSet()
+                        ? aContext.getProperty(HASH_DISTANCE).asInteger() : -1);
+
+        final boolean resize = aContext.getProperty(RESIZE_FACES).asBoolean();
+        final String equalization = aContext.getProperty(EQUALIZATION).getValue();
+        faceNormalizers = null;
+        if (resize || !FaceNormalizer.EQUALIZE_NONE.equals(equalization)) {
+            faceNormalizers = new ThreadLocal<FaceNormalizer>() {
+                @Override
+                protected FaceNormalizer initialValue() {
+                    return new FaceNormalizer(resize, equalization);
+                }
+            };
+        }
+
+        faceDetectors = null;
+        if (aContext.getProperty(DETECT_FACES).asBoolean()) {
+            final String cascadeFile = aContext.getProperty(CASCADE_FILE).getValue();
+            final double scaleFactor = aContext.getProperty(SCALE_FACTOR).asDouble();
+            final int minNeighbors = aContext.getProperty(MIN_NEIGHBORS).asInteger();
+            final int minSize = aContext.getProperty(MIN_FACE_SIZE).asInteger();
+            try {
+                // fails early if the cascade cannot be loaded
+                new FaceDetector(cascadeFile, scaleFactor, minNeighbors, minSize).close();
+            } catch (IllegalArgumentException e) {
+                throw new ProcessException(e.getMessage(), e);
+            }
+            faceDetectors = new ThreadLocal<FaceDetector>() {
+                @Override
+                protected FaceDetector initialValue() {
+                    return new FaceDetector(cascadeFile, scaleFactor, minNeighbors, minSize);
+                }
+            };
+        }
+
+        metrics = new LatencyMetrics(
+                aContext.getProperty(METRICS_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS));
+        metricsFile = aContext.getProperty(METRICS_FILE).isSet()
+                ? new File(aContext.getProperty(METRICS_FILE).getValue()) : null;
+        try {
+            metricsName = new ObjectName("nifi.ekstream:type=FaceRecognitionProcessor,id="
+                    + getIdentifier());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            logger.warn("Failed to register the latency metrics MBean.", e);
+            metricsName = null;
+        }
+
+        if (aContext.getProperty(FACE_MODEL_SERVICE).isSet()) {
+            modelService = aContext.getProperty(FACE_MODEL_SERVICE)
+                    .asControllerService(FaceModelService.class);
+            return;
+        }
+
+        String trainingDir = aContext.getProperty(TRAINING_SET).getValue();
+        long reloadDelay = aContext.getProperty(RELOAD_ON_CHANGE).asBoolean()
+                ? aContext.getProperty(RELOAD_DELAY).asTimePeriod(TimeUnit.MILLISECONDS) : -1;
+        GallerySettings gallerySettings = GallerySettings.EXACT.withSharding(
+                aContext.getProperty(SEARCH_PARALLELISM).asInteger(),
+                aContext.getProperty(SEARCH_THRESHOLD).asInteger());
+        if (aContext.getProperty(HNSW_M).isSet()) {
+            gallerySettings = gallerySettings.withHnsw(aContext.getProperty(HNSW_M).asInteger(),
+                    aContext.getProperty(HNSW_EF_SEARCH).asInteger());
+        }
+        if (aContext.getProperty(PQ_SUBSPACES).isSet()) {
+            gallerySettings = gallerySettings.withProductQuantization(
+                    aContext.getProperty(PQ_SUBSPACES).asInteger(),
+                    aContext.getProperty(PQ_RERANK).asInteger());
+        }
+        try {
+            modelManager = FaceModelManager.acquire(trainingDir,
+                    aContext.getProperty(FACE_RECOGNIZER).getValue(),
+                    aContext.getProperty(MODEL_FILE).getValue(),
+                    aContext.getProperty(TRAINING_PARALLELISM).asInteger(), reloadDelay,
+                    gallerySettings, logger);
+        } catch (IOException e) {
+            throw new ProcessException("Cannot watch training images in " + trainingDir, e);
+        }
+    }
+
+    /**
+     * Releases the face recognizer, flushes pending interim results and
+     * frees pooled frames.
+     */
+    @OnStopped
+    public void onStopped() {
+
+        modelService = null;
+        if (null != modelManager) {
+            modelManager.release();
+            modelManager = null;
+        }
+        if (null != imageWriter) {
+            imageWriter.close();
+            imageWriter = null;
+        }
+        matPool.clear();
+
+        if (null != metricsName) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                logger.warn("Failed to unregister the latency metrics MBean.", e);
+            }
+            metricsName = null;
+        }
+    }
+
+    /**
+     * Returns the current face model.
+     *
+     * @return face model, or null while it is being built
+     */
+    private FaceModel getModel() {
+
+        FaceModelService service = modelService;
+        if (null != service) {
+            return service.getModel();
+        }
+        FaceModelManager manager = modelManager;
+        return null == manager ? null : manager.getModel();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -168,49 +884,273 @@ public class FaceRecognitionProcessor extends AbstractProcessor {
     public void onTrigger(final ProcessContext aContext, final ProcessSession aSession)
             throws ProcessException {
 
-        if (null == faceRecognizer) {
-            train(aContext.getProperty(TRAINING_SET).getValue(),
-                    aContext.getProperty(FACE_RECOGNIZER).getValue());
+        final FaceModel model = getModel();
+        if (null == model) {
+            aContext.yield();
+            return;
         }
 
-        FlowFile flowFile = aSession.get();
-        if (flowFile == null) {
+        final int batchSize = aContext.getProperty(BATCH_SIZE).asInteger();
+        final List<FlowFile> flowFiles = aSession.get(batchSize);
+        if (flowFiles.isEmpty()) {
             return;
         }
 
-        aSession.read(flowFile, new InputStreamCallback() {
+        final AsyncImageWriter writer = imageWriter;
+        final ThreadLocal<FaceDetector> detectors = faceDetectors;
+        final ThreadLocal<FaceNormalizer> normalizers = faceNormalizers;
+        final RecognitionCache cache = resultCache;
+        final LatencyMetrics latencies = metrics;
+        final String algorithm = model.getAlgorithm();
+        final int samplingRate = aContext.getProperty(IMAGE_SAMPLING_RATE).asInteger();
+        final int predictionCount = aContext.getProperty(PREDICTION_COUNT).asInteger();
+        final double threshold = aContext.getProperty(CONFIDENCE_THRESHOLD).isSet()
+                ? aContext.getProperty(CONFIDENCE_THRESHOLD).asDouble() : Double.MAX_VALUE;
 
-            @Override
-            public void process(final InputStream aStream) throws IOException {
+        // the decoder reuses its buffers, so every frame is recognised
+        // before the next one is decoded
+        for (final FlowFile flowFile : flowFiles) {
+
+            final List<Rect> boxes = new ArrayList<>();
+            final List<List<Prediction>> results = new ArrayList<>();
+            final boolean save = null != writer
+                    && frameCount.getAndIncrement() % samplingRate == 0;
+            final long start = System.nanoTime();
 
-                BufferedImage bufferedImage = ImageIO.read(aStream);
-                Frame frame = toFrame(bufferedImage);
-                Mat face = converter.convertToMat(frame);
+            try {
+                aSession.read(flowFile, new InputStreamCallback() {
 
-                int predictedLabel = faceRecognizer.predict(face);
+                    @Override
+                    public void process(final InputStream aStream) throws IOException {
 
-                logger.info("Predicted label: " + predictedLabel);
+                        FrameDecoder frameDecoder = decoder.get();
+                        int length = frameDecoder.read(aStream, flowFile.getSize());
+                        long read = System.nanoTime();
+                        latencies.record(algorithm, LatencyMetrics.READ, read - start);
+
+                        // identical frames are answered before being decoded,
+                        // unless the frame is to be saved
+                        Long hash = null;
+                        List<Prediction> cached = null;
+                        if (null != cache && null == detectors) {
+                            hash = frameDecoder.hash(length);
+                            cached = cache.get(hash, model);
+                            if (null != cached && !save) {
+                                results.add(cached);
+                                return;
+                            }
+                        }
+
+                        Mat frame = frameDecoder.decode(length);
+                        if (null == frame) {
+                            throw new IOException("Cannot decode video frame " + flowFile);
+                        }
+                        latencies.record(algorithm, LatencyMetrics.DECODE,
+                                System.nanoTime() - read);
+
+                        String name = flowFile.getAttribute(CoreAttributes.UUID.key());
+                        if (null == detectors) {
+                            recognise(frame, name, hash, cached);
+                            return;
+                        }
+
+                        try {
+                            long detection = System.nanoTime();
+                            FaceDetector detector = detectors.get();
+                            int count = detector.detect(frame);
+                            latencies.record(algorithm, LatencyMetrics.DETECT,
+                                    System.nanoTime() - detection);
+
+                            for (int i = 0; i < count; i++) {
+                                Rect box = detector.getFace(i);
+                                Mat face = matPool.acquire(box.height(), box.width(), CV_8UC1);
+                                Mat region = new Mat(frame, box);
+                                region.copyTo(face);
+                                region.deallocate();
+                                boxes.add(box);
+                                recognise(face, name + "-" + i, null, null);
+                            }
+                        } finally {
+                            matPool.release(frame);
+                        }
+                    }
+
+                    /**
+                     * Recognises a face, unless a similar one is cached, and
+                     * saves it if the frame is sampled. The face is handed
+                     * back to the pool in any case.
+                     *
+                     * @param aFace grayscale face
+                     * @param aName name of the face, for the saved image
+                     * @param aHash hash of the encoded frame, or null
+                     * @param aCached cached predictions, or null
+                     */
+                    private void recognise(final Mat aFace, final String aName, final Long aHash,
+                            final List<Prediction> aCached) {
+
+                        boolean submitted = false;
+                        try {
+                            long predicting = System.nanoTime();
+                            List<Prediction> predictions = aCached;
+                            long similarHash = 0;
+                            if (null == predictions && null != cache && cache.isPerceptual()) {
+                                similarHash = hashers.get().hash(aFace);
+                                predictions = cache.getSimilar(similarHash, model);
+                            }
+                            if (null == predictions) {
+                                Mat normalized = null == normalizers ? aFace
+                                        : normalizers.get().normalize(aFace, model);
+                                predictions = model.predict(normalized, predictionCount);
+                                if (null != aHash) {
+                                    cache.put(aHash, model, predictions);
+                                }
+                                if (null != cache && cache.isPerceptual()) {
+                                    cache.putSimilar(similarHash, model, predictions);
+                                }
+                            }
+                            results.add(predictions);
+                            long predicted = System.nanoTime();
+                            latencies.record(algorithm, LatencyMetrics.PREDICT,
+                                    predicted - predicting);
+
+                            if (save) {
+                                // the writer hands the face back to the pool
+                                submitted = true;
+                                if (!writer.submit(aName + "-" + predictions.get(0).getLabel()
+                                        + ".png", aFace)) {
+                                    aSession.adjustCounter("Dropped images", 1, false);
+                                }
+                                latencies.record(algorithm, LatencyMetrics.SAVE,
+                                        System.nanoTime() - predicted);
+                            }
+                        } finally {
+                            if (!submitted) {
+                                matPool.release(aFace);
+                            }
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                logger.error("Failed to recognise " + flowFile, e);
+                aSession.transfer(flowFile, REL_FAILURE);
+                continue;
+            }
 
-                if (aContext.getProperty(SAVE_IMAGES).asBoolean()) {
-                    opencv_imgcodecs.cvSaveImage(System.currentTimeMillis() + "-reognised.png",
-                            converter.convert(frame));
+            long recognised = System.nanoTime();
+            long latency = recognised - start;
+            if (logger.isDebugEnabled()) {
+                logger.debug("Predicted: {}", new Object[] {results});
+            }
+
+            if (null == detectors) {
+                transfer(aSession, flowFile, results.get(0), algorithm, latency, predictionCount,
+                        threshold);
+            } else {
+                for (int i = 0; i < results.size(); i++) {
+                    Rect box = boxes.get(i);
+                    Map<String, String> attributes = new HashMap<>();
+                    attributes.put(FACE_INDEX_ATTRIBUTE, String.valueOf(i));
+                    attributes.put(FACE_COUNT_ATTRIBUTE, String.valueOf(results.size()));
+                    attributes.put(FACE_X_ATTRIBUTE, String.valueOf(box.x()));
+                    attributes.put(FACE_Y_ATTRIBUTE, String.valueOf(box.y()));
+                    attributes.put(FACE_WIDTH_ATTRIBUTE, String.valueOf(box.width()));
+                    attributes.put(FACE_HEIGHT_ATTRIBUTE, String.valueOf(box.height()));
+                    FlowFile child = aSession.putAllAttributes(aSession.create(flowFile),
+                            attributes);
+                    transfer(aSession, child, results.get(i), algorithm, latency,
+                            predictionCount, threshold);
                 }
+                aSession.transfer(aSession.putAttribute(flowFile, FACE_COUNT_ATTRIBUTE,
+                        String.valueOf(results.size())), REL_ORIGINAL);
             }
-        });
+            latencies.record(algorithm, LatencyMetrics.TRANSFER, System.nanoTime() - recognised);
+        }
 
-        //aSession.transfer(flowFile, REL_SUCCESS);
+        long hits = matPool.takeHits();
+        long misses = matPool.takeMisses();
+        if (hits > 0) {
+            aSession.adjustCounter("Frame pool hits", hits, false);
+        }
+        if (misses > 0) {
+            aSession.adjustCounter("Frame pool misses", misses, false);
+        }
+        if (null != cache) {
+            hits = cache.takeHits();
+            misses = cache.takeMisses();
+            if (hits > 0) {
+                aSession.adjustCounter("Result cache hits", hits, false);
+            }
+            if (misses > 0) {
+                aSession.adjustCounter("Result cache misses", misses, false);
+            }
+        }
 
+        if (latencies.isDue()) {
+            for (Map.Entry<String, Long> counter : latencies.report().entrySet()) {
+                aSession.adjustCounter(counter.getKey(), counter.getValue(), false);
+            }
+            File file = metricsFile;
+            if (null != file) {
+                try {
+                    latencies.writePrometheus(file);
+                } catch (IOException e) {
+                    logger.warn("Failed to write the latency metrics to " + file, e);
+                }
+            }
+        }
     }
 
     /**
-     * Trains the face recognizer.
+     * Writes the predictions for a face to the attributes of a FlowFile and
+     * routes it by confidence.
      *
-     * @param aTrainingDir directory with training images
+     * @param aSession process session
+     * @param aFlowFile FlowFile of the face
+     * @param aPredictions predictions, the closest first
      * @param aAlgorithm face recognition algorithm
+     * @param aLatency time spent decoding and recognising the frame
+     * @param aPredictionCount number of requested predictions
+     * @param aThreshold confidence threshold
+     */
+    private static void transfer(final ProcessSession aSession, final FlowFile aFlowFile,
+            final List<Prediction> aPredictions, final String aAlgorithm, final long aLatency,
+            final int aPredictionCount, final double aThreshold) {
+
+        Prediction best = aPredictions.get(0);
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put(LABEL_ATTRIBUTE, String.valueOf(best.getLabel()));
+        attributes.put(CONFIDENCE_ATTRIBUTE, String.valueOf(best.getConfidence()));
+        attributes.put(ALGORITHM_ATTRIBUTE, aAlgorithm);
+        attributes.put(LATENCY_ATTRIBUTE, String.valueOf(aLatency));
+        if (aPredictionCount > 1) {
+            for (int i = 0; i < aPredictions.size(); i++) {
+                attributes.put("face." + (i + 1) + ".label",
+                        String.valueOf(aPredictions.get(i).getLabel()));
+                attributes.put("face." + (i + 1) + ".confidence",
+                        String.valueOf(aPredictions.get(i).getConfidence()));
+            }
+        }
+        FlowFile result = aSession.putAllAttributes(aFlowFile, attributes);
+
+        if (best.getLabel() < 0 || best.getConfidence() > aThreshold) {
+            aSession.transfer(result, REL_UNRECOGNIZED);
+        } else {
+            aSession.transfer(result, REL_SUCCESS);
+        }
+    }
+
+    /**
+     * Lists training images in a directory.
+     *
+     * @param aTrainingDir directory with training images, or gallery file
+     * @return training images, or the gallery file alone
      */
-    public static void train(final String aTrainingDir, final String aAlgorithm) {
+    public static File[] listImages(final String aTrainingDir) {
 
         File root = new File(aTrainingDir);
+        if (PackedTrainingSet.isPacked(root)) {
+            return new File[] {root};
+        }
 
         FilenameFilter imgFilter = new FilenameFilter() {
             @Override
@@ -221,34 +1161,62 @@ public class FaceRecognitionProcessor extends AbstractProcessor {
         };
 
         File[] imageFiles = root.listFiles(imgFilter);
-
-        MatVector images = new MatVector(imageFiles.length);
-
-        Mat labels = new Mat(imageFiles.length, 1, CV_32SC1);
-        IntBuffer labelsBuf = labels.createBuffer();
-
-        for (int i = 0; i < imageFiles.length; i++) {
-
-            Mat img = opencv_imgcodecs.imread(imageFiles[i].getAbsolutePath(),
-                    opencv_imgcodecs.CV_LOAD_IMAGE_GRAYSCALE);
-
-            int label = Integer.parseInt(imageFiles[i].getName().split("\\-")[0]);
-            images.put(i, img);
-            labelsBuf.put(i, label);
+        if (null == imageFiles) {
+            throw new ProcessException("Cannot read training images from " + root);
         }
+        return imageFiles;
+    }
+
+    /**
+     * Creates an untrained face recognizer.
+     *
+     * @param aAlgorithm face recognition algorithm
+     * @return face recognizer
+     */
+    public static FaceRecognizer createRecognizer(final String aAlgorithm) {
 
         switch (aAlgorithm) {
-        case "Fisher":
-            faceRecognizer = opencv_face.createFisherFaceRecognizer();
         case "Eigen":
-            faceRecognizer = opencv_face.createEigenFaceRecognizer();
+        case "JavaEigen":
+            return opencv_face.createEigenFaceRecognizer();
         case "LBPH":
-            faceRecognizer = opencv_face.createLBPHFaceRecognizer();
+        case "JavaLBPH":
+            return opencv_face.createLBPHFaceRecognizer();
+        case "Fisher":
+        case "JavaFisher":
         default:
-            faceRecognizer = opencv_face.createFisherFaceRecognizer();
+            return opencv_face.createFisherFaceRecognizer();
         }
+    }
 
-        faceRecognizer.train(images, labels);
+    /**
+     * Trains a face recognizer.
+     *
+     * @param aTrainingDir directory with training images
+     * @param aAlgorithm face recognition algorithm
+     * @return trained face recognizer
+     */
+    public static FaceRecognizer train(final String aTrainingDir, final String aAlgorithm) {
+        return train(listImages(aTrainingDir), aAlgorithm,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Trains a face recognizer.
+     *
+     * @param aImageFiles training images, named "&lt;label&gt;-..."
+     * @param aAlgorithm face recognition algorithm
+     * @param aParallelism number of threads decoding training images
+     * @return trained face recognizer
+     */
+    public static FaceRecognizer train(final File[] aImageFiles, final String aAlgorithm,
+            final int aParallelism) {
+
+        TrainingSet trainingSet = TrainingSet.load(aImageFiles, aParallelism);
+
+        FaceRecognizer result = createRecognizer(aAlgorithm);
+        trainingSet.train(result);
+        return result;
     }
 
     /**
@@ -260,7 +1228,7 @@ public class FaceRecognitionProcessor extends AbstractProcessor {
      */
     public static byte[] toByteArray(final IplImage aImage) throws IOException {
 
-        BufferedImage result = flatConverter.convert(converter.convert(aImage));
+        BufferedImage result = FLAT_CONVERTER.get().convert(CONVERTER.get().convert(aImage));
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ImageIO.write(result, "png", baos);
         baos.flush();
@@ -279,7 +1247,7 @@ public class FaceRecognitionProcessor extends AbstractProcessor {
      */
     public static byte[] toByteArray(final Frame aFrame) throws IOException {
 
-        BufferedImage result = flatConverter.convert(aFrame);
+        BufferedImage result = FLAT_CONVERTER.get().convert(aFrame);
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ImageIO.write(result, "png", baos);
         baos.flush();
@@ -298,7 +1266,7 @@ public class FaceRecognitionProcessor extends AbstractProcessor {
      */
     public static Frame toFrame(final BufferedImage aImage) throws IOException {
 
-        Frame result = flatConverter.convert(aImage);
+        Frame result = FLAT_CONVERTER.get().convert(aImage);
         return result;
     }
 
@@ -311,7 +1279,8 @@ public class FaceRecognitionProcessor extends AbstractProcessor {
      */
     public static IplImage toIplImage(final BufferedImage aImage) throws IOException {
 
-        IplImage result = converter.convertToIplImage(flatConverter.convert(aImage));
+        IplImage result = CONVERTER.get().convertToIplImage(
+                FLAT_CONVERTER.get().convert(aImage));
         return result;
     }
 }
@@ -0,0 +1,272 @@
+package nifi;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+import org.bytedeco.javacpp.opencv_imgcodecs;
+import org.bytedeco.javacpp.opencv_imgproc;
+import org.bytedeco.javacv.Java2DFrameConverter;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+
+/**
+ * Decodes encoded video frames into grayscale images.
+ * <p>
+ * Frames are copied through a small reused heap chunk into a reused direct
+ * buffer and decoded natively by {@code imdecode}, so reading a frame
+ * allocates nothing. Only formats OpenCV cannot read are decoded through
+ * ImageIO and Java2D, which copies the frame into a heap array.
+ * <p>
+ * Decoded images are taken from a {@link MatPool}, assuming that a frame
+ * has the geometry of the previous one, and must be handed back to the pool
+ * by the caller. As {@code imdecode} leaves the image untouched when no
+ * decoder can read a frame, the image is cleared before every frame, so
+ * that the pixels of a previous frame are never taken for a decoded one.
+ * <p>
+ * The decoder is not thread-safe, every thread needs its own instance.
+ */
+public class FrameDecoder {
+
+    /** Initial capacity of the read buffer, in bytes. */
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /** Size of the chunks a frame is copied in, in bytes. */
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    /** Chunk a frame is copied through into the read buffer. */
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    /** Read buffer, off-heap and reused across frames. */
+    private ByteBuffer buffer;
+
+    /** Native view of the read buffer. */
+    private BytePointer pointer;
+
+    /** Fill of an image before decoding. */
+    private final Scalar black = Scalar.all(0);
+
+    /** Fill telling an untouched image from a decoded black frame. */
+    private final Scalar white = Scalar.all(255);
+
+    /** Pool of decoded images. */
+    private final MatPool pool;
+
+    /** Number of rows of the previous frame, 0 if none. */
+    private int rows;
+
+    /** Number of columns of the previous frame, 0 if none. */
+    private int cols;
+
+    /** Converter for Frames and Mats, used by the fallback path only. */
+    private OpenCVFrameConverter.ToMat converter;
+
+    /** Converter for buffered images and Frames, used by the fallback path only. */
+    private Java2DFrameConverter flatConverter;
+
+    /**
+     * Constructor.
+     *
+     * @param aPool pool of decoded images
+     */
+    public FrameDecoder(final MatPool aPool) {
+        pool = aPool;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Decodes a frame into a grayscale image.
+     *
+     * @param aStream encoded frame
+     * @param aSize size of the encoded frame in bytes
+     * @return grayscale image, to be handed back to the pool, or null if the
+     *         frame cannot be decoded
+     * @throws IOException exception
+     */
+    public Mat decode(final InputStream aStream, final long aSize) throws IOException {
+        return decode(read(aStream, aSize));
+    }
+
+    /**
+     * Reads an encoded frame into the read buffer.
+     *
+     * @param aStream encoded frame
+     * @param aSize size of the encoded frame in bytes
+     * @return number of bytes read
+     * @throws IOException exception
+     */
+    public int read(final InputStream aStream, final long aSize) throws IOException {
+
+        if (aSize > Integer.MAX_VALUE) {
+            throw new IOException("Frame of " + aSize + " bytes is too large.");
+        }
+        if (aSize > buffer.capacity()) {
+            allocate((int) Math.min(Integer.MAX_VALUE, Math.max(aSize, 2L * buffer.capacity())));
+        }
+
+        // never reads past the frame, which may be followed by others
+        buffer.clear();
+        int remaining = (int) aSize;
+        while (remaining > 0) {
+            int read = aStream.read(chunk, 0, Math.min(remaining, CHUNK_SIZE));
+            if (read < 0) {
+                break;
+            }
+            buffer.put(chunk, 0, read);
+            remaining -= read;
+        }
+        buffer.flip();
+        return buffer.limit();
+    }
+
+    /**
+     * Computes a 64-bit hash of the frame in the read buffer, a variant of
+     * MurmurHash64 reading 8 bytes at a time.
+     *
+     * @param aLength number of bytes read by {@link #read(InputStream, long)}
+     * @return hash of the encoded frame
+     */
+    public long hash(final int aLength) {
+
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+
+        long h = aLength * m;
+        int i = 0;
+        for (; i + Long.BYTES <= aLength; i += Long.BYTES) {
+            long k = buffer.getLong(i);
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+        for (; i < aLength; i++) {
+            h ^= (buffer.get(i) & 0xFFL) << (8 * (i & 7));
+        }
+        h *= m;
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+
+    /**
+     * Decodes the frame in the read buffer into a grayscale image.
+     *
+     * @param aLength number of bytes read by {@link #read(InputStream, long)}
+     * @return grayscale image, to be handed back to the pool, or null if the
+     *         frame cannot be decoded
+     * @throws IOException exception
+     */
+    public Mat decode(final int aLength) throws IOException {
+
+        if (0 == aLength) {
+            return null;
+        }
+
+        // imdecode reallocates the image only if the geometry has changed
+        Mat result = pool.acquire(rows, cols, CV_8UC1);
+        Mat encoded = new Mat(1, aLength, CV_8UC1, pointer);
+        boolean decoded = imdecode(encoded, result);
+        encoded.deallocate();
+
+        if (!decoded) {
+            pool.release(result);
+            result = decodeJava2D(aLength);
+            if (null == result) {
+                return null;
+            }
+        }
+        rows = result.rows();
+        cols = result.cols();
+        return result;
+    }
+
+    /**
+     * Decodes a frame natively into an image of any content.
+     *
+     * @param aEncoded encoded frame
+     * @param aResult grayscale image, possibly reallocated
+     * @return true if the frame has been decoded, false if the image has been
+     *         left untouched or released
+     */
+    private boolean imdecode(final Mat aEncoded, final Mat aResult) {
+
+        if (!aResult.empty()) {
+            aResult.put(black);
+        }
+        opencv_imgcodecs.imdecode(aEncoded, opencv_imgcodecs.IMREAD_GRAYSCALE, aResult);
+        if (aResult.empty()) {
+            return false;
+        }
+        if (0 != opencv_core.countNonZero(aResult)) {
+            return true;
+        }
+
+        // a black frame, or a frame no decoder can read, decoded again over
+        // a white image
+        aResult.put(white);
+        opencv_imgcodecs.imdecode(aEncoded, opencv_imgcodecs.IMREAD_GRAYSCALE, aResult);
+        return !aResult.empty() && 0 == opencv_core.countNonZero(aResult);
+    }
+
+    /**
+     * Decodes the frame in the read buffer through ImageIO and Java2D.
+     *
+     * @param aLength length of the encoded frame in bytes
+     * @return grayscale image, or null if the frame cannot be decoded
+     * @throws IOException exception
+     */
+    private Mat decodeJava2D(final int aLength) throws IOException {
+
+        byte[] bytes = new byte[aLength];
+        buffer.get(bytes);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (null == image) {
+            return null;
+        }
+
+        if (null == converter) {
+            converter = new OpenCVFrameConverter.ToMat();
+            flatConverter = new Java2DFrameConverter();
+        }
+
+        // the converter output is reused by the next conversion, so it is
+        // copied or converted into an image owned by the caller
+        Mat mat = converter.convertToMat(flatConverter.convert(image));
+        Mat result = new Mat();
+        switch (mat.channels()) {
+        case 3:
+            opencv_imgproc.cvtColor(mat, result, opencv_imgproc.COLOR_BGR2GRAY);
+            break;
+        case 4:
+            opencv_imgproc.cvtColor(mat, result, opencv_imgproc.COLOR_BGRA2GRAY);
+            break;
+        default:
+            mat.copyTo(result);
+            break;
+        }
+        return result;
+    }
+
+    /**
+     * Allocates the read buffer.
+     *
+     * @param aCapacity capacity in bytes
+     */
+    private void allocate(final int aCapacity) {
+        buffer = ByteBuffer.allocateDirect(aCapacity);
+        pointer = new BytePointer(buffer);
+    }
+}
@@ -0,0 +1,121 @@
+package nifi;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_face.BasicFaceRecognizer;
+import org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+import org.bytedeco.javacpp.opencv_face.LBPHFaceRecognizer;
+
+/**
+ * The training samples stored by a trained face recognizer, searched from
+ * Java for the closest labels of a face.
+ * <p>
+ * A gallery reads the model of the face recognizer in place and does not
+ * modify it, so it is safe for concurrent use.
+ */
+public abstract class Gallery {
+
+    /**
+     * Creates the gallery of a trained face recognizer.
+     *
+     * @param aRecognizer trained face recognizer
+     * @return gallery, or null if the face recognizer is not supported
+     */
+    public static Gallery of(final FaceRecognizer aRecognizer) {
+
+        if (aRecognizer instanceof BasicFaceRecognizer) {
+            return new SubspaceGallery((BasicFaceRecognizer) aRecognizer);
+        }
+        if (aRecognizer instanceof LBPHFaceRecognizer) {
+            return new LbphGallery((LBPHFaceRecognizer) aRecognizer);
+        }
+        return null;
+    }
+
+    /**
+     * Creates the gallery of a face model, which is the Java engine of the
+     * algorithm, if any.
+     *
+     * @param aRecognizer trained face recognizer
+     * @param aAlgorithm face recognition algorithm
+     * @return gallery, or null if the face recognizer is not supported
+     */
+    public static Gallery of(final FaceRecognizer aRecognizer, final String aAlgorithm) {
+
+        if (FaceRecognitionProcessor.JAVA_LBPH.getValue().equals(aAlgorithm)
+                && aRecognizer instanceof LBPHFaceRecognizer) {
+            return new LbphEngine((LBPHFaceRecognizer) aRecognizer);
+        }
+        if ((FaceRecognitionProcessor.JAVA_EIGEN.getValue().equals(aAlgorithm)
+                || FaceRecognitionProcessor.JAVA_FISHER.getValue().equals(aAlgorithm))
+                && aRecognizer instanceof BasicFaceRecognizer) {
+            return new SubspaceEngine((BasicFaceRecognizer) aRecognizer);
+        }
+        return of(aRecognizer);
+    }
+
+    /**
+     * Searches the closest labels of a face.
+     *
+     * @param aFace grayscale face, of the size of the training images
+     * @param aResult closest labels, collected up to its capacity
+     */
+    public abstract void search(Mat aFace, TopK aResult);
+
+    /**
+     * Returns the number of training samples.
+     *
+     * @return number of training samples
+     */
+    public abstract int size();
+
+    /**
+     * Reads the pixels of a grayscale image.
+     *
+     * @param aImage grayscale image
+     * @return pixels, row by row
+     */
+    protected static byte[] pixels(final Mat aImage) {
+        return pixels(aImage, new byte[0]);
+    }
+
+    /**
+     * Reads the pixels of a grayscale image into an array, if it is large
+     * enough.
+     *
+     * @param aImage grayscale image
+     * @param aPixels array to reuse
+     * @return pixels, row by row, either in the given array or in a new one
+     */
+    protected static byte[] pixels(final Mat aImage, final byte[] aPixels) {
+
+        if (aImage.type() != CV_8UC1) {
+            throw new IllegalArgumentException("Expected a grayscale image, got type "
+                    + aImage.type());
+        }
+        Mat image = aImage.isContinuous() ? aImage : aImage.clone();
+        ByteBuffer buffer = image.createBuffer();
+        int total = (int) image.total();
+        byte[] result = aPixels.length >= total ? aPixels : new byte[total];
+        buffer.get(result, 0, total);
+        return result;
+    }
+
+    /**
+     * Reads the labels of a trained face recognizer.
+     *
+     * @param aLabels labels, a CV_32SC1 row or column
+     * @return labels
+     */
+    protected static int[] labels(final Mat aLabels) {
+
+        IntBuffer buffer = aLabels.createBuffer();
+        int[] result = new int[(int) aLabels.total()];
+        buffer.get(result);
+        return result;
+    }
+}
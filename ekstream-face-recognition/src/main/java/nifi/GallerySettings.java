@@ -0,0 +1,184 @@
+package nifi;
+
+/**
+ * How the gallery of a face model is searched, beyond the algorithm: by
+ * default every training image is compared with the face, optionally an
+ * approximate nearest-neighbour index is searched instead, or the training
+ * images are compressed by product quantization. An index takes precedence
+ * over quantization. Scans of large galleries can be split into shards
+ * searched in parallel.
+ * <p>
+ * Settings are immutable; every option returns a copy.
+ */
+public final class GallerySettings {
+
+    /** Exact search. */
+    public static final GallerySettings EXACT = new GallerySettings(0, 0, 0, 0, 1, 0);
+
+    /** Beam width while building an HNSW index. */
+    public static final int HNSW_EF_CONSTRUCTION = 200;
+
+    /** Maximum number of neighbours in the HNSW index, or 0 for no index. */
+    private final int hnswM;
+
+    /** Beam width of an HNSW search. */
+    private final int hnswEfSearch;
+
+    /** Number of product quantization subspaces, or 0 for no quantization. */
+    private final int pqSubspaces;
+
+    /** Number of candidates re-ranked after a quantized scan. */
+    private final int pqRerank;
+
+    /** Number of threads scanning a gallery. */
+    private final int searchParallelism;
+
+    /** Minimum number of training images scanned in parallel. */
+    private final int parallelThreshold;
+
+    /**
+     * Constructor.
+     *
+     * @param aHnswM maximum number of neighbours in the HNSW index, or 0
+     * @param aHnswEfSearch beam width of an HNSW search
+     * @param aPqSubspaces number of product quantization subspaces, or 0
+     * @param aPqRerank number of candidates re-ranked after a quantized scan
+     * @param aSearchParallelism number of threads scanning a gallery
+     * @param aParallelThreshold minimum number of training images scanned in
+     *            parallel
+     */
+    private GallerySettings(final int aHnswM, final int aHnswEfSearch, final int aPqSubspaces,
+            final int aPqRerank, final int aSearchParallelism, final int aParallelThreshold) {
+        hnswM = aHnswM;
+        hnswEfSearch = aHnswEfSearch;
+        pqSubspaces = aPqSubspaces;
+        pqRerank = aPqRerank;
+        searchParallelism = aSearchParallelism;
+        parallelThreshold = aParallelThreshold;
+    }
+
+    /**
+     * Returns settings searching an HNSW index. The index applies to the
+     * Java Eigen and Fisher engines.
+     *
+     * @param aM maximum number of neighbours of a node, or 0 for no index
+     * @param aEfSearch beam width of a search
+     * @return settings
+     */
+    public GallerySettings withHnsw(final int aM, final int aEfSearch) {
+        return new GallerySettings(aM, aEfSearch, pqSubspaces, pqRerank, searchParallelism,
+                parallelThreshold);
+    }
+
+    /**
+     * Returns settings compressing the training images by product
+     * quantization. Quantization applies to the Java Eigen and Fisher
+     * engines.
+     *
+     * @param aSubspaces number of subspaces, i.e. bytes per training image,
+     *            or 0 for no quantization
+     * @param aRerank number of candidates re-ranked
+     * @return settings
+     */
+    public GallerySettings withProductQuantization(final int aSubspaces, final int aRerank) {
+        return new GallerySettings(hnswM, hnswEfSearch, aSubspaces, aRerank, searchParallelism,
+                parallelThreshold);
+    }
+
+    /**
+     * Returns settings scanning large galleries in parallel shards. Sharding
+     * applies to the scans of the Java engines, not to HNSW searches.
+     *
+     * @param aParallelism number of threads scanning a gallery, 1 for none
+     * @param aThreshold minimum number of training images scanned in
+     *            parallel
+     * @return settings
+     */
+    public GallerySettings withSharding(final int aParallelism, final int aThreshold) {
+        return new GallerySettings(hnswM, hnswEfSearch, pqSubspaces, pqRerank, aParallelism,
+                aThreshold);
+    }
+
+    /**
+     * Tells whether an HNSW index is searched.
+     *
+     * @return true if an HNSW index is searched
+     */
+    public boolean isHnsw() {
+        return hnswM > 0;
+    }
+
+    /**
+     * Tells whether the training images are compressed by product
+     * quantization.
+     *
+     * @return true if they are quantized and no HNSW index is searched
+     */
+    public boolean isQuantized() {
+        return pqSubspaces > 0 && !isHnsw();
+    }
+
+    /**
+     * Returns the maximum number of neighbours of a node in the HNSW index.
+     *
+     * @return M, or 0 for no index
+     */
+    public int getHnswM() {
+        return hnswM;
+    }
+
+    /**
+     * Returns the beam width of an HNSW search.
+     *
+     * @return efSearch
+     */
+    public int getHnswEfSearch() {
+        return hnswEfSearch;
+    }
+
+    /**
+     * Returns the number of product quantization subspaces.
+     *
+     * @return number of subspaces, or 0 for no quantization
+     */
+    public int getPqSubspaces() {
+        return pqSubspaces;
+    }
+
+    /**
+     * Returns the number of candidates re-ranked after a quantized scan.
+     *
+     * @return number of candidates
+     */
+    public int getPqRerank() {
+        return pqRerank;
+    }
+
+    /**
+     * Returns the number of threads scanning a gallery.
+     *
+     * @return number of threads, 1 for a sequential scan
+     */
+    public int getSearchParallelism() {
+        return searchParallelism;
+    }
+
+    /**
+     * Returns the minimum number of training images scanned in parallel.
+     *
+     * @return number of training images
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "hnswM=" + hnswM + " hnswEfSearch=" + hnswEfSearch + " pqSubspaces="
+                + pqSubspaces + " pqRerank=" + pqRerank + " searchParallelism="
+                + searchParallelism + " parallelThreshold=" + parallelThreshold;
+    }
+}
@@ -0,0 +1,696 @@
+package nifi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A hierarchical navigable small world (HNSW) graph over a set of vectors,
+ * answering approximate nearest-neighbour queries by Euclidean distance in
+ * logarithmic rather than linear time.
+ * <p>
+ * Every vector is a node on layer 0 and, with exponentially decreasing
+ * probability, on the layers above. A query descends greedily from the
+ * single node of the top layer and then explores layer 0 with a beam of
+ * {@code efSearch} candidates; a wider beam finds the exact neighbour more
+ * often but visits more nodes. Nodes keep up to {@code m} neighbours per
+ * upper layer and {@code 2 m} on layer 0, chosen by the diversity heuristic
+ * of the HNSW paper, which keeps the graph connected across clusters such
+ * as the identities of a gallery.
+ * <p>
+ * The graph is built once and immutable afterwards. Searches are safe for
+ * concurrent use; every thread has its own working arrays, so a search
+ * allocates nothing once they have grown to the beam width. The graph can
+ * be written and read back, the vectors are not part of it.
+ */
+public final class HnswIndex {
+
+    /** Magic number of a serialized graph, "HNSW". */
+    private static final int MAGIC = 0x484E5357;
+
+    /** Version of the serialized graph. */
+    private static final int VERSION = 1;
+
+    /** Seed of the level generator, so that a graph is rebuilt identically. */
+    private static final long SEED = 42;
+
+    /** Highest layer a node can be on. */
+    private static final int MAX_LEVEL = 16;
+
+    /** Vectors, one after the other. */
+    private final float[] vectors;
+
+    /** Number of dimensions of a vector. */
+    private final int dimensions;
+
+    /** Number of vectors. */
+    private final int size;
+
+    /** Maximum number of neighbours of a node on the upper layers. */
+    private final int m;
+
+    /** Beam width while building the graph. */
+    private final int efConstruction;
+
+    /** Checksum of the vectors, to tell whether a stored graph matches them. */
+    private final long checksum;
+
+    /** Highest layer of every node. */
+    private final int[] levels;
+
+    /** Neighbours on layer 0, 2 m + 1 ints per node: count, then the ids. */
+    private final int[] links0;
+
+    /**
+     * Neighbours on the upper layers, m + 1 ints per node and layer from 1:
+     * count, then the ids; null for nodes on layer 0 only.
+     */
+    private final int[][] upperLinks;
+
+    /** Node of the top layer, where searches start, or -1 if empty. */
+    private int entryPoint = -1;
+
+    /** Top layer. */
+    private int maxLevel;
+
+    /** Working arrays, one set per thread. */
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(size);
+        }
+    };
+
+    /**
+     * Constructor of an empty graph.
+     *
+     * @param aVectors vectors, one after the other
+     * @param aDimensions number of dimensions of a vector
+     * @param aM maximum number of neighbours of a node on the upper layers
+     * @param aEfConstruction beam width while building the graph
+     */
+    private HnswIndex(final float[] aVectors, final int aDimensions, final int aM,
+            final int aEfConstruction) {
+
+        vectors = aVectors;
+        dimensions = aDimensions;
+        size = 0 == aDimensions ? 0 : aVectors.length / aDimensions;
+        m = aM;
+        efConstruction = aEfConstruction;
+        checksum = checksum(aVectors);
+        levels = new int[size];
+        links0 = new int[size * (2 * aM + 1)];
+        upperLinks = new int[size][];
+    }
+
+    /**
+     * Builds the graph of a set of vectors.
+     *
+     * @param aVectors vectors, one after the other
+     * @param aDimensions number of dimensions of a vector
+     * @param aM maximum number of neighbours of a node on the upper layers,
+     *            at least 2
+     * @param aEfConstruction beam width while building the graph
+     * @return graph
+     */
+    public static HnswIndex build(final float[] aVectors, final int aDimensions, final int aM,
+            final int aEfConstruction) {
+
+        if (aM < 2) {
+            throw new IllegalArgumentException("M must be at least 2, got " + aM);
+        }
+        HnswIndex result = new HnswIndex(aVectors, aDimensions, aM, aEfConstruction);
+        Random random = new Random(SEED);
+        double levelFactor = 1 / Math.log(aM);
+        for (int i = 0; i < result.size; i++) {
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+            result.insert(i, Math.min(level, MAX_LEVEL));
+        }
+        return result;
+    }
+
+    /**
+     * Reads a graph written by {@link #write(DataOutputStream)}, if it has
+     * been built over the given vectors with the given parameters.
+     *
+     * @param aIn input
+     * @param aVectors vectors, one after the other
+     * @param aDimensions number of dimensions of a vector
+     * @param aM maximum number of neighbours of a node on the upper layers
+     * @param aEfConstruction beam width while building the graph
+     * @return graph, or null if it does not match
+     * @throws IOException if the input is not a graph
+     */
+    public static HnswIndex read(final DataInputStream aIn, final float[] aVectors,
+            final int aDimensions, final int aM, final int aEfConstruction) throws IOException {
+
+        if (MAGIC != aIn.readInt() || VERSION != aIn.readInt()) {
+            throw new IOException("Not an HNSW graph.");
+        }
+        HnswIndex result = new HnswIndex(aVectors, aDimensions, aM, aEfConstruction);
+        if (aIn.readInt() != result.size || aIn.readInt() != aDimensions
+                || aIn.readInt() != aM || aIn.readInt() != aEfConstruction
+                || aIn.readLong() != result.checksum) {
+            return null;
+        }
+
+        result.entryPoint = aIn.readInt();
+        result.maxLevel = aIn.readInt();
+        for (int i = 0; i < result.size; i++) {
+            result.levels[i] = aIn.readInt();
+            if (result.levels[i] < 0 || result.levels[i] > MAX_LEVEL) {
+                throw new IOException("Corrupt HNSW graph.");
+            }
+        }
+        for (int i = 0; i < result.links0.length; i++) {
+            result.links0[i] = aIn.readInt();
+        }
+        for (int i = 0; i < result.size; i++) {
+            if (result.levels[i] > 0) {
+                int[] links = new int[result.levels[i] * (aM + 1)];
+                for (int j = 0; j < links.length; j++) {
+                    links[j] = aIn.readInt();
+                }
+                result.upperLinks[i] = links;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the graph, without the vectors.
+     *
+     * @param aOut output
+     * @throws IOException exception
+     */
+    public void write(final DataOutputStream aOut) throws IOException {
+
+        aOut.writeInt(MAGIC);
+        aOut.writeInt(VERSION);
+        aOut.writeInt(size);
+        aOut.writeInt(dimensions);
+        aOut.writeInt(m);
+        aOut.writeInt(efConstruction);
+        aOut.writeLong(checksum);
+        aOut.writeInt(entryPoint);
+        aOut.writeInt(maxLevel);
+        for (int level : levels) {
+            aOut.writeInt(level);
+        }
+        for (int link : links0) {
+            aOut.writeInt(link);
+        }
+        for (int[] links : upperLinks) {
+            if (null != links) {
+                for (int link : links) {
+                    aOut.writeInt(link);
+                }
+            }
+        }
+    }
+
+    /**
+     * Searches the approximate nearest neighbours of a query.
+     *
+     * @param aQuery query vector
+     * @param aEfSearch beam width, the maximum number of neighbours returned
+     * @param aIds ids of the neighbours, the closest first, at least
+     *            {@code aEfSearch} long
+     * @param aDistances squared distances of the neighbours, at least
+     *            {@code aEfSearch} long
+     * @return number of neighbours
+     */
+    public int search(final float[] aQuery, final int aEfSearch, final int[] aIds,
+            final float[] aDistances) {
+
+        if (entryPoint < 0) {
+            return 0;
+        }
+        Scratch s = scratch.get();
+        int current = entryPoint;
+        for (int level = maxLevel; level > 0; level--) {
+            current = greedy(aQuery, 0, current, level);
+        }
+        searchLayer(aQuery, 0, current, Math.max(1, aEfSearch), 0, s);
+        return s.drain(aIds, aDistances);
+    }
+
+    /**
+     * Returns the number of vectors.
+     *
+     * @return number of vectors
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Inserts a node into the graph.
+     *
+     * @param aNode node
+     * @param aLevel highest layer of the node
+     */
+    private void insert(final int aNode, final int aLevel) {
+
+        levels[aNode] = aLevel;
+        if (aLevel > 0) {
+            upperLinks[aNode] = new int[aLevel * (m + 1)];
+        }
+        if (entryPoint < 0) {
+            entryPoint = aNode;
+            maxLevel = aLevel;
+            return;
+        }
+
+        Scratch s = scratch.get();
+        int offset = aNode * dimensions;
+        int current = entryPoint;
+        for (int level = maxLevel; level > aLevel; level--) {
+            current = greedy(vectors, offset, current, level);
+        }
+
+        for (int level = Math.min(aLevel, maxLevel); level >= 0; level--) {
+            searchLayer(vectors, offset, current, efConstruction, level, s);
+            int count = s.drain(s.sortedIds, s.sortedDistances);
+            current = s.sortedIds[0];
+
+            int selected = select(s.sortedIds, s.sortedDistances, count, m, s.selected);
+            int[] links = links(aNode, level);
+            int base = base(aNode, level);
+            links[base] = selected;
+            System.arraycopy(s.selected, 0, links, base + 1, selected);
+            for (int i = 0; i < selected; i++) {
+                connect(s.selected[i], aNode, level, s);
+            }
+        }
+
+        if (aLevel > maxLevel) {
+            maxLevel = aLevel;
+            entryPoint = aNode;
+        }
+    }
+
+    /**
+     * Adds a node to the neighbours of another one, pruning them with the
+     * diversity heuristic if there are too many.
+     *
+     * @param aNode node whose neighbours are extended
+     * @param aNeighbor new neighbour
+     * @param aLevel layer
+     * @param aScratch working arrays
+     */
+    private void connect(final int aNode, final int aNeighbor, final int aLevel,
+            final Scratch aScratch) {
+
+        int[] links = links(aNode, aLevel);
+        int base = base(aNode, aLevel);
+        int capacity = 0 == aLevel ? 2 * m : m;
+        int count = links[base];
+        if (count < capacity) {
+            links[base + 1 + count] = aNeighbor;
+            links[base]++;
+            return;
+        }
+
+        // sorts the current neighbours and the new one by distance
+        int[] ids = aScratch.pruneIds;
+        float[] distances = aScratch.pruneDistances;
+        int offset = aNode * dimensions;
+        for (int i = 0; i <= count; i++) {
+            int id = i < count ? links[base + 1 + i] : aNeighbor;
+            float distance = distance(vectors, offset, vectors, id * dimensions);
+            int j = i;
+            while (j > 0 && distances[j - 1] > distance) {
+                ids[j] = ids[j - 1];
+                distances[j] = distances[j - 1];
+                j--;
+            }
+            ids[j] = id;
+            distances[j] = distance;
+        }
+
+        // not the selection of the inserted node, which the caller is reading
+        int selected = select(ids, distances, count + 1, capacity, aScratch.pruneSelected);
+        links[base] = selected;
+        System.arraycopy(aScratch.pruneSelected, 0, links, base + 1, selected);
+    }
+
+    /**
+     * Selects diverse neighbours out of candidates sorted by distance: a
+     * candidate is kept if it is closer to the base node than to every kept
+     * one. Pruned candidates fill the remaining room, closest first.
+     *
+     * @param aIds candidates, the closest first
+     * @param aDistances squared distances of the candidates to the base node
+     * @param aCount number of candidates
+     * @param aMax maximum number of neighbours
+     * @param aSelected selected neighbours
+     * @return number of selected neighbours
+     */
+    private int select(final int[] aIds, final float[] aDistances, final int aCount,
+            final int aMax, final int[] aSelected) {
+
+        int result = 0;
+        boolean[] pruned = new boolean[aCount];
+        for (int i = 0; i < aCount && result < aMax; i++) {
+            int offset = aIds[i] * dimensions;
+            for (int j = 0; j < result && !pruned[i]; j++) {
+                pruned[i] = distance(vectors, offset, vectors, aSelected[j] * dimensions)
+                        < aDistances[i];
+            }
+            if (!pruned[i]) {
+                aSelected[result++] = aIds[i];
+            }
+        }
+        for (int i = 0; i < aCount && result < aMax; i++) {
+            if (pruned[i]) {
+                aSelected[result++] = aIds[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Descends greedily on a layer towards a query.
+     *
+     * @param aQuery query vectors
+     * @param aOffset offset of the query
+     * @param aStart starting node
+     * @param aLevel layer
+     * @return closest node found
+     */
+    private int greedy(final float[] aQuery, final int aOffset, final int aStart,
+            final int aLevel) {
+
+        int result = aStart;
+        float best = distance(aQuery, aOffset, vectors, aStart * dimensions);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] links = links(result, aLevel);
+            int base = base(result, aLevel);
+            for (int i = 1; i <= links[base]; i++) {
+                int neighbor = links[base + i];
+                float distance = distance(aQuery, aOffset, vectors, neighbor * dimensions);
+                if (distance < best) {
+                    best = distance;
+                    result = neighbor;
+                    changed = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Explores a layer from a node with a beam of candidates. The closest
+     * nodes found are left in the result heap of the working arrays.
+     *
+     * @param aQuery query vectors
+     * @param aOffset offset of the query
+     * @param aStart starting node
+     * @param aEf beam width
+     * @param aLevel layer
+     * @param aScratch working arrays
+     */
+    private void searchLayer(final float[] aQuery, final int aOffset, final int aStart,
+            final int aEf, final int aLevel, final Scratch aScratch) {
+
+        aScratch.visit();
+        Heap candidates = aScratch.candidates;
+        Heap results = aScratch.results;
+        candidates.clear();
+        results.clear();
+
+        float distance = distance(aQuery, aOffset, vectors, aStart * dimensions);
+        aScratch.visited[aStart] = aScratch.epoch;
+        candidates.push(-distance, aStart);
+        results.push(distance, aStart);
+
+        while (candidates.size() > 0) {
+            float closest = -candidates.topKey();
+            if (closest > results.topKey() && results.size() >= aEf) {
+                break;
+            }
+            int node = candidates.pop();
+
+            int[] links = links(node, aLevel);
+            int base = base(node, aLevel);
+            for (int i = 1; i <= links[base]; i++) {
+                int neighbor = links[base + i];
+                if (aScratch.visited[neighbor] == aScratch.epoch) {
+                    continue;
+                }
+                aScratch.visited[neighbor] = aScratch.epoch;
+                distance = distance(aQuery, aOffset, vectors, neighbor * dimensions);
+                if (results.size() < aEf || distance < results.topKey()) {
+                    candidates.push(-distance, neighbor);
+                    results.push(distance, neighbor);
+                    if (results.size() > aEf) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the array holding the neighbours of a node on a layer.
+     *
+     * @param aNode node
+     * @param aLevel layer
+     * @return array, see {@link #base(int, int)}
+     */
+    private int[] links(final int aNode, final int aLevel) {
+        return 0 == aLevel ? links0 : upperLinks[aNode];
+    }
+
+    /**
+     * Returns the index of the neighbour count of a node on a layer, followed
+     * by the ids of the neighbours.
+     *
+     * @param aNode node
+     * @param aLevel layer
+     * @return index in the array returned by {@link #links(int, int)}
+     */
+    private int base(final int aNode, final int aLevel) {
+        return 0 == aLevel ? aNode * (2 * m + 1) : (aLevel - 1) * (m + 1);
+    }
+
+    /**
+     * Computes the squared Euclidean distance between two vectors.
+     *
+     * @param aFirst first vectors
+     * @param aFirstOffset offset of the first vector
+     * @param aSecond second vectors
+     * @param aSecondOffset offset of the second vector
+     * @return squared distance
+     */
+    private float distance(final float[] aFirst, final int aFirstOffset, final float[] aSecond,
+            final int aSecondOffset) {
+
+        float sum0 = 0;
+        float sum1 = 0;
+        int i = 0;
+        for (; i + 2 <= dimensions; i += 2) {
+            float diff0 = aFirst[aFirstOffset + i] - aSecond[aSecondOffset + i];
+            float diff1 = aFirst[aFirstOffset + i + 1] - aSecond[aSecondOffset + i + 1];
+            sum0 += diff0 * diff0;
+            sum1 += diff1 * diff1;
+        }
+        for (; i < dimensions; i++) {
+            float diff = aFirst[aFirstOffset + i] - aSecond[aSecondOffset + i];
+            sum0 += diff * diff;
+        }
+        return sum0 + sum1;
+    }
+
+    /**
+     * Computes a checksum of vectors.
+     *
+     * @param aVectors vectors
+     * @return checksum
+     */
+    private static long checksum(final float[] aVectors) {
+
+        long result = aVectors.length;
+        for (float value : aVectors) {
+            result = 31 * result + Float.floatToIntBits(value);
+        }
+        return result;
+    }
+
+    /**
+     * A binary max-heap of (key, id) pairs, grown as needed.
+     */
+    private static final class Heap {
+
+        /** Keys. */
+        private float[] keys = new float[64];
+
+        /** Ids. */
+        private int[] ids = new int[64];
+
+        /** Number of pairs. */
+        private int count;
+
+        /**
+         * Removes all pairs.
+         */
+        private void clear() {
+            count = 0;
+        }
+
+        /**
+         * Returns the number of pairs.
+         *
+         * @return number of pairs
+         */
+        private int size() {
+            return count;
+        }
+
+        /**
+         * Returns the largest key.
+         *
+         * @return key
+         */
+        private float topKey() {
+            return keys[0];
+        }
+
+        /**
+         * Adds a pair.
+         *
+         * @param aKey key
+         * @param aId id
+         */
+        private void push(final float aKey, final int aId) {
+
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * count);
+                ids = Arrays.copyOf(ids, 2 * count);
+            }
+            int i = count++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (keys[parent] >= aKey) {
+                    break;
+                }
+                keys[i] = keys[parent];
+                ids[i] = ids[parent];
+                i = parent;
+            }
+            keys[i] = aKey;
+            ids[i] = aId;
+        }
+
+        /**
+         * Removes the pair with the largest key.
+         *
+         * @return id of the pair
+         */
+        private int pop() {
+
+            int result = ids[0];
+            float key = keys[--count];
+            int id = ids[count];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= count) {
+                    break;
+                }
+                if (child + 1 < count && keys[child + 1] > keys[child]) {
+                    child++;
+                }
+                if (keys[child] <= key) {
+                    break;
+                }
+                keys[i] = keys[child];
+                ids[i] = ids[child];
+                i = child;
+            }
+            keys[i] = key;
+            ids[i] = id;
+            return result;
+        }
+    }
+
+    /**
+     * Working arrays of a thread.
+     */
+    private final class Scratch {
+
+        /** Visit marks of the nodes, equal to the epoch if visited. */
+        private final int[] visited;
+
+        /** Current visit epoch. */
+        private int epoch;
+
+        /** Candidates to explore, by negated distance. */
+        private final Heap candidates = new Heap();
+
+        /** Closest nodes found, by distance. */
+        private final Heap results = new Heap();
+
+        /** Closest nodes, sorted, while building. */
+        private final int[] sortedIds = new int[efConstruction + 1];
+
+        /** Distances of the closest nodes, sorted, while building. */
+        private final float[] sortedDistances = new float[efConstruction + 1];
+
+        /** Selected neighbours. */
+        private final int[] selected = new int[2 * m + 1];
+
+        /** Neighbours being pruned. */
+        private final int[] pruneIds = new int[2 * m + 1];
+
+        /** Distances of the neighbours being pruned. */
+        private final float[] pruneDistances = new float[2 * m + 1];
+
+        /** Neighbours kept by pruning. */
+        private final int[] pruneSelected = new int[2 * m + 1];
+
+        /**
+         * Constructor.
+         *
+         * @param aSize number of nodes
+         */
+        private Scratch(final int aSize) {
+            visited = new int[aSize];
+        }
+
+        /**
+         * Starts a new visit, forgetting the visited nodes.
+         */
+        private void visit() {
+            if (++epoch == 0) {
+                Arrays.fill(visited, 0);
+                epoch = 1;
+            }
+        }
+
+        /**
+         * Moves the result heap into arrays, the closest first.
+         *
+         * @param aIds ids
+         * @param aDistances distances
+         * @return number of results
+         */
+        private int drain(final int[] aIds, final float[] aDistances) {
+
+            int result = Math.min(results.size(), aIds.length);
+            while (results.size() > result) {
+                results.pop();
+            }
+            for (int i = result - 1; i >= 0; i--) {
+                aDistances[i] = results.topKey();
+                aIds[i] = results.pop();
+            }
+            return result;
+        }
+    }
+}
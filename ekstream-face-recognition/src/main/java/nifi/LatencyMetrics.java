@@ -0,0 +1,263 @@
+package nifi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latency histograms of the stages of the recognition, per algorithm.
+ * <p>
+ * Latencies are recorded by concurrent tasks into HdrHistogram recorders,
+ * which never block them. Once per reporting interval, one task swaps the
+ * recorders for fresh ones and computes the percentiles of the interval,
+ * which are then published as NiFi counters, as a Prometheus text file and
+ * through JMX.
+ */
+public class LatencyMetrics implements LatencyMetricsMXBean {
+
+    /** Stage reading the content of a FlowFile. */
+    public static final int READ = 0;
+
+    /** Stage decoding a frame. */
+    public static final int DECODE = 1;
+
+    /** Stage detecting the faces in a frame. */
+    public static final int DETECT = 2;
+
+    /** Stage predicting the label of a face. */
+    public static final int PREDICT = 3;
+
+    /** Stage submitting a frame to be saved. */
+    public static final int SAVE = 4;
+
+    /** Stage writing the attributes and transferring a FlowFile. */
+    public static final int TRANSFER = 5;
+
+    /** Names of the stages. */
+    private static final String[] STAGES = {"read", "decode", "detect", "predict", "save",
+        "transfer"};
+
+    /** Reported percentiles. */
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    /** Names of the reported percentiles. */
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+
+    /** Highest recorded latency, in nanoseconds; longer ones are clamped. */
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+    /** Precision of the histograms, in significant decimal digits. */
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    /** Name of the Prometheus metric. */
+    private static final String METRIC = "face_recognition_latency_seconds";
+
+    /** Histograms, by algorithm. */
+    private final ConcurrentMap<String, Stages> algorithms = new ConcurrentHashMap<>();
+
+    /** Reporting interval, in nanoseconds. */
+    private final long interval;
+
+    /** Time of the next report, in nanoseconds. */
+    private final AtomicLong nextReport;
+
+    /** Percentiles last published as counters, used by the reporting task only. */
+    private final Map<String, Long> published = new HashMap<>();
+
+    /** Percentiles of the last interval, in microseconds. */
+    private volatile Map<String, Long> latencies = Collections.emptyMap();
+
+    /** Number of timed operations. */
+    private volatile Map<String, Long> counts = Collections.emptyMap();
+
+    /** Last report in the Prometheus text format. */
+    private volatile String prometheusText = "";
+
+    /**
+     * Constructor.
+     *
+     * @param aInterval reporting interval, in milliseconds
+     */
+    public LatencyMetrics(final long aInterval) {
+        interval = TimeUnit.MILLISECONDS.toNanos(aInterval);
+        nextReport = new AtomicLong(System.nanoTime() + interval);
+    }
+
+    /**
+     * Records the latency of a stage.
+     *
+     * @param aAlgorithm face recognition algorithm
+     * @param aStage stage, e.g. {@link #PREDICT}
+     * @param aNanos latency, in nanoseconds
+     */
+    public void record(final String aAlgorithm, final int aStage, final long aNanos) {
+
+        Stages stages = algorithms.get(aAlgorithm);
+        if (null == stages) {
+            Stages created = new Stages();
+            stages = algorithms.putIfAbsent(aAlgorithm, created);
+            if (null == stages) {
+                stages = created;
+            }
+        }
+        stages.recorders[aStage].recordValue(Math.max(0, Math.min(aNanos, HIGHEST_LATENCY)));
+    }
+
+    /**
+     * Tells whether a report is due. Only one of the concurrent callers is
+     * told so per interval, and that caller must call {@link #report()}.
+     *
+     * @return true if the caller must report
+     */
+    public boolean isDue() {
+
+        long now = System.nanoTime();
+        long next = nextReport.get();
+        return now - next >= 0 && nextReport.compareAndSet(next, now + interval);
+    }
+
+    /**
+     * Computes the percentiles of the interval since the last report.
+     * <p>
+     * NiFi counters can only be adjusted, so the percentiles are returned as
+     * the changes of the published values since the last report.
+     *
+     * @return changes of the counters, by counter name
+     */
+    public synchronized Map<String, Long> report() {
+
+        Map<String, Long> newLatencies = new TreeMap<>();
+        Map<String, Long> newCounts = new TreeMap<>();
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP ").append(METRIC)
+                .append(" Latency of the face recognition stages.\n");
+        text.append("# TYPE ").append(METRIC).append(" summary\n");
+
+        for (Map.Entry<String, Stages> entry : new TreeMap<>(algorithms).entrySet()) {
+            Stages stages = entry.getValue();
+            for (int i = 0; i < STAGES.length; i++) {
+
+                Histogram histogram = stages.recorders[i].getIntervalHistogram(
+                        stages.intervals[i]);
+                stages.intervals[i] = histogram;
+                stages.counts[i] += histogram.getTotalCount();
+                stages.sums[i] += histogram.getMean() * histogram.getTotalCount();
+
+                String name = entry.getKey() + '.' + STAGES[i];
+                String labels = "algorithm=\"" + entry.getKey() + "\",stage=\"" + STAGES[i]
+                        + "\"";
+                newCounts.put(name, stages.counts[i]);
+                for (int j = 0; j < PERCENTILES.length; j++) {
+                    long value = histogram.getValueAtPercentile(PERCENTILES[j]);
+                    newLatencies.put(name + '.' + PERCENTILE_NAMES[j],
+                            TimeUnit.NANOSECONDS.toMicros(value));
+                    text.append(METRIC).append('{').append(labels).append(",quantile=\"")
+                            .append(PERCENTILES[j] / 100).append("\"} ")
+                            .append(seconds(value)).append('\n');
+                }
+                text.append(METRIC).append("_sum{").append(labels).append("} ")
+                        .append(seconds(stages.sums[i])).append('\n');
+                text.append(METRIC).append("_count{").append(labels).append("} ")
+                        .append(stages.counts[i]).append('\n');
+            }
+        }
+
+        latencies = Collections.unmodifiableMap(newLatencies);
+        counts = Collections.unmodifiableMap(newCounts);
+        prometheusText = text.toString();
+
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, Long> entry : newLatencies.entrySet()) {
+            Long last = published.put(entry.getKey(), entry.getValue());
+            long delta = entry.getValue() - (null == last ? 0 : last);
+            if (0 != delta) {
+                result.put("Latency " + entry.getKey() + " (us)", delta);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the last report in the Prometheus text format, e.g. for the
+     * textfile collector of the node exporter. The file is replaced
+     * atomically, so a scraper never reads a partial report.
+     *
+     * @param aFile output file
+     * @throws IOException exception
+     */
+    public void writePrometheus(final File aFile) throws IOException {
+
+        File tmpFile = new File(aFile.getAbsoluteFile().getParentFile(),
+                ".tmp-" + aFile.getName());
+        Files.write(tmpFile.toPath(), prometheusText.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile.toPath(), aFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getLatencyMicros() {
+        return latencies;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getCounts() {
+        return counts;
+    }
+
+    /**
+     * Formats nanoseconds as seconds.
+     *
+     * @param aNanos nanoseconds
+     * @return seconds
+     */
+    private static String seconds(final double aNanos) {
+        return String.format(Locale.ROOT, "%.9f", aNanos / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Histograms of the stages of an algorithm.
+     */
+    private static final class Stages {
+
+        /** Recorders, by stage. */
+        private final Recorder[] recorders = new Recorder[STAGES.length];
+
+        /** Histograms of the last interval, recycled by the recorders. */
+        private final Histogram[] intervals = new Histogram[STAGES.length];
+
+        /** Number of timed operations, by stage. */
+        private final long[] counts = new long[STAGES.length];
+
+        /** Total latency, in nanoseconds, by stage. */
+        private final double[] sums = new double[STAGES.length];
+
+        /**
+         * Constructor.
+         */
+        private Stages() {
+            for (int i = 0; i < STAGES.length; i++) {
+                recorders[i] = new Recorder(HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+            }
+        }
+    }
+}
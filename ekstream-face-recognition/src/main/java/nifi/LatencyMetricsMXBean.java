@@ -0,0 +1,24 @@
+package nifi;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link LatencyMetrics}.
+ */
+public interface LatencyMetricsMXBean {
+
+    /**
+     * Returns the latency percentiles of the last reporting interval.
+     *
+     * @return percentiles in microseconds, by "algorithm.stage.percentile",
+     *         e.g. "LBPH.predict.p99"
+     */
+    Map<String, Long> getLatencyMicros();
+
+    /**
+     * Returns the number of timed operations since the processor started.
+     *
+     * @return counts by "algorithm.stage"
+     */
+    Map<String, Long> getCounts();
+}
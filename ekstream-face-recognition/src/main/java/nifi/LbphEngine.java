@@ -0,0 +1,324 @@
+package nifi;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_face.LBPHFaceRecognizer;
+
+/**
+ * LBPH prediction in Java: the local binary patterns of a face, its spatial
+ * histogram and the chi-square distances to the training histograms are all
+ * computed without calling into OpenCV, so they can be profiled and
+ * optimised by the JIT.
+ * <p>
+ * The training histograms are copied once out of the trained face
+ * recognizer into float arrays, chunks of histograms one after the other,
+ * and scanned sequentially. Enrolled images are appended, see
+ * {@link #withAdded(TrainingSet)}: the new engine shares the full chunks of
+ * this one and copies the last one only, so enrolling a few images into a
+ * large gallery costs little more than computing their histograms.
+ * <p>
+ * The chi-square distance is computed in blocks: the terms of a block are
+ * computed by a branch-free loop over primitive arrays, which the JIT
+ * vectorises, and then summed. The scan of a histogram stops after the
+ * first block exceeding the distance bound.
+ * <p>
+ * With a {@link ShardedSearch}, see {@link #withSharding(ShardedSearch)},
+ * large galleries are scanned in parallel shards.
+ * <p>
+ * The engine is immutable and safe for concurrent use; every thread has its
+ * own working arrays, so a search allocates nothing.
+ */
+public class LbphEngine extends Gallery {
+
+    /** Number of bins of a chi-square block. */
+    private static final int BLOCK = 256;
+
+    /** Maximum number of floats of a chunk of histograms. */
+    private static final int CHUNK_FLOATS = 1 << 22;
+
+    /**
+     * Added to the bin sums, so that empty bins contribute 0 without a
+     * branch; far below any non-empty bin of a normalised histogram.
+     */
+    private static final float TINY = Float.MIN_NORMAL;
+
+    /** Local binary patterns of the model. */
+    private final LocalBinaryPatterns patterns;
+
+    /**
+     * Histograms of the training images, by chunk of {@link #chunkSize}
+     * histograms one after the other. Chunks are shared between engines and
+     * never modified once the engine is built.
+     */
+    private final float[][] histograms;
+
+    /** Labels of the training images, by chunk of {@link #chunkSize}. */
+    private final int[][] labels;
+
+    /** Number of training images. */
+    private final int size;
+
+    /** Number of histograms of a chunk. */
+    private final int chunkSize;
+
+    /** Length of a histogram. */
+    private final int length;
+
+    /** Split of the scan into shards. */
+    private final ShardedSearch sharding;
+
+    /** Working arrays, one set per thread. */
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(length);
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param aRecognizer trained LBPH face recognizer
+     */
+    public LbphEngine(final LBPHFaceRecognizer aRecognizer) {
+
+        patterns = new LocalBinaryPatterns(aRecognizer.getRadius(), aRecognizer.getNeighbors(),
+                aRecognizer.getGridX(), aRecognizer.getGridY());
+        length = patterns.histogramLength();
+        chunkSize = Math.max(1, CHUNK_FLOATS / length);
+        int[] trainedLabels = labels(aRecognizer.getLabels());
+        size = trainedLabels.length;
+
+        int chunks = (size + chunkSize - 1) / chunkSize;
+        histograms = new float[chunks][];
+        labels = new int[chunks][];
+        MatVector trained = aRecognizer.getHistograms();
+        for (int c = 0; c < chunks; c++) {
+            int first = c * chunkSize;
+            int count = Math.min(chunkSize, size - first);
+            histograms[c] = new float[count * length];
+            labels[c] = Arrays.copyOfRange(trainedLabels, first, first + count);
+            for (int i = 0; i < count; i++) {
+                FloatBuffer histogram = trained.get(first + i).createBuffer();
+                histogram.get(histograms[c], i * length, length);
+            }
+        }
+        sharding = ShardedSearch.SEQUENTIAL;
+    }
+
+    /**
+     * Constructor of an engine sharing the patterns and chunks of another one.
+     *
+     * @param aEngine engine whose patterns are shared
+     * @param aHistograms chunks of histograms
+     * @param aLabels chunks of labels
+     * @param aSize number of training images
+     * @param aSharding split of the scan into shards
+     */
+    private LbphEngine(final LbphEngine aEngine, final float[][] aHistograms,
+            final int[][] aLabels, final int aSize, final ShardedSearch aSharding) {
+        patterns = aEngine.patterns;
+        histograms = aHistograms;
+        labels = aLabels;
+        size = aSize;
+        chunkSize = aEngine.chunkSize;
+        length = aEngine.length;
+        sharding = aSharding;
+    }
+
+    /**
+     * Returns an engine scanning the histograms in shards.
+     *
+     * @param aSharding split of the scan into shards
+     * @return engine
+     */
+    public LbphEngine withSharding(final ShardedSearch aSharding) {
+        return new LbphEngine(this, histograms, labels, size, aSharding);
+    }
+
+    /**
+     * Returns an engine searching the training images of this one and
+     * enrolled ones. The histograms of the enrolled images are computed in
+     * Java, like those of the faces searched.
+     *
+     * @param aImages enrolled images
+     * @return engine
+     */
+    public LbphEngine withAdded(final TrainingSet aImages) {
+
+        int total = size + aImages.size();
+        int chunks = (total + chunkSize - 1) / chunkSize;
+        float[][] addedHistograms = Arrays.copyOf(histograms, chunks);
+        int[][] addedLabels = Arrays.copyOf(labels, chunks);
+
+        // the last chunk of this engine is copied, the others are shared
+        for (int c = size / chunkSize; c < chunks; c++) {
+            int count = Math.min(chunkSize, total - c * chunkSize);
+            addedHistograms[c] = c < histograms.length
+                    ? Arrays.copyOf(histograms[c], count * length) : new float[count * length];
+            addedLabels[c] = c < labels.length ? Arrays.copyOf(labels[c], count)
+                    : new int[count];
+        }
+
+        try {
+            MatVector images = aImages.getImages();
+            IntBuffer imageLabels = aImages.getLabels().createBuffer();
+            byte[] pixels = new byte[0];
+            int[] codes = new int[0];
+            float[] histogram = new float[length];
+            for (int i = 0; i < aImages.size(); i++) {
+                Mat image = images.get(i);
+                pixels = pixels(image, pixels);
+                codes = patterns.histogram(pixels, image.rows(), image.cols(), histogram, codes);
+                int n = size + i;
+                System.arraycopy(histogram, 0, addedHistograms[n / chunkSize],
+                        n % chunkSize * length, length);
+                addedLabels[n / chunkSize][n % chunkSize] = imageLabels.get(i);
+            }
+        } finally {
+            aImages.keepReachable();
+        }
+        return new LbphEngine(this, addedHistograms, addedLabels, total, sharding);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void search(final Mat aFace, final TopK aResult) {
+
+        Scratch s = scratch.get();
+        s.pixels = pixels(aFace, s.pixels);
+        s.codes = patterns.histogram(s.pixels, aFace.rows(), aFace.cols(), s.query, s.codes);
+
+        final float[] query = s.query;
+        if (!sharding.isParallel(size)) {
+            scan(query, 0, size, aResult);
+            return;
+        }
+        sharding.search(size, new ShardedSearch.Shard() {
+            @Override
+            public void search(final int aFrom, final int aTo, final TopK aShardResult) {
+                scan(query, aFrom, aTo, aShardResult);
+            }
+        }, aResult);
+    }
+
+    /**
+     * Compares a histogram with a range of training histograms.
+     *
+     * @param aQuery histogram of the face
+     * @param aFrom first training histogram
+     * @param aTo training histogram after the last one
+     * @param aResult closest labels
+     */
+    private void scan(final float[] aQuery, final int aFrom, final int aTo,
+            final TopK aResult) {
+
+        // the terms of the thread running the shard
+        float[] terms = scratch.get().terms;
+        for (int c = aFrom / chunkSize; c * chunkSize < aTo; c++) {
+            float[] chunk = histograms[c];
+            int[] chunkLabels = labels[c];
+            int first = c * chunkSize;
+            int to = Math.min(aTo - first, chunkLabels.length);
+            for (int i = Math.max(aFrom - first, 0); i < to; i++) {
+                double bound = aResult.bound();
+                double distance = chiSquare(chunk, i * length, aQuery, terms, bound);
+                if (distance <= bound) {
+                    aResult.offer(chunkLabels[i], distance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the alternative chi-square distance between two histograms,
+     * 2 * sum((a - b)^2 / (a + b)), stopping early once it exceeds a bound.
+     *
+     * @param aHistograms training histograms
+     * @param aOffset offset of the training histogram
+     * @param aQuery histogram of the face
+     * @param aTerms working array of {@link #BLOCK} terms
+     * @param aBound distance beyond which the result is not needed
+     * @return distance, or a value above the bound
+     */
+    static double chiSquare(final float[] aHistograms, final int aOffset, final float[] aQuery,
+            final float[] aTerms, final double aBound) {
+
+        double half = aBound / 2;
+        double result = 0;
+        for (int from = 0; from < aQuery.length; from += BLOCK) {
+
+            int count = Math.min(BLOCK, aQuery.length - from);
+            int offset = aOffset + from;
+            for (int i = 0; i < count; i++) {
+                float a = aHistograms[offset + i];
+                float b = aQuery[from + i];
+                float diff = a - b;
+                aTerms[i] = diff * diff / (a + b + TINY);
+            }
+
+            // independent sums, as a floating point sum in order cannot be
+            // vectorised
+            float sum0 = 0;
+            float sum1 = 0;
+            float sum2 = 0;
+            float sum3 = 0;
+            int i = 0;
+            for (; i + 4 <= count; i += 4) {
+                sum0 += aTerms[i];
+                sum1 += aTerms[i + 1];
+                sum2 += aTerms[i + 2];
+                sum3 += aTerms[i + 3];
+            }
+            for (; i < count; i++) {
+                sum0 += aTerms[i];
+            }
+            result += (sum0 + sum1) + (sum2 + sum3);
+            if (result > half) {
+                break;
+            }
+        }
+        return 2 * result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Working arrays of a thread.
+     */
+    private static final class Scratch {
+
+        /** Histogram of the face. */
+        private final float[] query;
+
+        /** Chi-square terms of a block. */
+        private final float[] terms = new float[BLOCK];
+
+        /** Pixels of the face, grown as needed. */
+        private byte[] pixels = new byte[0];
+
+        /** Patterns of the face, grown as needed. */
+        private int[] codes = new int[0];
+
+        /**
+         * Constructor.
+         *
+         * @param aLength length of a histogram
+         */
+        private Scratch(final int aLength) {
+            query = new float[aLength];
+        }
+    }
+}
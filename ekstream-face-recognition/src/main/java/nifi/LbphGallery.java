@@ -0,0 +1,102 @@
+package nifi;
+
+import java.nio.FloatBuffer;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_face.LBPHFaceRecognizer;
+
+/**
+ * Gallery of an LBPH face recognizer: the spatial histograms of the
+ * training images. The histogram of a face is computed in Java and
+ * compared by chi-square distance, as in OpenCV.
+ */
+public class LbphGallery extends Gallery {
+
+    /** Smallest bin sum taken into account, as in OpenCV. */
+    private static final double EPSILON = Math.ulp(1.0);
+
+    /** Local binary patterns of the model. */
+    private final LocalBinaryPatterns patterns;
+
+    /** Histograms of the training images. */
+    private final MatVector histograms;
+
+    /** Native views of the histograms. */
+    private final FloatBuffer[] histogramBufs;
+
+    /** Labels of the training images. */
+    private final int[] labels;
+
+    /**
+     * Constructor.
+     *
+     * @param aRecognizer trained LBPH face recognizer
+     */
+    public LbphGallery(final LBPHFaceRecognizer aRecognizer) {
+
+        patterns = new LocalBinaryPatterns(aRecognizer.getRadius(), aRecognizer.getNeighbors(),
+                aRecognizer.getGridX(), aRecognizer.getGridY());
+        histograms = aRecognizer.getHistograms();
+        labels = labels(aRecognizer.getLabels());
+
+        histogramBufs = new FloatBuffer[(int) histograms.size()];
+        for (int i = 0; i < histogramBufs.length; i++) {
+            histogramBufs[i] = histograms.get(i).createBuffer();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void search(final Mat aFace, final TopK aResult) {
+
+        float[] query = new float[patterns.histogramLength()];
+        patterns.histogram(pixels(aFace), aFace.rows(), aFace.cols(), query);
+
+        for (int n = 0; n < histogramBufs.length; n++) {
+            double distance = chiSquare(histogramBufs[n], query, aResult.bound());
+            if (distance <= aResult.bound()) {
+                aResult.offer(labels[n], distance);
+            }
+        }
+    }
+
+    /**
+     * Computes the alternative chi-square distance between two histograms,
+     * 2 * sum((a - b)^2 / (a + b)), stopping early once it exceeds a bound.
+     *
+     * @param aHistogram training histogram
+     * @param aQuery histogram of the face
+     * @param aBound distance beyond which the result is not needed
+     * @return distance, or a value above the bound
+     */
+    private static double chiSquare(final FloatBuffer aHistogram, final float[] aQuery,
+            final double aBound) {
+
+        double half = aBound / 2;
+        double result = 0;
+        for (int i = 0; i < aQuery.length; i++) {
+            float a = aHistogram.get(i);
+            float b = aQuery[i];
+            double diff = a - b;
+            double sum = a + b;
+            if (Math.abs(sum) > EPSILON) {
+                result += diff * diff / sum;
+            }
+            if (result > half) {
+                break;
+            }
+        }
+        return 2 * result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return labels.length;
+    }
+}
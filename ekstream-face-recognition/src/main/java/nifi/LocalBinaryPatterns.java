@@ -0,0 +1,190 @@
+package nifi;
+
+import java.util.Arrays;
+
+/**
+ * Spatial histograms of extended (circular) local binary patterns, computed
+ * the same way as by the OpenCV LBPH face recognizer.
+ * <p>
+ * Every pixel is encoded by comparing it with {@code neighbors} points on a
+ * circle of {@code radius} around it. The codes are then counted in a
+ * {@code gridX} x {@code gridY} grid of cells, and the normalised cell
+ * histograms are concatenated.
+ */
+public class LocalBinaryPatterns {
+
+    /** Tolerance of the comparison with the centre pixel, as in OpenCV. */
+    private static final float EPSILON = Math.ulp(1.0f);
+
+    /** Radius of the circle of neighbours. */
+    private final int radius;
+
+    /** Number of neighbours. */
+    private final int neighbors;
+
+    /** Number of cells in horizontal direction. */
+    private final int gridX;
+
+    /** Number of cells in vertical direction. */
+    private final int gridY;
+
+    /**
+     * Constructor.
+     *
+     * @param aRadius radius of the circle of neighbours
+     * @param aNeighbors number of neighbours
+     * @param aGridX number of cells in horizontal direction
+     * @param aGridY number of cells in vertical direction
+     */
+    public LocalBinaryPatterns(final int aRadius, final int aNeighbors, final int aGridX,
+            final int aGridY) {
+        radius = aRadius;
+        neighbors = aNeighbors;
+        gridX = aGridX;
+        gridY = aGridY;
+    }
+
+    /**
+     * Returns the number of distinct patterns, that is the number of bins of
+     * a cell histogram.
+     *
+     * @return number of patterns
+     */
+    public int patterns() {
+        return 1 << neighbors;
+    }
+
+    /**
+     * Returns the length of a spatial histogram.
+     *
+     * @return number of bins of all cells
+     */
+    public int histogramLength() {
+        return gridX * gridY * patterns();
+    }
+
+    /**
+     * Computes the spatial histogram of a grayscale image.
+     *
+     * @param aPixels pixels, row by row
+     * @param aRows number of rows
+     * @param aCols number of columns
+     * @param aResult spatial histogram, {@link #histogramLength()} bins
+     */
+    public void histogram(final byte[] aPixels, final int aRows, final int aCols,
+            final float[] aResult) {
+        histogram(aPixels, aRows, aCols, aResult, new int[0]);
+    }
+
+    /**
+     * Computes the spatial histogram of a grayscale image, reusing a working
+     * array.
+     *
+     * @param aPixels pixels, row by row
+     * @param aRows number of rows
+     * @param aCols number of columns
+     * @param aResult spatial histogram, {@link #histogramLength()} bins
+     * @param aCodes working array of the patterns, of any length
+     * @return working array to be passed to the next call, grown if needed
+     */
+    public int[] histogram(final byte[] aPixels, final int aRows, final int aCols,
+            final float[] aResult, final int[] aCodes) {
+
+        int rows = aRows - 2 * radius;
+        int cols = aCols - 2 * radius;
+        int length = Math.max(0, rows * cols);
+        int[] codes = aCodes.length >= length ? aCodes : new int[length];
+        Arrays.fill(codes, 0, length, 0);
+
+        for (int n = 0; n < neighbors; n++) {
+
+            float x = (float) (radius * Math.cos(2.0 * Math.PI * n / (float) neighbors));
+            float y = (float) (-radius * Math.sin(2.0 * Math.PI * n / (float) neighbors));
+            int fx = (int) Math.floor(x);
+            int fy = (int) Math.floor(y);
+            int cx = (int) Math.ceil(x);
+            int cy = (int) Math.ceil(y);
+            float ty = y - fy;
+            float tx = x - fx;
+            float w1 = (1 - tx) * (1 - ty);
+            float w2 = tx * (1 - ty);
+            float w3 = (1 - tx) * ty;
+            float w4 = tx * ty;
+
+            for (int i = radius; i < aRows - radius; i++) {
+                int top = (i + fy) * aCols;
+                int bottom = (i + cy) * aCols;
+                int code = (i - radius) * cols - radius;
+                for (int j = radius; j < aCols - radius; j++) {
+                    float t = w1 * (aPixels[top + j + fx] & 0xFF)
+                            + w2 * (aPixels[top + j + cx] & 0xFF)
+                            + w3 * (aPixels[bottom + j + fx] & 0xFF)
+                            + w4 * (aPixels[bottom + j + cx] & 0xFF);
+                    int centre = aPixels[i * aCols + j] & 0xFF;
+                    if (t > centre || Math.abs(t - centre) < EPSILON) {
+                        codes[code + j] += 1 << n;
+                    }
+                }
+            }
+        }
+
+        Arrays.fill(aResult, 0, histogramLength(), 0f);
+
+        int width = Math.max(0, cols) / gridX;
+        int height = Math.max(0, rows) / gridY;
+        if (0 == width || 0 == height) {
+            return codes;
+        }
+
+        int patterns = patterns();
+        for (int i = 0; i < gridY * height; i++) {
+            int cellRow = i / height * gridX;
+            for (int j = 0; j < gridX * width; j++) {
+                int cell = cellRow + j / width;
+                aResult[cell * patterns + codes[i * cols + j]]++;
+            }
+        }
+
+        float total = width * height;
+        for (int i = 0; i < histogramLength(); i++) {
+            aResult[i] /= total;
+        }
+        return codes;
+    }
+
+    /**
+     * Returns the radius of the circle of neighbours.
+     *
+     * @return radius
+     */
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * Returns the number of neighbours.
+     *
+     * @return number of neighbours
+     */
+    public int getNeighbors() {
+        return neighbors;
+    }
+
+    /**
+     * Returns the number of cells in horizontal direction.
+     *
+     * @return number of cells
+     */
+    public int getGridX() {
+        return gridX;
+    }
+
+    /**
+     * Returns the number of cells in vertical direction.
+     *
+     * @return number of cells
+     */
+    public int getGridY() {
+        return gridY;
+    }
+}
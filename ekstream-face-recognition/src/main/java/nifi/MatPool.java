@@ -0,0 +1,212 @@
+package nifi;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * A pool of native images, keyed by their geometry (rows, columns and
+ * type).
+ * <p>
+ * JavaCPP frees native memory only when the Java object is garbage
+ * collected, so images allocated per frame pile up off-heap until the next
+ * collection. Images taken from the pool are instead handed back once they
+ * are no longer needed and reused by the next frame of the same geometry;
+ * images the pool has no room for are freed right away.
+ * <p>
+ * A stream usually has very few geometries, so they are looked up by a
+ * linear scan, which unlike a map needs no boxed key. Neither taking nor
+ * handing back a pooled image allocates. The pool is thread-safe.
+ */
+public class MatPool {
+
+    /** Maximum number of geometries, images of further ones are not pooled. */
+    private static final int MAX_GEOMETRIES = 16;
+
+    /** Free images, by geometry, copied on write. */
+    private volatile Bucket[] buckets = new Bucket[0];
+
+    /** Number of free images kept per geometry. */
+    private int capacity;
+
+    /** Number of images taken from the pool since the last report. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of images allocated since the last report. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param aCapacity number of free images kept per geometry
+     */
+    public MatPool(final int aCapacity) {
+        capacity = aCapacity;
+    }
+
+    /**
+     * Returns an image of the given geometry, reusing a free one if any.
+     * The content of the image is undefined.
+     *
+     * @param aRows number of rows
+     * @param aCols number of columns
+     * @param aType type, e.g. CV_8UC1
+     * @return image to be handed back with {@link #release(Mat)}
+     */
+    public Mat acquire(final int aRows, final int aCols, final int aType) {
+
+        BlockingQueue<Mat> queue = find(key(aRows, aCols, aType));
+        Mat result = null == queue ? null : queue.poll();
+        if (null != result) {
+            hits.incrementAndGet();
+            return result;
+        }
+        misses.incrementAndGet();
+        return new Mat(aRows, aCols, aType);
+    }
+
+    /**
+     * Hands an image back to the pool. The image must not be used afterwards.
+     *
+     * @param aImage image, possibly not taken from the pool
+     */
+    public void release(final Mat aImage) {
+
+        if (null == aImage) {
+            return;
+        }
+        if (aImage.empty()) {
+            aImage.deallocate();
+            return;
+        }
+
+        long key = key(aImage.rows(), aImage.cols(), aImage.type());
+        BlockingQueue<Mat> queue = find(key);
+        if (null == queue) {
+            queue = add(key);
+        }
+        if (null == queue || !queue.offer(aImage)) {
+            aImage.deallocate();
+        }
+    }
+
+    /**
+     * Sets the number of free images kept per geometry. Geometries already
+     * in the pool keep their capacity until the pool is cleared.
+     *
+     * @param aCapacity number of free images kept per geometry
+     */
+    public synchronized void setCapacity(final int aCapacity) {
+        capacity = aCapacity;
+    }
+
+    /**
+     * Frees all pooled images.
+     */
+    public void clear() {
+
+        Bucket[] cleared;
+        synchronized (this) {
+            cleared = buckets;
+            buckets = new Bucket[0];
+        }
+        for (Bucket bucket : cleared) {
+            Mat image;
+            while (null != (image = bucket.queue.poll())) {
+                image.deallocate();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of images reused since the last call, and resets it.
+     *
+     * @return number of pool hits
+     */
+    public long takeHits() {
+        return hits.getAndSet(0);
+    }
+
+    /**
+     * Returns the number of images allocated since the last call, and resets
+     * it.
+     *
+     * @return number of pool misses
+     */
+    public long takeMisses() {
+        return misses.getAndSet(0);
+    }
+
+    /**
+     * Finds the free images of a geometry.
+     *
+     * @param aKey geometry
+     * @return free images, or null if the geometry is unknown
+     */
+    private BlockingQueue<Mat> find(final long aKey) {
+
+        for (Bucket bucket : buckets) {
+            if (bucket.key == aKey) {
+                return bucket.queue;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a geometry, unless another thread has just added it.
+     *
+     * @param aKey geometry
+     * @return free images of the geometry, or null if there are too many
+     *         geometries
+     */
+    private synchronized BlockingQueue<Mat> add(final long aKey) {
+
+        BlockingQueue<Mat> result = find(aKey);
+        if (null == result && buckets.length < MAX_GEOMETRIES) {
+            result = new ArrayBlockingQueue<>(Math.max(1, capacity));
+            Bucket[] grown = Arrays.copyOf(buckets, buckets.length + 1);
+            grown[buckets.length] = new Bucket(aKey, result);
+            buckets = grown;
+        }
+        return result;
+    }
+
+    /**
+     * Packs the geometry of an image into a key.
+     *
+     * @param aRows number of rows
+     * @param aCols number of columns
+     * @param aType type
+     * @return key
+     */
+    private static long key(final int aRows, final int aCols, final int aType) {
+        return ((long) aRows << 40) | ((long) aCols << 16) | (aType & 0xFFFF);
+    }
+
+    /**
+     * Free images of a geometry.
+     */
+    private static final class Bucket {
+
+        /** Geometry. */
+        private final long key;
+
+        /** Free images. */
+        private final BlockingQueue<Mat> queue;
+
+        /**
+         * Constructor.
+         *
+         * @param aKey geometry
+         * @param aQueue free images
+         */
+        private Bucket(final long aKey, final BlockingQueue<Mat> aQueue) {
+            key = aKey;
+            queue = aQueue;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package nifi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+/**
+ * A trained face recognizer stored on disk, together with the fingerprint
+ * of the training set it has been trained on.
+ * <p>
+ * The model itself is written with {@link FaceRecognizer#save(String)}, so
+ * the file extension (.yml, .xml, .yml.gz, ...) selects the format. The
+ * fingerprint is kept next to it in a file with the ".fingerprint" suffix,
+ * and the {@link TrainingManifest} in a file with the ".manifest" suffix.
+ * An {@link HnswIndex} over the model, if any, is kept in a file with the
+ * ".hnsw" suffix, and the projections a quantized gallery re-ranks with in
+ * a file with the ".projections" suffix.
+ */
+public class ModelFile {
+
+    /** Suffix of the file holding the training set fingerprint. */
+    private static final String FINGERPRINT_SUFFIX = ".fingerprint";
+
+    /** Suffix of the file holding the training manifest. */
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    /** Suffix of the file holding the HNSW index. */
+    private static final String INDEX_SUFFIX = ".hnsw";
+
+    /** Suffix of the file holding the projections of a quantized gallery. */
+    private static final String PROJECTIONS_SUFFIX = ".projections";
+
+    /** Model file. */
+    private final File file;
+
+    /** File with the fingerprint of the training set. */
+    private final File fingerprintFile;
+
+    /** File with the training manifest. */
+    private final File manifestFile;
+
+    /** File with the HNSW index. */
+    private final File indexFile;
+
+    /** File with the projections of a quantized gallery. */
+    private final File projectionsFile;
+
+    /**
+     * Constructor.
+     *
+     * @param aFile model file
+     */
+    public ModelFile(final File aFile) {
+        file = aFile.getAbsoluteFile();
+        fingerprintFile = new File(file.getPath() + FINGERPRINT_SUFFIX);
+        manifestFile = new File(file.getPath() + MANIFEST_SUFFIX);
+        indexFile = new File(file.getPath() + INDEX_SUFFIX);
+        projectionsFile = new File(file.getPath() + PROJECTIONS_SUFFIX);
+    }
+
+    /**
+     * Computes the fingerprint of a training set. The fingerprint changes
+     * whenever an image is added, removed or modified, or another
+     * algorithm is used.
+     *
+     * @param aImageFiles training images
+     * @param aAlgorithm face recognition algorithm
+     * @return fingerprint as a hex string
+     */
+    public static String fingerprint(final File[] aImageFiles, final String aAlgorithm) {
+
+        File[] imageFiles = aImageFiles.clone();
+        Arrays.sort(imageFiles, new Comparator<File>() {
+            @Override
+            public int compare(final File aFirst, final File aSecond) {
+                return aFirst.getName().compareTo(aSecond.getName());
+            }
+        });
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(aAlgorithm.getBytes(StandardCharsets.UTF_8));
+        for (File imageFile : imageFiles) {
+            String entry = imageFile.getName() + ':' + imageFile.length() + ':'
+                    + imageFile.lastModified() + '\n';
+            digest.update(entry.getBytes(StandardCharsets.UTF_8));
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest()) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Loads the stored model into a face recognizer, if the model exists and
+     * has been trained on a training set with the given fingerprint.
+     *
+     * @param aRecognizer face recognizer created for the model's algorithm
+     * @param aFingerprint fingerprint of the current training set
+     * @return true if the model has been loaded
+     * @throws IOException exception
+     */
+    public boolean load(final FaceRecognizer aRecognizer, final String aFingerprint)
+            throws IOException {
+
+        if (!file.isFile() || !fingerprintFile.isFile()) {
+            return false;
+        }
+
+        String stored = new String(Files.readAllBytes(fingerprintFile.toPath()),
+                StandardCharsets.UTF_8).trim();
+        if (!stored.equals(aFingerprint)) {
+            return false;
+        }
+
+        aRecognizer.load(file.getPath());
+        return true;
+    }
+
+    /**
+     * Loads the stored model into a face recognizer, whatever training set
+     * it has been trained on, provided its manifest is stored too.
+     *
+     * @param aRecognizer face recognizer created for the model's algorithm
+     * @param aAlgorithm face recognition algorithm
+     * @return manifest of the loaded model, or null if nothing has been
+     *         loaded
+     * @throws IOException exception
+     */
+    public TrainingManifest loadStale(final FaceRecognizer aRecognizer, final String aAlgorithm)
+            throws IOException {
+
+        if (!file.isFile()) {
+            return null;
+        }
+
+        TrainingManifest result = TrainingManifest.read(manifestFile, aAlgorithm);
+        if (null != result) {
+            aRecognizer.load(file.getPath());
+        }
+        return result;
+    }
+
+    /**
+     * Saves a face model together with the fingerprint and manifest of its
+     * training set. The model is written to a temporary file first and then
+     * moved in place, so a concurrent reader never sees a partially written
+     * model.
+     *
+     * @param aModel face model
+     * @param aFingerprint fingerprint of the training set
+     * @throws IOException exception
+     */
+    public void save(final FaceModel aModel, final String aFingerprint) throws IOException {
+
+        File dir = file.getParentFile();
+        if (null != dir) {
+            Files.createDirectories(dir.toPath());
+        }
+
+        // the temporary file keeps the extension, which selects the format
+        File tmpFile = new File(dir, ".tmp-" + file.getName());
+        aModel.getRecognizer().save(tmpFile.getPath());
+
+        Files.deleteIfExists(fingerprintFile.toPath());
+        Files.deleteIfExists(manifestFile.toPath());
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        if (null != aModel.getManifest()) {
+            aModel.getManifest().write(manifestFile, aModel.getAlgorithm());
+        }
+        Files.write(fingerprintFile.toPath(), aFingerprint.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Loads the stored HNSW index, if it exists and has been built over the
+     * given vectors with the given parameters.
+     *
+     * @param aVectors vectors, one after the other
+     * @param aDimensions number of dimensions of a vector
+     * @param aM maximum number of neighbours of a node on the upper layers
+     * @param aEfConstruction beam width while building the graph
+     * @return index, or null if nothing has been loaded
+     * @throws IOException exception
+     */
+    public HnswIndex loadIndex(final float[] aVectors, final int aDimensions, final int aM,
+            final int aEfConstruction) throws IOException {
+
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            return HnswIndex.read(in, aVectors, aDimensions, aM, aEfConstruction);
+        }
+    }
+
+    /**
+     * Saves an HNSW index next to the model, through a temporary file like
+     * the model itself.
+     *
+     * @param aIndex index
+     * @throws IOException exception
+     */
+    public void saveIndex(final HnswIndex aIndex) throws IOException {
+
+        File dir = file.getParentFile();
+        if (null != dir) {
+            Files.createDirectories(dir.toPath());
+        }
+
+        File tmpFile = new File(dir, ".tmp-" + indexFile.getName());
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            aIndex.write(out);
+        }
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the model file.
+     *
+     * @return model file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the file the projections of a quantized gallery are mapped
+     * from, see {@link SubspaceEngine#quantize(int, int, File)}.
+     *
+     * @return projections file
+     */
+    public File getProjectionsFile() {
+        return projectionsFile;
+    }
+}
@@ -0,0 +1,317 @@
+package nifi;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32SC1;
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.apache.nifi.processor.exception.ProcessException;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.bytedeco.javacpp.opencv_imgproc;
+
+/**
+ * A training set packed into a single gallery file, which is memory-mapped
+ * instead of decoded image by image.
+ * <p>
+ * The file holds a header, the labels of the images and the grayscale
+ * pixels of the images, all of the same size, one block after the other:
+ *
+ * <pre>
+ * int magic "EKFG", int version, int count, int rows, int cols
+ * int label[count]
+ * padding up to a multiple of 64 bytes
+ * byte pixels[count][rows * cols]
+ * </pre>
+ *
+ * Integers are little-endian. Loading a gallery maps the file and wraps
+ * every block into a Mat without copying it, so loading is bounded by the
+ * speed of the page cache rather than by image decoding.
+ * <p>
+ * Galleries are built by {@link #main(String[])} from a training set folder.
+ */
+public final class PackedTrainingSet {
+
+    /** Extension of gallery files. */
+    public static final String EXTENSION = ".gallery";
+
+    /** Magic number, "EKFG". */
+    private static final int MAGIC = 0x47464B45;
+
+    /** Version of the format. */
+    private static final int VERSION = 1;
+
+    /** Size of the header, in bytes. */
+    private static final int HEADER_SIZE = 20;
+
+    /** Alignment of the pixel blocks, in bytes. */
+    private static final int ALIGNMENT = 64;
+
+    /** Number of images decoded at once while packing. */
+    private static final int PACK_BATCH = 256;
+
+    /**
+     * Constructor.
+     */
+    private PackedTrainingSet() {
+    }
+
+    /**
+     * Packs a training set folder into a gallery file.
+     *
+     * @param aArgs training set folder, gallery file and optionally the width
+     *            and height of the packed images, by default those of the
+     *            first image
+     * @throws IOException exception
+     */
+    public static void main(final String[] aArgs) throws IOException {
+
+        if (2 != aArgs.length && 4 != aArgs.length) {
+            System.err.println("Usage: PackedTrainingSet <training dir> <gallery file"
+                    + EXTENSION + "> [<width> <height>]");
+            System.exit(1);
+        }
+
+        File[] imageFiles = FaceRecognitionProcessor.listImages(aArgs[0]);
+        int cols = 4 == aArgs.length ? Integer.parseInt(aArgs[2]) : 0;
+        int rows = 4 == aArgs.length ? Integer.parseInt(aArgs[3]) : 0;
+        long start = System.currentTimeMillis();
+        pack(imageFiles, new File(aArgs[1]), rows, cols,
+                Runtime.getRuntime().availableProcessors());
+        System.out.println("Packed " + imageFiles.length + " images into " + aArgs[1] + " in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Tells whether a training set is a gallery file.
+     *
+     * @param aFile training set
+     * @return true if the training set is a gallery file
+     */
+    public static boolean isPacked(final File aFile) {
+        return aFile.getName().toLowerCase().endsWith(EXTENSION) && aFile.isFile();
+    }
+
+    /**
+     * Packs training images into a gallery file. Images of another size are
+     * resized. The file is replaced atomically.
+     *
+     * @param aImageFiles training images, named "&lt;label&gt;-..."
+     * @param aFile gallery file
+     * @param aRows height of the packed images, or 0 for the height of the
+     *            first image
+     * @param aCols width of the packed images, or 0 for the width of the
+     *            first image
+     * @param aParallelism number of decoding threads
+     * @throws IOException exception
+     */
+    public static void pack(final File[] aImageFiles, final File aFile, final int aRows,
+            final int aCols, final int aParallelism) throws IOException {
+
+        if (0 == aImageFiles.length) {
+            throw new IOException("No training images to pack into " + aFile);
+        }
+
+        int rows = aRows;
+        int cols = aCols;
+        if (rows <= 0 || cols <= 0) {
+            Mat first = TrainingSet.decode(aImageFiles[0]);
+            rows = first.rows();
+            cols = first.cols();
+            first.deallocate();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(pixelOffset(aImageFiles.length))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(aImageFiles.length).putInt(rows)
+                .putInt(cols);
+        for (File imageFile : aImageFiles) {
+            header.putInt(TrainingSet.parseLabel(imageFile));
+        }
+        header.rewind();
+
+        File tmpFile = new File(aFile.getAbsoluteFile().getParentFile(),
+                ".tmp-" + aFile.getName());
+        Size size = new Size(cols, rows);
+        Mat resized = new Mat(rows, cols, CV_8UC1);
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+
+            write(channel, header);
+            for (int from = 0; from < aImageFiles.length; from += PACK_BATCH) {
+                File[] batch = Arrays.copyOfRange(aImageFiles, from,
+                        Math.min(from + PACK_BATCH, aImageFiles.length));
+                TrainingSet loaded = TrainingSet.load(batch, aParallelism);
+                MatVector images = loaded.getImages();
+                for (int i = 0; i < batch.length; i++) {
+                    Mat image = images.get(i);
+                    if (image.rows() != rows || image.cols() != cols || !image.isContinuous()) {
+                        opencv_imgproc.resize(image, resized, size, 0, 0,
+                                opencv_imgproc.INTER_AREA);
+                        image = resized;
+                    }
+                    write(channel, image.<ByteBuffer>createBuffer());
+                }
+                // the batches of a large training set would not fit in memory
+                images.deallocate();
+                loaded.getLabels().deallocate();
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmpFile.toPath());
+            throw e;
+        } finally {
+            resized.deallocate();
+            size.deallocate();
+        }
+        Files.move(tmpFile.toPath(), aFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a gallery file. The images are views of the mapped file, so they
+     * must not be modified, and the returned training set must stay reachable
+     * as long as they are used.
+     *
+     * @param aFile gallery file
+     * @return training set
+     * @throws IOException if the file cannot be read or is not a gallery
+     */
+    public static TrainingSet load(final File aFile) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(aFile.toPath(), StandardOpenOption.READ)) {
+
+            int[] header = readHeader(channel, aFile);
+            int count = header[0];
+            int rows = header[1];
+            int cols = header[2];
+
+            long length = channel.size();
+            int offset = pixelOffset(count);
+            int blockSize = rows * cols;
+            if (length != offset + (long) count * blockSize) {
+                throw new IOException("Truncated gallery file: " + aFile);
+            }
+
+            Mat labels = new Mat(count, 1, CV_32SC1);
+            IntBuffer labelsBuf = labels.createBuffer();
+            IntBuffer labelsIn = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                    4L * count).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            labelsBuf.put(labelsIn);
+
+            // a mapping is limited to 2 GB, so large galleries are mapped in
+            // segments of whole blocks
+            int segmentBlocks = Integer.MAX_VALUE / blockSize;
+            ByteBuffer[] segments = new ByteBuffer[(count + segmentBlocks - 1) / segmentBlocks];
+            MatVector images = new MatVector(count);
+            for (int s = 0; s < segments.length; s++) {
+                int first = s * segmentBlocks;
+                int blocks = Math.min(segmentBlocks, count - first);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        offset + (long) first * blockSize, (long) blocks * blockSize);
+                for (int i = 0; i < blocks; i++) {
+                    ByteBuffer block = segments[s].duplicate();
+                    block.position(i * blockSize).limit((i + 1) * blockSize);
+                    images.put(first + i, new Mat(rows, cols, CV_8UC1,
+                            new BytePointer(block.slice())));
+                }
+            }
+            return new TrainingSet(images, labels, segments);
+        }
+    }
+
+    /**
+     * Reads the size of the images of a gallery file.
+     *
+     * @param aFile gallery file
+     * @return size of the images
+     * @throws IOException if the file cannot be read or is not a gallery
+     */
+    public static Size faceSize(final File aFile) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(aFile.toPath(), StandardOpenOption.READ)) {
+            int[] header = readHeader(channel, aFile);
+            return new Size(header[2], header[1]);
+        }
+    }
+
+    /**
+     * Loads a gallery file, reporting failures as processing errors.
+     *
+     * @param aFile gallery file
+     * @return training set
+     */
+    static TrainingSet loadOrFail(final File aFile) {
+
+        try {
+            return load(aFile);
+        } catch (IOException e) {
+            throw new ProcessException("Cannot load the gallery " + aFile, e);
+        }
+    }
+
+    /**
+     * Reads and checks the header of a gallery file.
+     *
+     * @param aChannel gallery file channel
+     * @param aFile gallery file
+     * @return number of images, rows and columns
+     * @throws IOException if the file cannot be read or is not a gallery
+     */
+    private static int[] readHeader(final FileChannel aChannel, final File aFile)
+            throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (aChannel.read(header, header.position()) < 0) {
+                throw new IOException("Not a gallery file: " + aFile);
+            }
+        }
+        header.flip();
+        int magic = header.getInt();
+        int version = header.getInt();
+        int count = header.getInt();
+        int rows = header.getInt();
+        int cols = header.getInt();
+        if (MAGIC != magic || VERSION != version || count < 0 || rows <= 0 || cols <= 0) {
+            throw new IOException("Not a gallery file: " + aFile);
+        }
+        return new int[] {count, rows, cols};
+    }
+
+    /**
+     * Returns the offset of the pixel blocks.
+     *
+     * @param aCount number of images
+     * @return offset, in bytes
+     */
+    private static int pixelOffset(final int aCount) {
+        int end = HEADER_SIZE + 4 * aCount;
+        return (end + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Writes a buffer fully.
+     *
+     * @param aChannel file channel
+     * @param aBuffer buffer
+     * @throws IOException exception
+     */
+    private static void write(final FileChannel aChannel, final ByteBuffer aBuffer)
+            throws IOException {
+        while (aBuffer.hasRemaining()) {
+            aChannel.write(aBuffer);
+        }
+    }
+}
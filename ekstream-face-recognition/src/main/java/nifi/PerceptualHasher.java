@@ -0,0 +1,55 @@
+package nifi;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.bytedeco.javacpp.opencv_imgproc;
+
+/**
+ * Computes the 64-bit difference hash (dHash) of a grayscale face: the face
+ * is shrunk to 9x8 pixels, and every bit tells whether a pixel is brighter
+ * than its right neighbour. Near-identical faces have hashes within a small
+ * Hamming distance.
+ * <p>
+ * The hasher reuses its buffers, every thread needs its own instance.
+ */
+public class PerceptualHasher {
+
+    /** Width of the shrunk face. */
+    private static final int WIDTH = 9;
+
+    /** Height of the shrunk face. */
+    private static final int HEIGHT = 8;
+
+    /** Size of the shrunk face. */
+    private final Size size = new Size(WIDTH, HEIGHT);
+
+    /** Shrunk face. */
+    private final Mat small = new Mat(HEIGHT, WIDTH, CV_8UC1);
+
+    /** Pixels of the shrunk face. */
+    private final byte[] pixels = new byte[WIDTH * HEIGHT];
+
+    /**
+     * Computes the hash of a face.
+     *
+     * @param aFace grayscale face
+     * @return hash
+     */
+    public long hash(final Mat aFace) {
+
+        opencv_imgproc.resize(aFace, small, size, 0, 0, opencv_imgproc.INTER_AREA);
+        small.data().get(pixels);
+
+        long result = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH - 1; x++) {
+                int left = pixels[y * WIDTH + x] & 0xFF;
+                int right = pixels[y * WIDTH + x + 1] & 0xFF;
+                result = (result << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return result;
+    }
+}
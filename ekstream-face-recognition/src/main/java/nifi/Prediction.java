@@ -0,0 +1,52 @@
+package nifi;
+
+/**
+ * A predicted label together with the distance between the face and the
+ * closest training image of that label.
+ */
+public class Prediction {
+
+    /** Predicted label. */
+    private final int label;
+
+    /** Distance to the closest training image, lower is better. */
+    private final double confidence;
+
+    /**
+     * Constructor.
+     *
+     * @param aLabel predicted label
+     * @param aConfidence distance to the closest training image
+     */
+    public Prediction(final int aLabel, final double aConfidence) {
+        label = aLabel;
+        confidence = aConfidence;
+    }
+
+    /**
+     * Returns the predicted label.
+     *
+     * @return label, or -1 if the face has not been recognised
+     */
+    public int getLabel() {
+        return label;
+    }
+
+    /**
+     * Returns the distance between the face and the closest training image
+     * of the predicted label.
+     *
+     * @return distance, lower is better
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return label + " (" + confidence + ")";
+    }
+}
@@ -0,0 +1,278 @@
+package nifi;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compresses vectors into byte codes by product quantization: a vector is
+ * cut into consecutive sub-vectors, and each sub-vector is replaced by the
+ * index of the closest of up to 256 centroids learnt by k-means for its
+ * subspace. A vector of c floats thus shrinks to one byte per subspace.
+ * <p>
+ * Distances are computed asymmetrically: the query stays uncompressed, the
+ * squared distances of its sub-vectors to all centroids are computed once
+ * into a lookup table, see {@link #table(float[], float[])}, and the
+ * distance to a code is the sum of one table entry per subspace, see
+ * {@link #distance(float[], byte[], int)}.
+ * <p>
+ * The quantizer is immutable and safe for concurrent use.
+ */
+public final class ProductQuantizer {
+
+    /** Maximum number of centroids per subspace, as codes are bytes. */
+    public static final int CENTROIDS = 256;
+
+    /** Number of k-means iterations. */
+    private static final int ITERATIONS = 10;
+
+    /** Maximum number of vectors k-means learns from. */
+    private static final int MAX_TRAINING_VECTORS = 64 * CENTROIDS;
+
+    /** Seed of the k-means initialisation, so that codes are reproducible. */
+    private static final long SEED = 42;
+
+    /** Number of dimensions of a vector. */
+    private final int dimensions;
+
+    /** Number of subspaces. */
+    private final int subspaces;
+
+    /** First dimension of every subspace, followed by the dimensions. */
+    private final int[] bounds;
+
+    /** Number of centroids per subspace. */
+    private final int centroids;
+
+    /**
+     * Centroids, subspace by subspace: centroid k of subspace s starts at
+     * {@code centroids * bounds[s] + k * width(s)}.
+     */
+    private final float[] codebooks;
+
+    /**
+     * Constructor.
+     *
+     * @param aDimensions number of dimensions of a vector
+     * @param aSubspaces number of subspaces
+     * @param aCentroids number of centroids per subspace
+     */
+    private ProductQuantizer(final int aDimensions, final int aSubspaces, final int aCentroids) {
+
+        dimensions = aDimensions;
+        subspaces = aSubspaces;
+        centroids = aCentroids;
+        bounds = new int[aSubspaces + 1];
+        for (int s = 0; s <= aSubspaces; s++) {
+            bounds[s] = (int) ((long) s * aDimensions / aSubspaces);
+        }
+        codebooks = new float[aCentroids * aDimensions];
+    }
+
+    /**
+     * Learns the centroids of every subspace from a set of vectors.
+     *
+     * @param aVectors vectors, one after the other
+     * @param aDimensions number of dimensions of a vector
+     * @param aSubspaces number of subspaces, at most the number of dimensions
+     * @return quantizer
+     */
+    public static ProductQuantizer train(final float[] aVectors, final int aDimensions,
+            final int aSubspaces) {
+
+        if (aSubspaces < 1 || aSubspaces > aDimensions) {
+            throw new IllegalArgumentException("Cannot split " + aDimensions
+                    + " dimensions into " + aSubspaces + " subspaces.");
+        }
+        int size = aVectors.length / aDimensions;
+        if (0 == size) {
+            throw new IllegalArgumentException("No vector to learn centroids from.");
+        }
+
+        // k-means learns from a random sample of large sets
+        Random random = new Random(SEED);
+        int[] sample = new int[Math.min(size, MAX_TRAINING_VECTORS)];
+        for (int i = 0; i < size; i++) {
+            if (i < sample.length) {
+                sample[i] = i;
+            } else {
+                int j = random.nextInt(i + 1);
+                if (j < sample.length) {
+                    sample[j] = i;
+                }
+            }
+        }
+
+        ProductQuantizer result = new ProductQuantizer(aDimensions, aSubspaces,
+                Math.min(CENTROIDS, sample.length));
+        for (int s = 0; s < aSubspaces; s++) {
+            result.kMeans(aVectors, sample, s, random);
+        }
+        return result;
+    }
+
+    /**
+     * Encodes vectors.
+     *
+     * @param aVectors vectors, one after the other
+     * @return codes, one byte per subspace and vector, vector after vector
+     */
+    public byte[] encode(final float[] aVectors) {
+
+        int size = aVectors.length / dimensions;
+        byte[] result = new byte[size * subspaces];
+        for (int n = 0; n < size; n++) {
+            for (int s = 0; s < subspaces; s++) {
+                result[n * subspaces + s] = (byte) closest(aVectors, n * dimensions, s);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the lookup table of a query: the squared distances of its
+     * sub-vectors to all centroids.
+     *
+     * @param aQuery query
+     * @param aTable table of {@link #tableLength()} entries, centroid k of
+     *            subspace s at {@code s * CENTROIDS + k}
+     */
+    public void table(final float[] aQuery, final float[] aTable) {
+
+        for (int s = 0; s < subspaces; s++) {
+            int from = bounds[s];
+            int width = bounds[s + 1] - from;
+            int base = centroids * from;
+            for (int k = 0; k < centroids; k++) {
+                int offset = base + k * width;
+                float sum = 0;
+                for (int i = 0; i < width; i++) {
+                    float diff = aQuery[from + i] - codebooks[offset + i];
+                    sum += diff * diff;
+                }
+                aTable[s * CENTROIDS + k] = sum;
+            }
+        }
+    }
+
+    /**
+     * Computes the approximate squared distance between a query and a code.
+     *
+     * @param aTable lookup table of the query
+     * @param aCodes codes
+     * @param aVector index of the vector
+     * @return squared distance
+     */
+    public float distance(final float[] aTable, final byte[] aCodes, final int aVector) {
+
+        int offset = aVector * subspaces;
+        float sum0 = 0;
+        float sum1 = 0;
+        int s = 0;
+        for (; s + 2 <= subspaces; s += 2) {
+            sum0 += aTable[s * CENTROIDS + (aCodes[offset + s] & 0xFF)];
+            sum1 += aTable[(s + 1) * CENTROIDS + (aCodes[offset + s + 1] & 0xFF)];
+        }
+        for (; s < subspaces; s++) {
+            sum0 += aTable[s * CENTROIDS + (aCodes[offset + s] & 0xFF)];
+        }
+        return sum0 + sum1;
+    }
+
+    /**
+     * Returns the length of a lookup table.
+     *
+     * @return number of entries
+     */
+    public int tableLength() {
+        return subspaces * CENTROIDS;
+    }
+
+    /**
+     * Returns the number of subspaces, i.e. the length of a code.
+     *
+     * @return number of subspaces
+     */
+    public int getSubspaces() {
+        return subspaces;
+    }
+
+    /**
+     * Learns the centroids of a subspace with Lloyd's algorithm.
+     *
+     * @param aVectors vectors, one after the other
+     * @param aSample vectors to learn from
+     * @param aSubspace subspace
+     * @param aRandom random generator
+     */
+    private void kMeans(final float[] aVectors, final int[] aSample, final int aSubspace,
+            final Random aRandom) {
+
+        int from = bounds[aSubspace];
+        int width = bounds[aSubspace + 1] - from;
+        int base = centroids * from;
+
+        // distinct sample vectors as initial centroids
+        int[] order = aSample.clone();
+        for (int k = 0; k < centroids; k++) {
+            int j = k + aRandom.nextInt(order.length - k);
+            int chosen = order[j];
+            order[j] = order[k];
+            order[k] = chosen;
+            System.arraycopy(aVectors, chosen * dimensions + from, codebooks, base + k * width,
+                    width);
+        }
+
+        float[] sums = new float[centroids * width];
+        int[] counts = new int[centroids];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            Arrays.fill(sums, 0f);
+            Arrays.fill(counts, 0);
+            for (int n : aSample) {
+                int offset = n * dimensions;
+                int k = closest(aVectors, offset, aSubspace);
+                counts[k]++;
+                for (int i = 0; i < width; i++) {
+                    sums[k * width + i] += aVectors[offset + from + i];
+                }
+            }
+            for (int k = 0; k < centroids; k++) {
+                // an empty cluster keeps its centroid
+                if (counts[k] > 0) {
+                    for (int i = 0; i < width; i++) {
+                        codebooks[base + k * width + i] = sums[k * width + i] / counts[k];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the closest centroid of a sub-vector.
+     *
+     * @param aVectors vectors
+     * @param aOffset offset of the vector
+     * @param aSubspace subspace
+     * @return index of the centroid
+     */
+    private int closest(final float[] aVectors, final int aOffset, final int aSubspace) {
+
+        int from = bounds[aSubspace];
+        int width = bounds[aSubspace + 1] - from;
+        int base = centroids * from;
+        int result = 0;
+        float best = Float.MAX_VALUE;
+        for (int k = 0; k < centroids; k++) {
+            int offset = base + k * width;
+            float sum = 0;
+            for (int i = 0; i < width; i++) {
+                float diff = aVectors[aOffset + from + i] - codebooks[offset + i];
+                sum += diff * diff;
+            }
+            if (sum < best) {
+                best = sum;
+                result = k;
+            }
+        }
+        return result;
+    }
+}
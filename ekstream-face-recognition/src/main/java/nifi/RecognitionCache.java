@@ -0,0 +1,353 @@
+package nifi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of recent predictions, so that the long runs of near-identical
+ * faces produced by static cameras are not recognised again and again.
+ * <p>
+ * Predictions are looked up either by a hash of the encoded frame, which
+ * matches identical frames before they are even decoded, or by the
+ * perceptual hash of the face, which matches faces within a Hamming
+ * distance. Both indexes are bounded in size, evict the least recently used
+ * entries first and expire entries after a time to live. Entries only match
+ * the face model they have been predicted with.
+ * <p>
+ * Similar faces are found by multi-index hashing: perceptual hashes are cut
+ * into one more segment than the maximum distance, so two hashes within the
+ * distance are equal on at least one segment, and only the entries sharing
+ * a segment with the face are compared with it.
+ * <p>
+ * The cache is thread-safe.
+ */
+public class RecognitionCache {
+
+    /** Maximum number of entries per index. */
+    public static final int MAX_SIZE = 100000;
+
+    /** Predictions by hash of the encoded frame. */
+    private final Map<Long, Entry> exact;
+
+    /** Predictions by perceptual hash of the face. */
+    private final Map<Long, Entry> similar;
+
+    /** Time to live of an entry, in nanoseconds. */
+    private final long ttl;
+
+    /** Maximum Hamming distance of similar faces, or a negative value. */
+    private final int maxDistance;
+
+    /** Bit masks of the segments of a perceptual hash. */
+    private final long[] segments;
+
+    /**
+     * Entries of the similar index by segment, then by the bits of the
+     * segment, then by perceptual hash.
+     */
+    private final List<Map<Long, Map<Long, Entry>>> buckets;
+
+    /** Number of lookups answered since the last report. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of lookups not answered since the last report. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param aMaxSize maximum number of entries per index, at most
+     *            {@link #MAX_SIZE}
+     * @param aTtl time to live of an entry, in milliseconds
+     * @param aMaxDistance maximum Hamming distance between the perceptual
+     *            hashes of similar faces, or a negative value to match
+     *            identical frames only
+     */
+    public RecognitionCache(final int aMaxSize, final long aTtl, final int aMaxDistance) {
+
+        if (aMaxSize < 1 || aMaxSize > MAX_SIZE) {
+            throw new IllegalArgumentException("Cache size must be between 1 and " + MAX_SIZE
+                    + ", got " + aMaxSize);
+        }
+        exact = lru(aMaxSize, false);
+        similar = lru(aMaxSize, true);
+        ttl = TimeUnit.MILLISECONDS.toNanos(aTtl);
+        maxDistance = aMaxDistance;
+
+        if (aMaxDistance >= Long.SIZE) {
+            // every hash is similar, so all of them share a single bucket
+            segments = new long[1];
+        } else {
+            segments = new long[Math.max(aMaxDistance, 0) + 1];
+            for (int i = 0; i < segments.length; i++) {
+                int from = i * Long.SIZE / segments.length;
+                int to = (i + 1) * Long.SIZE / segments.length;
+                segments[i] = to - from == Long.SIZE ? -1L : ((1L << (to - from)) - 1) << from;
+            }
+        }
+        buckets = new ArrayList<>(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            buckets.add(new HashMap<Long, Map<Long, Entry>>());
+        }
+    }
+
+    /**
+     * Tells whether faces are matched by perceptual hash.
+     *
+     * @return true if similar faces are matched
+     */
+    public boolean isPerceptual() {
+        return maxDistance >= 0;
+    }
+
+    /**
+     * Looks up the predictions for an identical frame.
+     *
+     * @param aHash hash of the encoded frame
+     * @param aModel current face model
+     * @return predictions, or null
+     */
+    public List<Prediction> get(final long aHash, final FaceModel aModel) {
+
+        List<Prediction> result;
+        synchronized (this) {
+            result = valid(exact, exact.get(aHash), aHash, aModel);
+        }
+        count(result);
+        return result;
+    }
+
+    /**
+     * Looks up the predictions for the closest similar face. Entries met on
+     * the way which have expired or belong to another face model are
+     * removed, and do not hide valid entries further away.
+     *
+     * @param aHash perceptual hash of the face
+     * @param aModel current face model
+     * @return predictions, or null
+     */
+    public List<Prediction> getSimilar(final long aHash, final FaceModel aModel) {
+
+        List<Prediction> result = null;
+        synchronized (this) {
+            Long closest = null;
+            int closestDistance = maxDistance + 1;
+            List<Long> stale = null;
+            long now = System.nanoTime();
+            for (int i = 0; i < segments.length && closestDistance > 0; i++) {
+                Map<Long, Entry> bucket = buckets.get(i).get(aHash & segments[i]);
+                if (null == bucket) {
+                    continue;
+                }
+                for (Map.Entry<Long, Entry> entry : bucket.entrySet()) {
+                    int distance = Long.bitCount(entry.getKey() ^ aHash);
+                    if (distance >= closestDistance) {
+                        continue;
+                    }
+                    if (entry.getValue().model != aModel || now - entry.getValue().expires > 0) {
+                        if (null == stale) {
+                            stale = new ArrayList<>();
+                        }
+                        stale.add(entry.getKey());
+                    } else {
+                        closest = entry.getKey();
+                        closestDistance = distance;
+                    }
+                }
+            }
+            if (null != stale) {
+                for (Long hash : stale) {
+                    remove(similar, hash);
+                }
+            }
+            if (null != closest) {
+                // the lookup moves the entry to the most recently used end
+                result = similar.get(closest).predictions;
+            }
+        }
+        count(result);
+        return result;
+    }
+
+    /**
+     * Stores the predictions for a frame.
+     *
+     * @param aHash hash of the encoded frame
+     * @param aModel face model
+     * @param aPredictions predictions
+     */
+    public synchronized void put(final long aHash, final FaceModel aModel,
+            final List<Prediction> aPredictions) {
+        exact.put(aHash, new Entry(aModel, aPredictions, System.nanoTime() + ttl));
+    }
+
+    /**
+     * Stores the predictions for a face.
+     *
+     * @param aHash perceptual hash of the face
+     * @param aModel face model
+     * @param aPredictions predictions
+     */
+    public synchronized void putSimilar(final long aHash, final FaceModel aModel,
+            final List<Prediction> aPredictions) {
+
+        Entry entry = new Entry(aModel, aPredictions, System.nanoTime() + ttl);
+        similar.put(aHash, entry);
+        for (int i = 0; i < segments.length; i++) {
+            Long bits = aHash & segments[i];
+            Map<Long, Entry> bucket = buckets.get(i).get(bits);
+            if (null == bucket) {
+                bucket = new HashMap<>();
+                buckets.get(i).put(bits, bucket);
+            }
+            bucket.put(aHash, entry);
+        }
+    }
+
+    /**
+     * Returns the number of lookups answered since the last call, and resets
+     * it.
+     *
+     * @return number of cache hits
+     */
+    public long takeHits() {
+        return hits.getAndSet(0);
+    }
+
+    /**
+     * Returns the number of lookups not answered since the last call, and
+     * resets it.
+     *
+     * @return number of cache misses
+     */
+    public long takeMisses() {
+        return misses.getAndSet(0);
+    }
+
+    /**
+     * Checks an entry, removing it if it has expired or belongs to another
+     * face model.
+     *
+     * @param aIndex index of the entry
+     * @param aEntry entry, or null
+     * @param aHash key of the entry
+     * @param aModel current face model
+     * @return predictions of the entry, or null
+     */
+    private List<Prediction> valid(final Map<Long, Entry> aIndex, final Entry aEntry,
+            final long aHash, final FaceModel aModel) {
+
+        if (null == aEntry) {
+            return null;
+        }
+        if (aEntry.model != aModel || System.nanoTime() - aEntry.expires > 0) {
+            remove(aIndex, aHash);
+            return null;
+        }
+        return aEntry.predictions;
+    }
+
+    /**
+     * Removes an entry from an index.
+     *
+     * @param aIndex index
+     * @param aHash key of the entry
+     */
+    private void remove(final Map<Long, Entry> aIndex, final long aHash) {
+        if (null != aIndex.remove(aHash) && aIndex == similar) {
+            unindex(aHash);
+        }
+    }
+
+    /**
+     * Removes a perceptual hash from the segment buckets.
+     *
+     * @param aHash perceptual hash
+     */
+    private void unindex(final long aHash) {
+
+        for (int i = 0; i < segments.length; i++) {
+            Long bits = aHash & segments[i];
+            Map<Long, Entry> bucket = buckets.get(i).get(bits);
+            bucket.remove(aHash);
+            if (bucket.isEmpty()) {
+                buckets.get(i).remove(bits);
+            }
+        }
+    }
+
+    /**
+     * Counts a lookup.
+     *
+     * @param aResult result of the lookup
+     */
+    private void count(final List<Prediction> aResult) {
+        if (null == aResult) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+    }
+
+    /**
+     * Creates an index evicting its least recently used entries.
+     *
+     * @param aMaxSize maximum number of entries
+     * @param aBucketed whether evicted entries are removed from the segment
+     *            buckets
+     * @return index
+     */
+    private Map<Long, Entry> lru(final int aMaxSize, final boolean aBucketed) {
+
+        return new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+
+            /** Serial version. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Entry> aEldest) {
+                if (size() <= aMaxSize) {
+                    return false;
+                }
+                if (aBucketed) {
+                    unindex(aEldest.getKey());
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Cached predictions.
+     */
+    private static final class Entry {
+
+        /** Face model the predictions have been made with. */
+        private final FaceModel model;
+
+        /** Predictions, the closest first. */
+        private final List<Prediction> predictions;
+
+        /** Expiry time, in nanoseconds. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         *
+         * @param aModel face model
+         * @param aPredictions predictions
+         * @param aExpires expiry time, in nanoseconds
+         */
+        private Entry(final FaceModel aModel, final List<Prediction> aPredictions,
+                final long aExpires) {
+            model = aModel;
+            predictions = aPredictions;
+            expires = aExpires;
+        }
+    }
+}
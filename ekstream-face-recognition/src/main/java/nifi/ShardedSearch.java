@@ -0,0 +1,120 @@
+package nifi;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the scan of a gallery into shards searched in parallel on a
+ * fork/join pool, so that a single prediction uses several cores.
+ * <p>
+ * Every shard collects its closest labels into its own {@link TopK}; the
+ * shard results are then merged into the result by minimum distance. The
+ * calling thread waits for the shards. Galleries smaller than a threshold
+ * are searched by the calling thread alone, as forking would cost more
+ * than it saves.
+ * <p>
+ * The search is immutable and safe for concurrent use, provided the shards
+ * are.
+ */
+public final class ShardedSearch {
+
+    /** Search by the calling thread alone. */
+    public static final ShardedSearch SEQUENTIAL = new ShardedSearch(null, 1, Integer.MAX_VALUE);
+
+    /** Pool searching the shards, or null. */
+    private final ForkJoinPool pool;
+
+    /** Number of shards. */
+    private final int shards;
+
+    /** Minimum number of training samples searched in parallel. */
+    private final int threshold;
+
+    /**
+     * Constructor.
+     *
+     * @param aPool pool searching the shards, or null if sequential
+     * @param aShards number of shards
+     * @param aThreshold minimum number of training samples searched in
+     *            parallel
+     */
+    public ShardedSearch(final ForkJoinPool aPool, final int aShards, final int aThreshold) {
+        pool = aPool;
+        shards = aShards;
+        threshold = aThreshold;
+    }
+
+    /**
+     * Tells whether a gallery is searched in parallel.
+     *
+     * @param aSize number of training samples
+     * @return true if the gallery is split into shards
+     */
+    public boolean isParallel(final int aSize) {
+        return null != pool && shards > 1 && aSize >= threshold && aSize >= shards;
+    }
+
+    /**
+     * Searches a gallery, in parallel if it is large enough.
+     *
+     * @param aSize number of training samples
+     * @param aShard search of a range of training samples
+     * @param aResult closest labels, collected up to its capacity
+     */
+    public void search(final int aSize, final Shard aShard, final TopK aResult) {
+
+        if (!isParallel(aSize)) {
+            aShard.search(0, aSize, aResult);
+            return;
+        }
+
+        final TopK[] results = new TopK[shards];
+        pool.invoke(new RecursiveAction() {
+
+            /** Serialization version. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+
+                ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[shards];
+                for (int i = 0; i < shards; i++) {
+                    final int from = (int) ((long) i * aSize / shards);
+                    final int to = (int) ((long) (i + 1) * aSize / shards);
+                    final TopK result = new TopK(aResult.capacity());
+                    results[i] = result;
+                    tasks[i] = ForkJoinTask.adapt(new Runnable() {
+                        @Override
+                        public void run() {
+                            aShard.search(from, to, result);
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
+
+        for (TopK result : results) {
+            for (int i = 0; i < result.size(); i++) {
+                aResult.offer(result.getLabel(i), result.getDistance(i));
+            }
+        }
+    }
+
+    /**
+     * Search of a range of training samples.
+     */
+    public interface Shard {
+
+        /**
+         * Searches the closest labels of the face among a range of training
+         * samples.
+         *
+         * @param aFrom first training sample
+         * @param aTo training sample after the last one
+         * @param aResult closest labels of the range
+         */
+        void search(int aFrom, int aTo, TopK aResult);
+    }
+}
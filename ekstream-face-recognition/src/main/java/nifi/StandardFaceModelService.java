@@ -0,0 +1,121 @@
+package nifi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.reporting.InitializationException;
+
+/**
+ * A face model service training the face recognizer from a folder of
+ * training images, with the same settings as {@link FaceRecognitionProcessor}.
+ */
+@Tags({"ekstream", "face", "recognition"})
+@CapabilityDescription("Trains a face recognizer once and shares it between face recognition "
+        + "processors. Services and processors configured with the same training and "
+        + "gallery settings share a single face recognizer.")
+public class StandardFaceModelService extends AbstractControllerService
+        implements FaceModelService {
+
+    /** List of service properties. */
+    private static final List<PropertyDescriptor> PROPERTIES;
+
+    static {
+        final List<PropertyDescriptor> supDescriptors = new ArrayList<>();
+        supDescriptors.add(FaceRecognitionProcessor.TRAINING_SET);
+        supDescriptors.add(FaceRecognitionProcessor.FACE_RECOGNIZER);
+        supDescriptors.add(FaceRecognitionProcessor.MODEL_FILE);
+        supDescriptors.add(FaceRecognitionProcessor.TRAINING_PARALLELISM);
+        supDescriptors.add(FaceRecognitionProcessor.RELOAD_ON_CHANGE);
+        supDescriptors.add(FaceRecognitionProcessor.RELOAD_DELAY);
+        supDescriptors.add(FaceRecognitionProcessor.HNSW_M);
+        supDescriptors.add(FaceRecognitionProcessor.HNSW_EF_SEARCH);
+        supDescriptors.add(FaceRecognitionProcessor.PQ_SUBSPACES);
+        supDescriptors.add(FaceRecognitionProcessor.PQ_RERANK);
+        supDescriptors.add(FaceRecognitionProcessor.SEARCH_PARALLELISM);
+        supDescriptors.add(FaceRecognitionProcessor.SEARCH_THRESHOLD);
+        PROPERTIES = Collections.unmodifiableList(supDescriptors);
+    }
+
+    /** Manager of the face model, or null while the service is disabled. */
+    private volatile FaceModelManager modelManager;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return PROPERTIES;
+    }
+
+    /**
+     * Starts training the face recognizer in background.
+     *
+     * @param aContext configuration context
+     * @throws InitializationException if the training set cannot be watched
+     */
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext aContext) throws InitializationException {
+
+        String trainingDir = aContext.getProperty(FaceRecognitionProcessor.TRAINING_SET)
+                .getValue();
+        long reloadDelay = aContext.getProperty(FaceRecognitionProcessor.RELOAD_ON_CHANGE)
+                .asBoolean() ? aContext.getProperty(FaceRecognitionProcessor.RELOAD_DELAY)
+                        .asTimePeriod(TimeUnit.MILLISECONDS) : -1;
+        GallerySettings gallerySettings = GallerySettings.EXACT.withSharding(
+                aContext.getProperty(FaceRecognitionProcessor.SEARCH_PARALLELISM).asInteger(),
+                aContext.getProperty(FaceRecognitionProcessor.SEARCH_THRESHOLD)
+                        .asInteger());
+        if (aContext.getProperty(FaceRecognitionProcessor.HNSW_M).isSet()) {
+            gallerySettings = gallerySettings.withHnsw(
+                    aContext.getProperty(FaceRecognitionProcessor.HNSW_M).asInteger(),
+                    aContext.getProperty(FaceRecognitionProcessor.HNSW_EF_SEARCH).asInteger());
+        }
+        if (aContext.getProperty(FaceRecognitionProcessor.PQ_SUBSPACES).isSet()) {
+            gallerySettings = gallerySettings.withProductQuantization(
+                    aContext.getProperty(FaceRecognitionProcessor.PQ_SUBSPACES).asInteger(),
+                    aContext.getProperty(FaceRecognitionProcessor.PQ_RERANK).asInteger());
+        }
+        try {
+            modelManager = FaceModelManager.acquire(trainingDir,
+                    aContext.getProperty(FaceRecognitionProcessor.FACE_RECOGNIZER).getValue(),
+                    aContext.getProperty(FaceRecognitionProcessor.MODEL_FILE).getValue(),
+                    aContext.getProperty(FaceRecognitionProcessor.TRAINING_PARALLELISM)
+                            .asInteger(),
+                    reloadDelay, gallerySettings, getLogger());
+        } catch (IOException e) {
+            throw new InitializationException("Cannot watch training images in " + trainingDir,
+                    e);
+        }
+    }
+
+    /**
+     * Releases the face recognizer.
+     */
+    @OnDisabled
+    public void onDisabled() {
+
+        if (null != modelManager) {
+            modelManager.release();
+            modelManager = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FaceModel getModel() {
+        FaceModelManager manager = modelManager;
+        return null == manager ? null : manager.getModel();
+    }
+}
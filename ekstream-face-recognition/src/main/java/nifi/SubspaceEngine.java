@@ -0,0 +1,525 @@
+package nifi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_face.BasicFaceRecognizer;
+
+/**
+ * Eigen and Fisher prediction in Java: a face is projected into the
+ * subspace of the model and compared by Euclidean distance with the
+ * projections of the training images, without calling into OpenCV.
+ * <p>
+ * The mean, the basis and the training projections are copied once out of
+ * the trained face recognizer into float arrays. The projections are laid
+ * out component by component (structure of arrays): the value of component
+ * j for training image n is at {@code j * size + n}. The search thus adds
+ * the squared differences of one component to the distances of all
+ * training images at once, a loop over contiguous arrays without
+ * dependency between iterations, which the JIT vectorises. The projection
+ * of the face is likewise computed one pixel at a time across all
+ * components.
+ * <p>
+ * With an {@link HnswIndex}, see {@link #withIndex(HnswIndex, int)}, the
+ * projection of the face is looked up in the graph instead of being
+ * compared with every training image, which trades a little recall for a
+ * search time growing with the logarithm of the gallery size.
+ * <p>
+ * With a {@link ProductQuantizer}, see {@link #quantize(int, int, File)},
+ * the float projections are replaced in memory by byte codes. Every code is
+ * compared with the face through a lookup table of the face, and the
+ * closest candidates are re-ranked exactly against the float projections,
+ * which are memory-mapped from a file, so that only the pages of the
+ * candidates are read and the operating system may evict them. The engine
+ * reads nothing from the face recognizer once built, so the recognizer may
+ * then be released.
+ * <p>
+ * With a {@link ShardedSearch}, see {@link #withSharding(ShardedSearch)},
+ * large galleries are scanned, exactly or through their codes, in parallel
+ * shards. Each shard of a quantized scan re-ranks its own candidates.
+ * <p>
+ * The engine is immutable and safe for concurrent use; every thread has its
+ * own working arrays, so a search allocates nothing and concurrent searches
+ * share nothing but read-only data.
+ */
+public class SubspaceEngine extends Gallery {
+
+    /** Mean of the training images, by pixel. */
+    private final float[] mean;
+
+    /** Basis of the subspace, pixel by pixel, d x c. */
+    private final float[] eigenVectors;
+
+    /**
+     * Projections of the training images, component by component, c x n,
+     * or null if quantized.
+     */
+    private final float[] projections;
+
+    /** Labels of the training images. */
+    private final int[] labels;
+
+    /** Number of pixels of a face. */
+    private final int dimensions;
+
+    /** Number of dimensions of the subspace. */
+    private final int components;
+
+    /** Index over the projections, or null for an exact search. */
+    private final HnswIndex index;
+
+    /** Beam width of an index search. */
+    private final int efSearch;
+
+    /** Quantizer of the projections, or null. */
+    private final ProductQuantizer quantizer;
+
+    /** Codes of the projections, or null. */
+    private final byte[] codes;
+
+    /**
+     * Projections re-ranking the candidates of a quantized scan, one after
+     * the other, n x c, memory-mapped, or null.
+     */
+    private final FloatBuffer mapped;
+
+    /** Number of candidates re-ranked after a quantized scan. */
+    private final int rerank;
+
+    /** Split of the scan into shards. */
+    private final ShardedSearch sharding;
+
+    /** Working arrays, one set per thread. */
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            // only an exact scan needs a distance to every training image
+            return new Scratch(dimensions, components,
+                    null == projections || null != index ? 0 : labels.length,
+                    Math.max(efSearch, rerank),
+                    null == quantizer ? 0 : quantizer.tableLength());
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param aRecognizer trained Eigen or Fisher face recognizer
+     */
+    public SubspaceEngine(final BasicFaceRecognizer aRecognizer) {
+
+        Mat basis = aRecognizer.getEigenVectors();
+        dimensions = basis.rows();
+        components = basis.cols();
+        labels = labels(aRecognizer.getLabels());
+
+        if ((long) dimensions * components > Integer.MAX_VALUE
+                || (long) components * labels.length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Subspace of " + dimensions + " x " + components
+                    + " for " + labels.length + " images is too large for Java arrays.");
+        }
+
+        mean = toFloats(aRecognizer.getMean().<DoubleBuffer>createBuffer(), dimensions);
+        eigenVectors = toFloats(basis.<DoubleBuffer>createBuffer(), dimensions * components);
+
+        projections = new float[components * labels.length];
+        MatVector trained = aRecognizer.getProjections();
+        for (int n = 0; n < labels.length; n++) {
+            DoubleBuffer projection = trained.get(n).createBuffer();
+            for (int j = 0; j < components; j++) {
+                projections[j * labels.length + n] = (float) projection.get(j);
+            }
+        }
+        index = null;
+        efSearch = 0;
+        quantizer = null;
+        codes = null;
+        mapped = null;
+        rerank = 0;
+        sharding = ShardedSearch.SEQUENTIAL;
+    }
+
+    /**
+     * Constructor of an engine sharing the subspace of another one.
+     *
+     * @param aEngine engine whose subspace is shared
+     * @param aProjections projections, component by component, or null
+     * @param aIndex index over the projections, or null
+     * @param aEfSearch beam width of an index search
+     * @param aQuantizer quantizer of the projections, or null
+     * @param aCodes codes of the projections, or null
+     * @param aMapped memory-mapped projections, n x c, or null
+     * @param aRerank number of candidates re-ranked after a quantized scan
+     * @param aSharding split of the scan into shards
+     */
+    private SubspaceEngine(final SubspaceEngine aEngine, final float[] aProjections,
+            final HnswIndex aIndex, final int aEfSearch, final ProductQuantizer aQuantizer,
+            final byte[] aCodes, final FloatBuffer aMapped, final int aRerank,
+            final ShardedSearch aSharding) {
+
+        mean = aEngine.mean;
+        eigenVectors = aEngine.eigenVectors;
+        projections = aProjections;
+        labels = aEngine.labels;
+        dimensions = aEngine.dimensions;
+        components = aEngine.components;
+        index = aIndex;
+        efSearch = aEfSearch;
+        quantizer = aQuantizer;
+        codes = aCodes;
+        mapped = aMapped;
+        rerank = aRerank;
+        sharding = aSharding;
+    }
+
+    /**
+     * Returns an engine searching through an index over the projections.
+     *
+     * @param aIndex index built over {@link #projectionRows()}
+     * @param aEfSearch beam width of a search
+     * @return engine
+     */
+    public SubspaceEngine withIndex(final HnswIndex aIndex, final int aEfSearch) {
+
+        if (aIndex.size() != labels.length) {
+            throw new IllegalArgumentException("Index of " + aIndex.size()
+                    + " vectors does not match " + labels.length + " training images.");
+        }
+        return new SubspaceEngine(this, projections, aIndex, aEfSearch, null, null, null, 0,
+                sharding);
+    }
+
+    /**
+     * Returns an engine keeping the projections in memory as product
+     * quantization codes, scanned, and in a memory-mapped file, re-ranking
+     * the candidates of the scan exactly. The file is replaced atomically,
+     * so that engines still mapping a previous version are not affected.
+     *
+     * @param aSubspaces number of subspaces, i.e. bytes per training image;
+     *            at most the number of dimensions of the subspace, fewer
+     *            are used otherwise
+     * @param aRerank number of candidates re-ranked
+     * @param aFile file the projections are written to and mapped from, or
+     *            null for a temporary file deleted once mapped
+     * @return engine
+     * @throws IOException if the projections cannot be written or mapped
+     */
+    public SubspaceEngine quantize(final int aSubspaces, final int aRerank, final File aFile)
+            throws IOException {
+
+        float[] rows = projectionRows();
+        if (4L * rows.length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Projections of " + labels.length
+                    + " images are too large to be mapped.");
+        }
+        ProductQuantizer result = ProductQuantizer.train(rows, components,
+                Math.min(aSubspaces, components));
+        return new SubspaceEngine(this, null, null, 0, result, result.encode(rows),
+                map(rows, aFile), Math.max(1, aRerank), sharding);
+    }
+
+    /**
+     * Writes projections to a file and maps it.
+     *
+     * @param aRows projections, n x c
+     * @param aFile file, or null for a temporary file deleted once mapped
+     * @return mapped projections
+     * @throws IOException if the projections cannot be written or mapped
+     */
+    private static FloatBuffer map(final float[] aRows, final File aFile) throws IOException {
+
+        File file = null == aFile ? File.createTempFile("gallery-", ".projections")
+                : aFile.getAbsoluteFile();
+        File tmpFile = null == aFile ? file
+                : new File(file.getParentFile(), ".tmp-" + file.getName());
+        try {
+            try (FileChannel channel = FileChannel.open(tmpFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer bytes = ByteBuffer.allocate(4 * aRows.length)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                bytes.asFloatBuffer().put(aRows);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            if (tmpFile != file) {
+                Files.move(tmpFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, 4L * aRows.length)
+                        .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+        } finally {
+            // a mapping outlives its file
+            if (null == aFile) {
+                Files.deleteIfExists(file.toPath());
+            } else {
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Returns an engine scanning the training images in shards. An index
+     * search is not sharded.
+     *
+     * @param aSharding split of the scan into shards
+     * @return engine
+     */
+    public SubspaceEngine withSharding(final ShardedSearch aSharding) {
+        return new SubspaceEngine(this, projections, index, efSearch, quantizer, codes, mapped,
+                rerank, aSharding);
+    }
+
+    /**
+     * Copies the projections of the training images, one after the other,
+     * as indexed by {@link HnswIndex}.
+     *
+     * @return projections, n x c
+     */
+    public float[] projectionRows() {
+
+        if (null == projections) {
+            throw new IllegalStateException("The projections have been quantized.");
+        }
+
+        int size = labels.length;
+        float[] result = new float[projections.length];
+        for (int j = 0; j < components; j++) {
+            int column = j * size;
+            for (int n = 0; n < size; n++) {
+                result[n * components + j] = projections[column + n];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of dimensions of the subspace.
+     *
+     * @return number of dimensions
+     */
+    public int getComponents() {
+        return components;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void search(final Mat aFace, final TopK aResult) {
+
+        if (aFace.total() != dimensions) {
+            throw new IllegalArgumentException("Face of " + aFace.total()
+                    + " pixels does not match training images of " + dimensions + " pixels.");
+        }
+        Scratch s = scratch.get();
+        s.pixels = pixels(aFace, s.pixels);
+
+        float[] query = s.query;
+        Arrays.fill(query, 0f);
+        for (int i = 0; i < dimensions; i++) {
+            float value = (s.pixels[i] & 0xFF) - mean[i];
+            int row = i * components;
+            for (int j = 0; j < components; j++) {
+                query[j] += value * eigenVectors[row + j];
+            }
+        }
+
+        if (null != index) {
+            int count = index.search(query, efSearch, s.ids, s.distances);
+            for (int i = 0; i < count; i++) {
+                double distance = Math.sqrt(s.distances[i]);
+                if (distance > aResult.bound()) {
+                    break;
+                }
+                aResult.offer(labels[s.ids[i]], distance);
+            }
+            return;
+        }
+
+        if (null != quantizer) {
+            quantizer.table(query, s.table);
+        }
+
+        // read-only while the shards run
+        final float[] projection = query;
+        final float[] table = s.table;
+        if (!sharding.isParallel(labels.length)) {
+            scan(projection, table, 0, labels.length, aResult);
+            return;
+        }
+        sharding.search(labels.length, new ShardedSearch.Shard() {
+            @Override
+            public void search(final int aFrom, final int aTo, final TopK aShardResult) {
+                scan(projection, table, aFrom, aTo, aShardResult);
+            }
+        }, aResult);
+    }
+
+    /**
+     * Compares a projected face with a range of training images, exactly or
+     * through their codes.
+     *
+     * @param aQuery projection of the face
+     * @param aTable lookup table of the face, if quantized
+     * @param aFrom first training image
+     * @param aTo training image after the last one
+     * @param aResult closest labels
+     */
+    private void scan(final float[] aQuery, final float[] aTable, final int aFrom,
+            final int aTo, final TopK aResult) {
+
+        // the working arrays of the thread running the shard
+        Scratch s = scratch.get();
+        if (null != quantizer) {
+            scanQuantized(aQuery, aTable, aFrom, aTo, s, aResult);
+            return;
+        }
+
+        int size = labels.length;
+        float[] distances = s.distances;
+        Arrays.fill(distances, aFrom, aTo, 0f);
+        for (int j = 0; j < components; j++) {
+            float q = aQuery[j];
+            int column = j * size;
+            for (int n = aFrom; n < aTo; n++) {
+                float diff = projections[column + n] - q;
+                distances[n] += diff * diff;
+            }
+        }
+
+        for (int n = aFrom; n < aTo; n++) {
+            double distance = Math.sqrt(distances[n]);
+            if (distance <= aResult.bound()) {
+                aResult.offer(labels[n], distance);
+            }
+        }
+    }
+
+    /**
+     * Scans the codes of a range of training images for the closest
+     * candidates of a projected face and re-ranks them against the mapped
+     * projections.
+     *
+     * @param aQuery projection of the face
+     * @param aTable lookup table of the face
+     * @param aFrom first training image
+     * @param aTo training image after the last one
+     * @param aScratch working arrays
+     * @param aResult closest labels
+     */
+    private void scanQuantized(final float[] aQuery, final float[] aTable, final int aFrom,
+            final int aTo, final Scratch aScratch, final TopK aResult) {
+
+        int[] ids = aScratch.ids;
+        float[] distances = aScratch.distances;
+        int count = 0;
+        for (int n = aFrom; n < aTo; n++) {
+            float distance = quantizer.distance(aTable, codes, n);
+            if (count == rerank && distance >= distances[count - 1]) {
+                continue;
+            }
+            // insertion into the candidates sorted by distance
+            int i = count < rerank ? count++ : count - 1;
+            while (i > 0 && distances[i - 1] > distance) {
+                distances[i] = distances[i - 1];
+                ids[i] = ids[i - 1];
+                i--;
+            }
+            distances[i] = distance;
+            ids[i] = n;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int row = ids[i] * components;
+            float sum = 0;
+            for (int j = 0; j < components; j++) {
+                float diff = mapped.get(row + j) - aQuery[j];
+                sum += diff * diff;
+            }
+            double distance = Math.sqrt(sum);
+            if (distance <= aResult.bound()) {
+                aResult.offer(labels[ids[i]], distance);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * Copies doubles into a float array.
+     *
+     * @param aBuffer doubles
+     * @param aLength number of doubles
+     * @return floats
+     */
+    private static float[] toFloats(final DoubleBuffer aBuffer, final int aLength) {
+
+        float[] result = new float[aLength];
+        for (int i = 0; i < aLength; i++) {
+            result[i] = (float) aBuffer.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Working arrays of a thread.
+     */
+    private static final class Scratch {
+
+        /** Projection of the face. */
+        private final float[] query;
+
+        /** Squared distances to the training images, neighbours or candidates. */
+        private final float[] distances;
+
+        /** Neighbours found by the index, or candidates of a quantized scan. */
+        private final int[] ids;
+
+        /** Lookup table of a quantized scan. */
+        private final float[] table;
+
+        /** Pixels of the face. */
+        private byte[] pixels;
+
+        /**
+         * Constructor.
+         *
+         * @param aDimensions number of pixels of a face
+         * @param aComponents number of dimensions of the subspace
+         * @param aSize number of training images, or 0 without an exact scan
+         * @param aCandidates number of index neighbours or quantized
+         *            candidates, or 0
+         * @param aTableLength length of a lookup table, or 0
+         */
+        private Scratch(final int aDimensions, final int aComponents, final int aSize,
+                final int aCandidates, final int aTableLength) {
+            pixels = new byte[aDimensions];
+            query = new float[aComponents];
+            distances = new float[Math.max(aSize, aCandidates)];
+            ids = new int[aCandidates];
+            table = new float[aTableLength];
+        }
+    }
+}
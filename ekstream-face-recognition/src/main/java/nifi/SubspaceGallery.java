@@ -0,0 +1,109 @@
+package nifi;
+
+import java.nio.DoubleBuffer;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_face.BasicFaceRecognizer;
+
+/**
+ * Gallery of an Eigen or Fisher face recognizer: the projections of the
+ * training images into the subspace of the model. A face is projected into
+ * the same subspace and compared by Euclidean distance, as in OpenCV.
+ */
+public class SubspaceGallery extends Gallery {
+
+    /** Mean of the training images, 1 x d. */
+    private final Mat mean;
+
+    /** Basis of the subspace, d x c. */
+    private final Mat eigenVectors;
+
+    /** Projections of the training images, each 1 x c. */
+    private final MatVector projections;
+
+    /** Native view of the mean. */
+    private final DoubleBuffer meanBuf;
+
+    /** Native view of the basis. */
+    private final DoubleBuffer eigenVectorsBuf;
+
+    /** Native views of the projections. */
+    private final DoubleBuffer[] projectionBufs;
+
+    /** Labels of the training images. */
+    private final int[] labels;
+
+    /** Number of pixels of a face. */
+    private final int dimensions;
+
+    /** Number of dimensions of the subspace. */
+    private final int components;
+
+    /**
+     * Constructor.
+     *
+     * @param aRecognizer trained Eigen or Fisher face recognizer
+     */
+    public SubspaceGallery(final BasicFaceRecognizer aRecognizer) {
+
+        mean = aRecognizer.getMean();
+        eigenVectors = aRecognizer.getEigenVectors();
+        projections = aRecognizer.getProjections();
+        labels = labels(aRecognizer.getLabels());
+
+        dimensions = eigenVectors.rows();
+        components = eigenVectors.cols();
+
+        meanBuf = mean.createBuffer();
+        eigenVectorsBuf = eigenVectors.createBuffer();
+        projectionBufs = new DoubleBuffer[(int) projections.size()];
+        for (int i = 0; i < projectionBufs.length; i++) {
+            projectionBufs[i] = projections.get(i).createBuffer();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void search(final Mat aFace, final TopK aResult) {
+
+        byte[] pixels = pixels(aFace);
+        if (pixels.length != dimensions) {
+            throw new IllegalArgumentException("Face of " + pixels.length
+                    + " pixels does not match training images of " + dimensions + " pixels.");
+        }
+
+        double[] query = new double[components];
+        for (int i = 0; i < dimensions; i++) {
+            double value = (pixels[i] & 0xFF) - meanBuf.get(i);
+            int row = i * components;
+            for (int j = 0; j < components; j++) {
+                query[j] += value * eigenVectorsBuf.get(row + j);
+            }
+        }
+
+        for (int n = 0; n < projectionBufs.length; n++) {
+            DoubleBuffer projection = projectionBufs[n];
+            double bound = aResult.bound();
+            bound = bound < Math.sqrt(Double.MAX_VALUE) ? bound * bound : Double.MAX_VALUE;
+            double sum = 0;
+            for (int j = 0; j < components && sum <= bound; j++) {
+                double diff = projection.get(j) - query[j];
+                sum += diff * diff;
+            }
+            if (sum <= bound) {
+                aResult.offer(labels[n], Math.sqrt(sum));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return labels.length;
+    }
+}
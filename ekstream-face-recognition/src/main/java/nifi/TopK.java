@@ -0,0 +1,142 @@
+package nifi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the K closest distinct labels out of a stream of
+ * (label, distance) candidates. Only the smallest distance of each label
+ * is kept.
+ * <p>
+ * Candidates are kept in small sorted arrays, so offering a candidate
+ * costs O(K) and allocates nothing. An instance can be reused after
+ * {@link #clear()}; it is not thread-safe.
+ */
+public class TopK {
+
+    /** Labels, sorted by distance. */
+    private final int[] labels;
+
+    /** Distances, sorted ascending. */
+    private final double[] distances;
+
+    /** Number of collected labels. */
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param aK maximum number of labels to collect
+     */
+    public TopK(final int aK) {
+        labels = new int[aK];
+        distances = new double[aK];
+    }
+
+    /**
+     * Offers a candidate.
+     *
+     * @param aLabel label
+     * @param aDistance distance
+     */
+    public void offer(final int aLabel, final double aDistance) {
+
+        if (size == labels.length && aDistance >= distances[size - 1]) {
+            return;
+        }
+
+        // a label already collected is moved up, or the candidate ignored
+        int pos = size;
+        for (int i = 0; i < size; i++) {
+            if (labels[i] == aLabel) {
+                if (aDistance >= distances[i]) {
+                    return;
+                }
+                pos = i;
+                break;
+            }
+        }
+        if (pos == size && size < labels.length) {
+            size++;
+        } else if (pos == size) {
+            pos = size - 1;
+        }
+
+        while (pos > 0 && distances[pos - 1] > aDistance) {
+            labels[pos] = labels[pos - 1];
+            distances[pos] = distances[pos - 1];
+            pos--;
+        }
+        labels[pos] = aLabel;
+        distances[pos] = aDistance;
+    }
+
+    /**
+     * Returns the worst distance still accepted, so callers can stop
+     * computing a distance as soon as it exceeds it.
+     *
+     * @return distance bound
+     */
+    public double bound() {
+        return size == labels.length ? distances[size - 1] : Double.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of collected labels.
+     *
+     * @return number of labels
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the maximum number of labels collected.
+     *
+     * @return K
+     */
+    public int capacity() {
+        return labels.length;
+    }
+
+    /**
+     * Returns a collected label.
+     *
+     * @param aIndex rank, 0 is the closest
+     * @return label
+     */
+    public int getLabel(final int aIndex) {
+        return labels[aIndex];
+    }
+
+    /**
+     * Returns the distance of a collected label.
+     *
+     * @param aIndex rank, 0 is the closest
+     * @return distance
+     */
+    public double getDistance(final int aIndex) {
+        return distances[aIndex];
+    }
+
+    /**
+     * Forgets all collected labels.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns the collected labels as predictions.
+     *
+     * @return predictions, the closest first
+     */
+    public List<Prediction> toPredictions() {
+
+        List<Prediction> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(new Prediction(labels[i], distances[i]));
+        }
+        return result;
+    }
+}
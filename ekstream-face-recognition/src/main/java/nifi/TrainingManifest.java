@@ -0,0 +1,150 @@
+package nifi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The training images a model has been trained on, identified by file name
+ * and stamped with their size and modification time.
+ * <p>
+ * Comparing the manifest of a model with the current training set tells
+ * whether images have only been added since, in which case the model can be
+ * updated with the new images instead of being retrained.
+ */
+public class TrainingManifest {
+
+    /** Stamps of the training images, by file name. */
+    private final Map<String, String> stamps;
+
+    /**
+     * Constructor.
+     *
+     * @param aStamps stamps of the training images, by file name
+     */
+    private TrainingManifest(final Map<String, String> aStamps) {
+        stamps = aStamps;
+    }
+
+    /**
+     * Creates the manifest of training images.
+     *
+     * @param aImageFiles training images
+     * @return manifest
+     */
+    public static TrainingManifest of(final File[] aImageFiles) {
+
+        Map<String, String> stamps = new HashMap<>();
+        for (File imageFile : aImageFiles) {
+            stamps.put(imageFile.getName(), stamp(imageFile));
+        }
+        return new TrainingManifest(stamps);
+    }
+
+    /**
+     * Reads a manifest written by {@link #write(File, String)}.
+     *
+     * @param aFile manifest file
+     * @param aAlgorithm face recognition algorithm of the model
+     * @return manifest, or null if the file does not exist or belongs to a
+     *         model of another algorithm
+     * @throws IOException exception
+     */
+    public static TrainingManifest read(final File aFile, final String aAlgorithm)
+            throws IOException {
+
+        if (!aFile.isFile()) {
+            return null;
+        }
+
+        List<String> lines = Files.readAllLines(aFile.toPath(), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(aAlgorithm)) {
+            return null;
+        }
+
+        Map<String, String> stamps = new HashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            int separator = line.lastIndexOf('\t');
+            if (separator > 0) {
+                stamps.put(line.substring(0, separator), line.substring(separator + 1));
+            }
+        }
+        return new TrainingManifest(stamps);
+    }
+
+    /**
+     * Writes the manifest, one "name TAB stamp" line per image after a
+     * header line with the algorithm.
+     *
+     * @param aFile manifest file
+     * @param aAlgorithm face recognition algorithm of the model
+     * @throws IOException exception
+     */
+    public void write(final File aFile, final String aAlgorithm) throws IOException {
+
+        List<String> lines = new ArrayList<>(stamps.size() + 1);
+        lines.add(aAlgorithm);
+        for (Map.Entry<String, String> entry : stamps.entrySet()) {
+            lines.add(entry.getKey() + '\t' + entry.getValue());
+        }
+        Files.write(aFile.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Tells whether every image of this manifest is still part of another
+     * manifest, unchanged.
+     *
+     * @param aOther other manifest, usually of the current training set
+     * @return true if images have only been added since this manifest
+     */
+    public boolean isContainedIn(final TrainingManifest aOther) {
+
+        for (Map.Entry<String, String> entry : stamps.entrySet()) {
+            if (!entry.getValue().equals(aOther.stamps.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the images which are not part of this manifest.
+     *
+     * @param aImageFiles training images
+     * @return images added since this manifest
+     */
+    public File[] added(final File[] aImageFiles) {
+
+        List<File> result = new ArrayList<>();
+        for (File imageFile : aImageFiles) {
+            if (!stamps.containsKey(imageFile.getName())) {
+                result.add(imageFile);
+            }
+        }
+        return result.toArray(new File[result.size()]);
+    }
+
+    /**
+     * Returns the number of images.
+     *
+     * @return number of images
+     */
+    public int size() {
+        return stamps.size();
+    }
+
+    /**
+     * Stamps an image with its size and modification time.
+     *
+     * @param aImageFile image
+     * @return stamp
+     */
+    private static String stamp(final File aImageFile) {
+        return aImageFile.length() + ":" + aImageFile.lastModified();
+    }
+}
@@ -0,0 +1,277 @@
+package nifi;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32SC1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.nifi.processor.exception.ProcessException;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+import org.bytedeco.javacpp.opencv_imgcodecs;
+
+/**
+ * Grayscale training images and their labels, ready to be passed to
+ * {@code FaceRecognizer.train}.
+ * <p>
+ * The native images do not keep the memory they point to reachable, so a
+ * face recognizer is trained through {@link #train(FaceRecognizer)} or
+ * {@link #update(FaceRecognizer)}, which keep the training set reachable
+ * until the native call returns.
+ */
+public class TrainingSet {
+
+    /** Number of images decoded by a single fork-join task. */
+    private static final int DECODE_BATCH = 8;
+
+    /** Sink keeping a training set reachable, never read. */
+    private static volatile Object reachable;
+
+    /** Training images. */
+    private final MatVector images;
+
+    /** Labels of the training images, a CV_32SC1 column. */
+    private final Mat labels;
+
+    /**
+     * Memory the images point to, or null if they own it. Only referenced
+     * to keep the memory reachable as long as the images.
+     */
+    private final Object backing;
+
+    /**
+     * Constructor.
+     *
+     * @param aImages training images
+     * @param aLabels labels of the training images
+     */
+    public TrainingSet(final MatVector aImages, final Mat aLabels) {
+        this(aImages, aLabels, null);
+    }
+
+    /**
+     * Constructor for images pointing to memory they do not own.
+     *
+     * @param aImages training images
+     * @param aLabels labels of the training images
+     * @param aBacking memory the images point to, e.g. mapped buffers
+     */
+    public TrainingSet(final MatVector aImages, final Mat aLabels, final Object aBacking) {
+        images = aImages;
+        labels = aLabels;
+        backing = aBacking;
+    }
+
+    /**
+     * Decodes training images in parallel. The label of an image is the
+     * number in front of the first '-' of its file name. A single gallery
+     * file is memory-mapped instead, see {@link PackedTrainingSet}.
+     *
+     * @param aImageFiles training images
+     * @param aParallelism number of decoding threads
+     * @return training set
+     */
+    public static TrainingSet load(final File[] aImageFiles, final int aParallelism) {
+
+        if (1 == aImageFiles.length && PackedTrainingSet.isPacked(aImageFiles[0])) {
+            return PackedTrainingSet.loadOrFail(aImageFiles[0]);
+        }
+
+        MatVector images = new MatVector(aImageFiles.length);
+        Mat labels = new Mat(aImageFiles.length, 1, CV_32SC1);
+        IntBuffer labelsBuf = labels.createBuffer();
+
+        // every task writes to its own indices of the pre-sized vector and
+        // buffer, so they can be filled concurrently without locking
+        ForkJoinPool pool = new ForkJoinPool(aParallelism);
+        try {
+            pool.invoke(new DecodeTask(aImageFiles, images, labelsBuf, 0, aImageFiles.length));
+        } finally {
+            pool.shutdown();
+        }
+
+        return new TrainingSet(images, labels);
+    }
+
+    /**
+     * Parses the label of a training image.
+     *
+     * @param aImageFile training image, named "&lt;label&gt;-..."
+     * @return label
+     */
+    public static int parseLabel(final File aImageFile) {
+        return Integer.parseInt(aImageFile.getName().split("\\-")[0]);
+    }
+
+    /**
+     * Returns the size of training images, which is the size of the first
+     * one; Eigen and Fisher face recognizers require them all to be of the
+     * same size.
+     *
+     * @param aImageFiles training images, or a single gallery file
+     * @return size of the training images, or null if there are none
+     */
+    public static Size faceSize(final File[] aImageFiles) {
+
+        if (0 == aImageFiles.length) {
+            return null;
+        }
+        if (PackedTrainingSet.isPacked(aImageFiles[0])) {
+            try {
+                return PackedTrainingSet.faceSize(aImageFiles[0]);
+            } catch (IOException e) {
+                throw new ProcessException("Cannot read the gallery " + aImageFiles[0], e);
+            }
+        }
+        Mat image = decode(aImageFiles[0]);
+        Size result = new Size(image.cols(), image.rows());
+        image.deallocate();
+        return result;
+    }
+
+    /**
+     * Decodes a training image as grayscale.
+     *
+     * @param aImageFile training image
+     * @return grayscale image
+     */
+    public static Mat decode(final File aImageFile) {
+
+        Mat result = opencv_imgcodecs.imread(aImageFile.getAbsolutePath(),
+                opencv_imgcodecs.CV_LOAD_IMAGE_GRAYSCALE);
+        if (result.empty()) {
+            throw new ProcessException("Cannot decode training image " + aImageFile);
+        }
+        return result;
+    }
+
+    /**
+     * Trains a face recognizer on the training images.
+     *
+     * @param aRecognizer face recognizer
+     */
+    public void train(final FaceRecognizer aRecognizer) {
+        try {
+            aRecognizer.train(images, labels);
+        } finally {
+            keepReachable();
+        }
+    }
+
+    /**
+     * Updates a face recognizer with the training images.
+     *
+     * @param aRecognizer face recognizer
+     */
+    public void update(final FaceRecognizer aRecognizer) {
+        try {
+            aRecognizer.update(images, labels);
+        } finally {
+            keepReachable();
+        }
+    }
+
+    /**
+     * Keeps this training set reachable up to this call. Otherwise, once its
+     * images have been handed to native code or read through their own
+     * buffers, it could be collected, and a memory-mapped gallery unmapped,
+     * while they are still read.
+     */
+    void keepReachable() {
+        reachable = this;
+        reachable = null;
+    }
+
+    /**
+     * Returns the training images.
+     *
+     * @return training images
+     */
+    public MatVector getImages() {
+        return images;
+    }
+
+    /**
+     * Returns the labels of the training images.
+     *
+     * @return labels, a CV_32SC1 column
+     */
+    public Mat getLabels() {
+        return labels;
+    }
+
+    /**
+     * Returns the number of training images.
+     *
+     * @return number of training images
+     */
+    public int size() {
+        return labels.rows();
+    }
+
+    /**
+     * Fork-join task decoding a range of training images.
+     */
+    private static class DecodeTask extends RecursiveAction {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /** Training images. */
+        private final File[] imageFiles;
+
+        /** Decoded images. */
+        private final MatVector images;
+
+        /** Labels of the decoded images. */
+        private final IntBuffer labelsBuf;
+
+        /** First index of the range, inclusive. */
+        private final int from;
+
+        /** Last index of the range, exclusive. */
+        private final int to;
+
+        /**
+         * Constructor.
+         *
+         * @param aImageFiles training images
+         * @param aImages decoded images
+         * @param aLabelsBuf labels of the decoded images
+         * @param aFrom first index of the range, inclusive
+         * @param aTo last index of the range, exclusive
+         */
+        DecodeTask(final File[] aImageFiles, final MatVector aImages,
+                final IntBuffer aLabelsBuf, final int aFrom, final int aTo) {
+            imageFiles = aImageFiles;
+            images = aImages;
+            labelsBuf = aLabelsBuf;
+            from = aFrom;
+            to = aTo;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void compute() {
+
+            if (to - from <= DECODE_BATCH) {
+                for (int i = from; i < to; i++) {
+                    labelsBuf.put(i, parseLabel(imageFiles[i]));
+                    images.put(i, decode(imageFiles[i]));
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new DecodeTask(imageFiles, images, labelsBuf, from, middle),
+                    new DecodeTask(imageFiles, images, labelsBuf, middle, to));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package nifi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.logging.ComponentLog;
+
+/**
+ * Watches a training set folder and reports changes once the folder has
+ * been quiet for a while, so that copying a batch of new images triggers a
+ * single rebuild instead of one per image.
+ */
+public class TrainingSetWatcher implements Closeable {
+
+    /** Watched folder. */
+    private final File dir;
+
+    /** Quiet period after the last change, in milliseconds. */
+    private final long delay;
+
+    /** Action run after a change. */
+    private final Runnable onChange;
+
+    /** Logger. */
+    private final ComponentLog logger;
+
+    /** Watch service. */
+    private final WatchService watchService;
+
+    /** Thread waiting for file system events. */
+    private final Thread watchThread;
+
+    /** Scheduler of the debounced action. */
+    private final ScheduledExecutorService scheduler;
+
+    /** Pending debounced action, or null. */
+    private ScheduledFuture<?> pending;
+
+    /**
+     * Constructor. Starts watching right away.
+     *
+     * @param aDir training set folder
+     * @param aDelay quiet period after the last change, in milliseconds
+     * @param aOnChange action run after a change
+     * @param aLogger logger
+     * @throws IOException exception
+     */
+    public TrainingSetWatcher(final File aDir, final long aDelay, final Runnable aOnChange,
+            final ComponentLog aLogger) throws IOException {
+
+        dir = aDir;
+        delay = aDelay;
+        onChange = aOnChange;
+        logger = aLogger;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable aRunnable) {
+                Thread thread = new Thread(aRunnable, "TrainingSetWatcher-reload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        watchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "TrainingSetWatcher-" + dir.getName());
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Waits for file system events and (re)schedules the action.
+     */
+    private void watch() {
+
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                key.pollEvents();
+                key.reset();
+                schedule();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException
+                | RejectedExecutionException e) {
+            return;
+        }
+    }
+
+    /**
+     * Schedules the action after the quiet period, cancelling the pending one.
+     */
+    private synchronized void schedule() {
+
+        if (null != pending) {
+            pending.cancel(false);
+        }
+        pending = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                logger.info("Training set " + dir + " changed.");
+                try {
+                    onChange.run();
+                } catch (RuntimeException e) {
+                    logger.error("Failed to handle the change of " + dir, e);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching. A pending action is cancelled.
+     *
+     * @throws IOException exception
+     */
+    @Override
+    public void close() throws IOException {
+        watchThread.interrupt();
+        scheduler.shutdownNow();
+        watchService.close();
+    }
+}
@@ -0,0 +1,238 @@
+package nifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link BatchFaceRecognitionProcessor}. FlowFiles packing several
+ * faces are recognised into JSON lines, and FlowFiles which are not a valid
+ * sequence of face records fail as a whole.
+ */
+public class BatchFaceRecognitionProcessorTest {
+
+    /** Number of identities of the training set. */
+    private static final int IDENTITIES = 8;
+
+    /** Number of images per identity. */
+    private static final int IMAGES_PER_IDENTITY = 3;
+
+    /** Maximum time for training and recognising, in milliseconds. */
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+    /** Identifier of the face model service. */
+    private static final String SERVICE_ID = "faces";
+
+    /** Training set folder. */
+    private File trainingSet;
+
+    /** Runner of the processor. */
+    private TestRunner runner;
+
+    /**
+     * Generates the training set and sets up the processor and its face
+     * model service.
+     *
+     * @throws IOException exception
+     * @throws InitializationException exception
+     */
+    @Before
+    public void setUp() throws IOException, InitializationException {
+
+        trainingSet = TestFaces.trainingSet(IDENTITIES, IMAGES_PER_IDENTITY);
+
+        StandardFaceModelService service = new StandardFaceModelService();
+        runner = TestRunners.newTestRunner(BatchFaceRecognitionProcessor.class);
+        runner.addControllerService(SERVICE_ID, service);
+        runner.setProperty(service, FaceRecognitionProcessor.TRAINING_SET,
+                trainingSet.getPath());
+        runner.setProperty(service, FaceRecognitionProcessor.FACE_RECOGNIZER,
+                FaceRecognitionProcessor.JAVA_LBPH.getValue());
+        runner.enableControllerService(service);
+        runner.setProperty(BatchFaceRecognitionProcessor.FACE_MODEL_SERVICE, SERVICE_ID);
+    }
+
+    /**
+     * Deletes the training set.
+     *
+     * @throws IOException exception
+     */
+    @After
+    public void tearDown() throws IOException {
+        TestFaces.delete(trainingSet);
+    }
+
+    /**
+     * Recognises the faces of a FlowFile, one line per face in the order of
+     * the records, with a face that cannot be decoded reported on its line.
+     *
+     * @throws IOException exception
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void recognisesPackedFaces() throws IOException, InterruptedException {
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(content);
+        for (int i = 0; i < IDENTITIES; i++) {
+            BatchFaceRecognitionProcessor.writeRecord(out, "face-" + i,
+                    TestFaces.png(i, i % IMAGES_PER_IDENTITY));
+        }
+        byte[] garbage = new byte[100];
+        Arrays.fill(garbage, (byte) 7);
+        BatchFaceRecognitionProcessor.writeRecord(out, "garbage", garbage);
+        out.flush();
+
+        runner.enqueue(content.toByteArray());
+        run(runner);
+
+        runner.assertTransferCount(BatchFaceRecognitionProcessor.REL_FAILURE, 0);
+        runner.assertTransferCount(BatchFaceRecognitionProcessor.REL_ORIGINAL, 1);
+        runner.assertTransferCount(BatchFaceRecognitionProcessor.REL_SUCCESS, 1);
+        MockFlowFile result = runner.getFlowFilesForRelationship(
+                BatchFaceRecognitionProcessor.REL_SUCCESS).get(0);
+        result.assertAttributeEquals(BatchFaceRecognitionProcessor.RECORD_COUNT_ATTRIBUTE,
+                String.valueOf(IDENTITIES + 1));
+        result.assertAttributeEquals(BatchFaceRecognitionProcessor.RECOGNIZED_COUNT_ATTRIBUTE,
+                String.valueOf(IDENTITIES));
+        result.assertAttributeEquals(FaceRecognitionProcessor.ALGORITHM_ATTRIBUTE,
+                FaceRecognitionProcessor.JAVA_LBPH.getValue());
+
+        String[] lines = lines(result);
+        assertEquals(IDENTITIES + 1, lines.length);
+        for (int i = 0; i < IDENTITIES; i++) {
+            assertTrue(lines[i], lines[i].startsWith("{\"id\":\"face-" + i + "\",\"label\":"
+                    + i + ",\"confidence\":"));
+            assertTrue(lines[i], lines[i].endsWith(",\"recognized\":true}"));
+        }
+        assertEquals("{\"id\":\"garbage\",\"error\":\"Cannot decode the face\"}",
+                lines[IDENTITIES]);
+    }
+
+    /**
+     * Checks that a FlowFile ending in the middle of a record fails, and that
+     * its good records are not reported.
+     *
+     * @throws IOException exception
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void failsTruncatedRecord() throws IOException, InterruptedException {
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(content);
+        BatchFaceRecognitionProcessor.writeRecord(out, "face-0", TestFaces.png(0, 0));
+        BatchFaceRecognitionProcessor.writeRecord(out, "face-1", TestFaces.png(1, 0));
+        out.flush();
+        byte[] packed = content.toByteArray();
+
+        runner.enqueue(Arrays.copyOf(packed, packed.length - 10));
+        run(runner);
+
+        runner.assertAllFlowFilesTransferred(BatchFaceRecognitionProcessor.REL_FAILURE, 1);
+    }
+
+    /**
+     * Checks that an image length beyond the end of the FlowFile fails
+     * instead of allocating that length.
+     *
+     * @throws IOException exception
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void failsOversizedRecord() throws IOException, InterruptedException {
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(content);
+        BatchFaceRecognitionProcessor.writeRecord(out, "face-0", TestFaces.png(0, 0));
+        byte[] id = "face-1".getBytes(StandardCharsets.UTF_8);
+        out.writeShort(id.length);
+        out.write(id);
+        out.writeInt(Integer.MAX_VALUE);
+        out.write(TestFaces.png(1, 0));
+        out.flush();
+
+        runner.enqueue(content.toByteArray());
+        run(runner);
+
+        runner.assertAllFlowFilesTransferred(BatchFaceRecognitionProcessor.REL_FAILURE, 1);
+    }
+
+    /**
+     * Checks that quotes, backslashes and control characters of ids are
+     * escaped, so that every face stays on a JSON line of its own.
+     *
+     * @throws IOException exception
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void escapesIds() throws IOException, InterruptedException {
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(content);
+        BatchFaceRecognitionProcessor.writeRecord(out, "a\"b\\c\nd\u0001\u00e9",
+                TestFaces.png(3, 0));
+        BatchFaceRecognitionProcessor.writeRecord(out, "face-4", TestFaces.png(4, 0));
+        out.flush();
+
+        runner.enqueue(content.toByteArray());
+        run(runner);
+
+        runner.assertTransferCount(BatchFaceRecognitionProcessor.REL_SUCCESS, 1);
+        String[] lines = lines(runner.getFlowFilesForRelationship(
+                BatchFaceRecognitionProcessor.REL_SUCCESS).get(0));
+        assertEquals(2, lines.length);
+        assertTrue(lines[0], lines[0].startsWith(
+                "{\"id\":\"a\\\"b\\\\c\\u000ad\\u0001\u00e9\",\"label\":3,"));
+        assertTrue(lines[1], lines[1].startsWith("{\"id\":\"face-4\",\"label\":4,"));
+    }
+
+    /**
+     * Splits the predictions of a FlowFile into lines.
+     *
+     * @param aFlowFile FlowFile of predictions
+     * @return lines, without line separators
+     */
+    private static String[] lines(final MockFlowFile aFlowFile) {
+
+        String json = new String(aFlowFile.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(json, json.endsWith("\n"));
+        return json.split("\n");
+    }
+
+    /**
+     * Runs the processor until all enqueued FlowFiles are processed, then
+     * stops it.
+     *
+     * @param aRunner runner of the processor
+     * @throws InterruptedException if interrupted
+     */
+    private static void run(final TestRunner aRunner) throws InterruptedException {
+
+        // the processor yields until the background training is complete
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        boolean initialize = true;
+        while (!aRunner.isQueueEmpty()) {
+            assertTrue("FlowFiles not processed in time.", System.currentTimeMillis() < deadline);
+            aRunner.run(1, false, initialize);
+            initialize = false;
+            Thread.sleep(10);
+        }
+        aRunner.run(1, true, false);
+    }
+}
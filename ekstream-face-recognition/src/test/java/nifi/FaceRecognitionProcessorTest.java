@@ -0,0 +1,206 @@
+package nifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link FaceRecognitionProcessor}. Many frames of known faces are
+ * recognised by several threads at once, and every frame must be routed and
+ * labelled as if it had been recognised alone.
+ */
+public class FaceRecognitionProcessorTest {
+
+    /** Number of identities of the training set. */
+    private static final int IDENTITIES = 8;
+
+    /** Number of images per identity. */
+    private static final int IMAGES_PER_IDENTITY = 3;
+
+    /** Number of concurrent tasks. */
+    private static final int THREADS = 8;
+
+    /** Number of frames recognised. */
+    private static final int FLOW_FILES = 800;
+
+    /** Maximum time for training and recognising, in milliseconds. */
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+    /** Attribute holding the label a frame shows. */
+    private static final String EXPECTED_LABEL = "expected.label";
+
+    /** Training set folder. */
+    private File trainingSet;
+
+    /**
+     * Generates the training set.
+     *
+     * @throws IOException exception
+     */
+    @Before
+    public void setUp() throws IOException {
+        trainingSet = TestFaces.trainingSet(IDENTITIES, IMAGES_PER_IDENTITY);
+    }
+
+    /**
+     * Deletes the training set.
+     *
+     * @throws IOException exception
+     */
+    @After
+    public void tearDown() throws IOException {
+        TestFaces.delete(trainingSet);
+    }
+
+    /**
+     * Recognises frames one per task.
+     *
+     * @throws IOException exception
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void recognisesConcurrently() throws IOException, InterruptedException {
+        recognise(runner("1"));
+    }
+
+    /**
+     * Recognises frames in batches, through the result cache, so that
+     * tasks share cached predictions.
+     *
+     * @throws IOException exception
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void recognisesConcurrentlyThroughCache() throws IOException, InterruptedException {
+
+        TestRunner runner = runner("4");
+        runner.setProperty(FaceRecognitionProcessor.RESULT_CACHE_SIZE, "16");
+        runner.setProperty(FaceRecognitionProcessor.HASH_DISTANCE, "0");
+        recognise(runner);
+        assertTrue(runner.getCounterValue("Result cache hits") > 0);
+    }
+
+    /**
+     * Checks that a frame which cannot be decoded fails after a good frame,
+     * and that a frame only ImageIO can read is still recognised.
+     *
+     * @throws IOException exception
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void failsUndecodableFrameAfterGoodOne() throws IOException, InterruptedException {
+
+        TestRunner runner = runner("1");
+        runner.setThreadCount(1);
+        byte[] garbage = new byte[1000];
+        Arrays.fill(garbage, (byte) 7);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(TestFaces.png(2, 0)));
+        ByteArrayOutputStream gif = new ByteArrayOutputStream();
+        ImageIO.write(image, "gif", gif);
+
+        runner.enqueue(TestFaces.png(1, 0), Collections.singletonMap(EXPECTED_LABEL, "1"));
+        runner.enqueue(garbage);
+        runner.enqueue(gif.toByteArray(), Collections.singletonMap(EXPECTED_LABEL, "2"));
+        run(runner);
+
+        runner.assertTransferCount(FaceRecognitionProcessor.REL_FAILURE, 1);
+        runner.assertTransferCount(FaceRecognitionProcessor.REL_SUCCESS, 2);
+        for (MockFlowFile flowFile : runner.getFlowFilesForRelationship(
+                FaceRecognitionProcessor.REL_SUCCESS)) {
+            flowFile.assertAttributeEquals(FaceRecognitionProcessor.LABEL_ATTRIBUTE,
+                    flowFile.getAttribute(EXPECTED_LABEL));
+        }
+    }
+
+    /**
+     * Creates a runner of the processor.
+     *
+     * @param aBatchSize number of frames per trigger
+     * @return runner
+     */
+    private TestRunner runner(final String aBatchSize) {
+
+        TestRunner result = TestRunners.newTestRunner(FaceRecognitionProcessor.class);
+        result.setProperty(FaceRecognitionProcessor.TRAINING_SET, trainingSet.getPath());
+        result.setProperty(FaceRecognitionProcessor.FACE_RECOGNIZER,
+                FaceRecognitionProcessor.JAVA_LBPH.getValue());
+        result.setProperty(FaceRecognitionProcessor.SAVE_IMAGES, "false");
+        result.setProperty(FaceRecognitionProcessor.BATCH_SIZE, aBatchSize);
+        result.setThreadCount(THREADS);
+        return result;
+    }
+
+    /**
+     * Recognises frames of training images by concurrent tasks and checks
+     * the routing and the attributes of every frame.
+     *
+     * @param aRunner runner of the processor
+     * @throws IOException exception
+     * @throws InterruptedException if interrupted
+     */
+    private static void recognise(final TestRunner aRunner)
+            throws IOException, InterruptedException {
+
+        byte[][] frames = new byte[IDENTITIES * IMAGES_PER_IDENTITY][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = TestFaces.png(i / IMAGES_PER_IDENTITY, i % IMAGES_PER_IDENTITY);
+        }
+        for (int i = 0; i < FLOW_FILES; i++) {
+            int frame = i % frames.length;
+            aRunner.enqueue(frames[frame], Collections.singletonMap(EXPECTED_LABEL,
+                    String.valueOf(frame / IMAGES_PER_IDENTITY)));
+        }
+        run(aRunner);
+
+        aRunner.assertAllFlowFilesTransferred(FaceRecognitionProcessor.REL_SUCCESS, FLOW_FILES);
+        for (MockFlowFile flowFile : aRunner.getFlowFilesForRelationship(
+                FaceRecognitionProcessor.REL_SUCCESS)) {
+            flowFile.assertAttributeEquals(FaceRecognitionProcessor.LABEL_ATTRIBUTE,
+                    flowFile.getAttribute(EXPECTED_LABEL));
+            flowFile.assertAttributeEquals(FaceRecognitionProcessor.ALGORITHM_ATTRIBUTE,
+                    FaceRecognitionProcessor.JAVA_LBPH.getValue());
+            assertEquals(0, Double.parseDouble(
+                    flowFile.getAttribute(FaceRecognitionProcessor.CONFIDENCE_ATTRIBUTE)), 1e-6);
+            assertTrue(Long.parseLong(
+                    flowFile.getAttribute(FaceRecognitionProcessor.LATENCY_ATTRIBUTE)) >= 0);
+        }
+    }
+
+    /**
+     * Runs the processor until all enqueued frames are processed, then stops
+     * it.
+     *
+     * @param aRunner runner of the processor
+     * @throws InterruptedException if interrupted
+     */
+    private static void run(final TestRunner aRunner) throws InterruptedException {
+
+        // the processor yields until the background training is complete
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        boolean initialize = true;
+        while (!aRunner.isQueueEmpty()) {
+            assertTrue("Frames not processed in time.", System.currentTimeMillis() < deadline);
+            aRunner.run(4 * THREADS, false, initialize);
+            initialize = false;
+            Thread.sleep(10);
+        }
+        aRunner.run(1, true, false);
+    }
+}
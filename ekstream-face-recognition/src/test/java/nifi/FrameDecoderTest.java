@@ -0,0 +1,143 @@
+package nifi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of {@link FrameDecoder}.
+ */
+public class FrameDecoderTest {
+
+    /** Pool of decoded images. */
+    private final MatPool pool = new MatPool(2);
+
+    /** Decoder. */
+    private final FrameDecoder decoder = new FrameDecoder(pool);
+
+    /**
+     * Frees the pool.
+     */
+    @After
+    public void tearDown() {
+        pool.clear();
+    }
+
+    /**
+     * Checks that frames are decoded into images of their pixels.
+     *
+     * @throws IOException exception
+     */
+    @Test
+    public void decodesFrames() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            assertPixels(TestFaces.pixels(i, i), decode(TestFaces.png(i, i)));
+        }
+    }
+
+    /**
+     * Checks that a frame no decoder can read is not taken for the previous
+     * one.
+     *
+     * @throws IOException exception
+     */
+    @Test
+    public void refusesUndecodableFrameAfterGoodOne() throws IOException {
+
+        assertPixels(TestFaces.pixels(0, 0), decode(TestFaces.png(0, 0)));
+        byte[] garbage = new byte[1000];
+        Arrays.fill(garbage, (byte) 7);
+        assertNull(decode(garbage));
+    }
+
+    /**
+     * Checks that a frame only ImageIO can read is decoded after a frame
+     * OpenCV has decoded.
+     *
+     * @throws IOException exception
+     */
+    @Test
+    public void decodesGifAfterGoodFrame() throws IOException {
+
+        assertPixels(TestFaces.pixels(0, 0), decode(TestFaces.png(0, 0)));
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(TestFaces.png(1, 0)));
+        ByteArrayOutputStream gif = new ByteArrayOutputStream();
+        ImageIO.write(image, "gif", gif);
+
+        Mat decoded = decode(gif.toByteArray());
+        assertNotNull(decoded);
+        assertEquals(TestFaces.SIZE, decoded.rows());
+        assertEquals(TestFaces.SIZE, decoded.cols());
+        assertPixels(TestFaces.pixels(1, 0), decoded);
+    }
+
+    /**
+     * Checks that a black frame is decoded after a frame of another content.
+     *
+     * @throws IOException exception
+     */
+    @Test
+    public void decodesBlackFrame() throws IOException {
+
+        assertPixels(TestFaces.pixels(0, 0), decode(TestFaces.png(0, 0)));
+        byte[] black = new byte[TestFaces.SIZE * TestFaces.SIZE];
+        assertPixels(black, decode(png(black)));
+    }
+
+    /**
+     * Decodes a frame.
+     *
+     * @param aFrame encoded frame
+     * @return decoded image, or null
+     * @throws IOException exception
+     */
+    private Mat decode(final byte[] aFrame) throws IOException {
+        return decoder.decode(new ByteArrayInputStream(aFrame), aFrame.length);
+    }
+
+    /**
+     * Checks the pixels of a decoded image and hands it back to the pool.
+     *
+     * @param aExpected expected pixels
+     * @param aImage decoded image
+     */
+    private void assertPixels(final byte[] aExpected, final Mat aImage) {
+
+        assertNotNull(aImage);
+        byte[] pixels = new byte[aExpected.length];
+        aImage.<ByteBuffer>createBuffer().get(pixels);
+        assertArrayEquals(aExpected, pixels);
+        pool.release(aImage);
+    }
+
+    /**
+     * Encodes grayscale pixels as PNG.
+     *
+     * @param aPixels pixels of a {@link TestFaces#SIZE} square image
+     * @return encoded image
+     * @throws IOException exception
+     */
+    private static byte[] png(final byte[] aPixels) throws IOException {
+
+        BufferedImage image = new BufferedImage(TestFaces.SIZE, TestFaces.SIZE,
+                BufferedImage.TYPE_BYTE_GRAY);
+        image.getRaster().setDataElements(0, 0, TestFaces.SIZE, TestFaces.SIZE, aPixels);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", result);
+        return result.toByteArray();
+    }
+}
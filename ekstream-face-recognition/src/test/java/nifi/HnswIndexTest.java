@@ -0,0 +1,189 @@
+package nifi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link HnswIndex}.
+ */
+public class HnswIndexTest {
+
+    /** Number of vectors. */
+    private static final int SIZE = 2000;
+
+    /** Number of dimensions of a vector. */
+    private static final int DIMENSIONS = 16;
+
+    /** Maximum number of neighbours of a node. */
+    private static final int M = 8;
+
+    /** Beam width while building the graph. */
+    private static final int EF_CONSTRUCTION = 100;
+
+    /** Beam width of a search. */
+    private static final int EF_SEARCH = 16;
+
+    /** Number of queries. */
+    private static final int QUERIES = 500;
+
+    /**
+     * Minimum recall@1 against the exact scan. A graph whose links are
+     * corrupted while it is built stays around 0.85 on this set.
+     */
+    private static final double MIN_RECALL = 0.93;
+
+    /**
+     * Checks that the nearest neighbour found through the graph is the one
+     * found by the exact scan for most queries.
+     */
+    @Test
+    public void recallMatchesExactScan() {
+
+        Random random = new Random(7);
+        float[] vectors = TestVectors.random(random, SIZE, DIMENSIONS);
+        float[] queries = TestVectors.random(random, QUERIES, DIMENSIONS);
+        HnswIndex index = HnswIndex.build(vectors, DIMENSIONS, M, EF_CONSTRUCTION);
+
+        int[] ids = new int[EF_SEARCH];
+        float[] distances = new float[EF_SEARCH];
+        float[] query = new float[DIMENSIONS];
+        int found = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            System.arraycopy(queries, q * DIMENSIONS, query, 0, DIMENSIONS);
+            int count = index.search(query, EF_SEARCH, ids, distances);
+            assertTrue(count > 0 && count <= EF_SEARCH);
+            for (int i = 1; i < count; i++) {
+                assertTrue(distances[i - 1] <= distances[i]);
+            }
+            assertEquals(TestVectors.distance(vectors, ids[0], query), distances[0],
+                    1e-4f);
+            if (ids[0] == TestVectors.nearest(vectors, query)) {
+                found++;
+            }
+        }
+        double recall = (double) found / QUERIES;
+        assertTrue("recall@1 " + recall, recall >= MIN_RECALL);
+    }
+
+    /**
+     * Checks that every vector of the graph finds itself.
+     */
+    @Test
+    public void findsIndexedVectors() {
+
+        float[] vectors = TestVectors.random(new Random(11), SIZE, DIMENSIONS);
+        HnswIndex index = HnswIndex.build(vectors, DIMENSIONS, M, EF_CONSTRUCTION);
+        assertEquals(SIZE, index.size());
+
+        int[] ids = new int[EF_SEARCH];
+        float[] distances = new float[EF_SEARCH];
+        float[] query = new float[DIMENSIONS];
+        int found = 0;
+        for (int i = 0; i < SIZE; i++) {
+            System.arraycopy(vectors, i * DIMENSIONS, query, 0, DIMENSIONS);
+            index.search(query, EF_SEARCH, ids, distances);
+            if (ids[0] == i) {
+                found++;
+            }
+        }
+        assertTrue("found " + found, found >= SIZE * 99 / 100);
+    }
+
+    /**
+     * Checks that an empty graph finds nothing.
+     */
+    @Test
+    public void searchesEmptyGraph() {
+        HnswIndex index = HnswIndex.build(new float[0], DIMENSIONS, M, EF_CONSTRUCTION);
+        assertEquals(0, index.search(new float[DIMENSIONS], EF_SEARCH, new int[EF_SEARCH],
+                new float[EF_SEARCH]));
+    }
+
+    /**
+     * Checks that a graph read back searches like the graph written.
+     *
+     * @throws IOException exception
+     */
+    @Test
+    public void readsWrittenGraph() throws IOException {
+
+        Random random = new Random(13);
+        float[] vectors = TestVectors.random(random, SIZE / 4, DIMENSIONS);
+        HnswIndex index = HnswIndex.build(vectors, DIMENSIONS, M, EF_CONSTRUCTION);
+        HnswIndex copy = HnswIndex.read(input(index), vectors, DIMENSIONS, M, EF_CONSTRUCTION);
+        assertNotNull(copy);
+
+        int[] ids = new int[EF_SEARCH];
+        float[] distances = new float[EF_SEARCH];
+        int[] copyIds = new int[EF_SEARCH];
+        float[] copyDistances = new float[EF_SEARCH];
+        float[] query = new float[DIMENSIONS];
+        for (int q = 0; q < 50; q++) {
+            for (int j = 0; j < DIMENSIONS; j++) {
+                query[j] = random.nextFloat();
+            }
+            int count = index.search(query, EF_SEARCH, ids, distances);
+            assertEquals(count, copy.search(query, EF_SEARCH, copyIds, copyDistances));
+            assertArrayEquals(ids, copyIds);
+            assertArrayEquals(distances, copyDistances, 0f);
+        }
+    }
+
+    /**
+     * Checks that a graph is not read over other vectors or parameters.
+     *
+     * @throws IOException exception
+     */
+    @Test
+    public void rejectsMismatchingGraph() throws IOException {
+
+        Random random = new Random(17);
+        float[] vectors = TestVectors.random(random, SIZE / 4, DIMENSIONS);
+        HnswIndex index = HnswIndex.build(vectors, DIMENSIONS, M, EF_CONSTRUCTION);
+
+        float[] changed = vectors.clone();
+        changed[3] += 1;
+        assertNull(HnswIndex.read(input(index), changed, DIMENSIONS, M, EF_CONSTRUCTION));
+        assertNull(HnswIndex.read(input(index), vectors, DIMENSIONS, M + 1, EF_CONSTRUCTION));
+        assertNull(HnswIndex.read(input(index), vectors, DIMENSIONS, M, EF_CONSTRUCTION + 1));
+    }
+
+    /**
+     * Checks that a stream which is not a graph is refused.
+     *
+     * @throws IOException expected
+     */
+    @Test(expected = IOException.class)
+    public void refusesOtherInput() throws IOException {
+        HnswIndex.read(new DataInputStream(new ByteArrayInputStream(new byte[16])),
+                new float[0], DIMENSIONS, M, EF_CONSTRUCTION);
+    }
+
+    /**
+     * Writes a graph and opens the result for reading.
+     *
+     * @param aIndex graph
+     * @return input
+     * @throws IOException exception
+     */
+    private static DataInputStream input(final HnswIndex aIndex) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        aIndex.write(out);
+        out.flush();
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
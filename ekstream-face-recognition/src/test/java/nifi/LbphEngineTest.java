@@ -0,0 +1,88 @@
+package nifi;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32SC1;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.IntBuffer;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_face;
+import org.bytedeco.javacpp.opencv_face.LBPHFaceRecognizer;
+import org.junit.Test;
+
+/**
+ * Tests of {@link LbphEngine}.
+ */
+public class LbphEngineTest {
+
+    /**
+     * Number of neighbours of the patterns; 12 neighbours in an 8 x 8 grid
+     * make histograms of 1 MB, so that a chunk holds 16 of them.
+     */
+    private static final int NEIGHBORS = 12;
+
+    /** Number of identities trained. */
+    private static final int TRAINED = 20;
+
+    /** Number of identities enrolled. */
+    private static final int ENROLLED = 21;
+
+    /**
+     * Checks that an engine with enrolled images searches like an engine
+     * built from the updated face recognizer, across chunks.
+     */
+    @Test
+    public void searchesEnrolledLikeRebuilt() {
+
+        LBPHFaceRecognizer recognizer = opencv_face.createLBPHFaceRecognizer(1, NEIGHBORS, 8,
+                8, Double.MAX_VALUE);
+        trainingSet(0, TRAINED).train(recognizer);
+        LbphEngine engine = new LbphEngine(recognizer);
+        assertEquals(TRAINED, engine.size());
+
+        TrainingSet added = trainingSet(TRAINED, ENROLLED);
+        added.update(recognizer);
+        LbphEngine enrolled = engine.withAdded(added);
+        LbphEngine rebuilt = new LbphEngine(recognizer);
+        assertEquals(TRAINED, engine.size());
+        assertEquals(TRAINED + ENROLLED, enrolled.size());
+
+        int k = 5;
+        TopK expected = new TopK(k);
+        TopK actual = new TopK(k);
+        for (int label = 0; label < TRAINED + ENROLLED; label++) {
+            Mat face = TestFaces.face(label, 1);
+            expected.clear();
+            actual.clear();
+            rebuilt.search(face, expected);
+            enrolled.search(face, actual);
+            assertEquals(label, actual.getLabel(0));
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < k; i++) {
+                assertEquals(expected.getLabel(i), actual.getLabel(i));
+                assertEquals(expected.getDistance(i), actual.getDistance(i), 1e-4);
+            }
+        }
+        recognizer.deallocate();
+    }
+
+    /**
+     * Creates a training set of one image per identity.
+     *
+     * @param aFirst first identity
+     * @param aCount number of identities
+     * @return training set
+     */
+    private static TrainingSet trainingSet(final int aFirst, final int aCount) {
+
+        MatVector images = new MatVector(aCount);
+        Mat labels = new Mat(aCount, 1, CV_32SC1);
+        IntBuffer buffer = labels.createBuffer();
+        for (int i = 0; i < aCount; i++) {
+            images.put(i, TestFaces.face(aFirst + i, 1));
+            buffer.put(i, aFirst + i);
+        }
+        return new TrainingSet(images, labels);
+    }
+}
@@ -0,0 +1,119 @@
+package nifi;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32SC1;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_face;
+import org.bytedeco.javacpp.opencv_face.LBPHFaceRecognizer;
+import org.junit.Test;
+
+/**
+ * Tests of {@link LocalBinaryPatterns}.
+ */
+public class LocalBinaryPatternsTest {
+
+    /** Number of identities trained. */
+    private static final int IDENTITIES = 4;
+
+    /**
+     * Checks that every pixel of a constant image has all neighbours set.
+     */
+    @Test
+    public void encodesConstantImage() {
+
+        LocalBinaryPatterns patterns = new LocalBinaryPatterns(1, 8, 2, 2);
+        byte[] pixels = new byte[10 * 10];
+        Arrays.fill(pixels, (byte) 200);
+        float[] histogram = new float[patterns.histogramLength()];
+        patterns.histogram(pixels, 10, 10, histogram);
+
+        float[] expected = new float[patterns.histogramLength()];
+        for (int cell = 0; cell < 4; cell++) {
+            expected[cell * patterns.patterns() + patterns.patterns() - 1] = 1;
+        }
+        assertArrayEquals(expected, histogram, 0f);
+    }
+
+    /**
+     * Checks that every cell histogram is normalised and that reusing the
+     * working array gives the same histogram.
+     */
+    @Test
+    public void normalisesCells() {
+
+        LocalBinaryPatterns patterns = new LocalBinaryPatterns(2, 8, 4, 3);
+        byte[] pixels = new byte[40 * 50];
+        new Random(3).nextBytes(pixels);
+        float[] histogram = new float[patterns.histogramLength()];
+        int[] codes = patterns.histogram(pixels, 40, 50, histogram, new int[0]);
+
+        for (int cell = 0; cell < 12; cell++) {
+            float sum = 0;
+            for (int i = 0; i < patterns.patterns(); i++) {
+                sum += histogram[cell * patterns.patterns() + i];
+            }
+            assertEquals(1, sum, 1e-4);
+        }
+
+        float[] again = new float[patterns.histogramLength()];
+        Arrays.fill(again, 7);
+        assertSame(codes, patterns.histogram(pixels, 40, 50, again, codes));
+        assertArrayEquals(histogram, again, 0f);
+    }
+
+    /**
+     * Checks that an image too small for the grid gives an empty histogram.
+     */
+    @Test
+    public void ignoresTooSmallImage() {
+
+        LocalBinaryPatterns patterns = new LocalBinaryPatterns(1, 8, 8, 8);
+        float[] histogram = new float[patterns.histogramLength()];
+        Arrays.fill(histogram, 1);
+        patterns.histogram(new byte[6 * 6], 6, 6, histogram);
+        assertArrayEquals(new float[patterns.histogramLength()], histogram, 0f);
+    }
+
+    /**
+     * Checks that the histograms are the ones of the OpenCV LBPH face
+     * recognizer trained on the same images.
+     */
+    @Test
+    public void matchesOpenCvHistograms() {
+
+        LBPHFaceRecognizer recognizer = opencv_face.createLBPHFaceRecognizer(2, 8, 4, 4,
+                Double.MAX_VALUE);
+        MatVector images = new MatVector(IDENTITIES);
+        Mat labels = new Mat(IDENTITIES, 1, CV_32SC1);
+        IntBuffer labelBuffer = labels.createBuffer();
+        for (int i = 0; i < IDENTITIES; i++) {
+            images.put(i, TestFaces.face(i, 1));
+            labelBuffer.put(i, i);
+        }
+        recognizer.train(images, labels);
+
+        LocalBinaryPatterns patterns = new LocalBinaryPatterns(recognizer.getRadius(),
+                recognizer.getNeighbors(), recognizer.getGridX(), recognizer.getGridY());
+        MatVector trained = recognizer.getHistograms();
+        assertEquals(IDENTITIES, trained.size());
+        float[] histogram = new float[patterns.histogramLength()];
+        float[] expected = new float[patterns.histogramLength()];
+        for (int i = 0; i < IDENTITIES; i++) {
+            patterns.histogram(TestFaces.pixels(i, 1), TestFaces.SIZE, TestFaces.SIZE,
+                    histogram);
+            FloatBuffer buffer = trained.get(i).createBuffer();
+            buffer.get(expected);
+            assertArrayEquals(expected, histogram, 1e-6f);
+        }
+        recognizer.deallocate();
+    }
+}
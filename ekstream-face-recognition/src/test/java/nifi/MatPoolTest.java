@@ -0,0 +1,128 @@
+package nifi;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+import static org.bytedeco.javacpp.opencv_core.CV_8UC3;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.junit.Test;
+
+/**
+ * Tests of {@link MatPool}.
+ */
+public class MatPoolTest {
+
+    /**
+     * Checks that an image handed back is reused for the same geometry only.
+     */
+    @Test
+    public void reusesImagesOfSameGeometry() {
+
+        MatPool pool = new MatPool(2);
+        Mat image = pool.acquire(4, 6, CV_8UC1);
+        assertEquals(4, image.rows());
+        assertEquals(6, image.cols());
+        assertEquals(CV_8UC1, image.type());
+        pool.release(image);
+
+        Mat other = pool.acquire(4, 6, CV_8UC3);
+        assertNotSame(image, other);
+        assertNotSame(image, pool.acquire(6, 4, CV_8UC1));
+        assertSame(image, pool.acquire(4, 6, CV_8UC1));
+        assertEquals(1, pool.takeHits());
+        assertEquals(3, pool.takeMisses());
+        assertEquals(0, pool.takeHits());
+        pool.clear();
+    }
+
+    /**
+     * Checks that images beyond the capacity are freed.
+     */
+    @Test
+    public void freesImagesBeyondCapacity() {
+
+        MatPool pool = new MatPool(2);
+        Mat[] images = new Mat[3];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = pool.acquire(4, 4, CV_8UC1);
+        }
+        for (Mat image : images) {
+            pool.release(image);
+        }
+        assertFalse(images[0].isNull());
+        assertFalse(images[1].isNull());
+        assertTrue(images[2].isNull());
+
+        pool.clear();
+        assertTrue(images[0].isNull());
+        assertTrue(images[1].isNull());
+    }
+
+    /**
+     * Checks that images of too many geometries and empty images are freed.
+     */
+    @Test
+    public void freesUnpooledImages() {
+
+        MatPool pool = new MatPool(1);
+        Mat[] images = new Mat[20];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = pool.acquire(i + 1, 1, CV_8UC1);
+            pool.release(images[i]);
+        }
+        assertFalse(images[15].isNull());
+        assertTrue(images[16].isNull());
+
+        Mat empty = new Mat();
+        pool.release(empty);
+        assertTrue(empty.isNull());
+        pool.release(null);
+        pool.clear();
+    }
+
+    /**
+     * Checks that concurrent tasks never share an image.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void handsImagesToOneTaskAtATime() throws InterruptedException {
+
+        final MatPool pool = new MatPool(4);
+        final int rounds = 2000;
+        final int threads = 8;
+        final boolean[] shared = new boolean[1];
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final byte mark = (byte) t;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < rounds; i++) {
+                        Mat image = pool.acquire(8, 8, CV_8UC1);
+                        image.data().put(0, mark);
+                        Thread.yield();
+                        if (image.data().get(0) != mark) {
+                            shared[0] = true;
+                        }
+                        pool.release(image);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertFalse(shared[0]);
+        assertEquals(threads * rounds, pool.takeHits() + pool.takeMisses());
+        pool.clear();
+    }
+}
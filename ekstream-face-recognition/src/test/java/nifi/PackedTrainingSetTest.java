@@ -0,0 +1,157 @@
+package nifi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.bytedeco.javacpp.opencv_imgproc;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link PackedTrainingSet}.
+ */
+public class PackedTrainingSetTest {
+
+    /** Number of identities of the training set. */
+    private static final int IDENTITIES = 3;
+
+    /** Number of images per identity. */
+    private static final int IMAGES_PER_IDENTITY = 2;
+
+    /** Training set folder. */
+    private File dir;
+
+    /** Training images. */
+    private File[] images;
+
+    /** Gallery file. */
+    private File gallery;
+
+    /**
+     * Generates the training set.
+     *
+     * @throws IOException exception
+     */
+    @Before
+    public void setUp() throws IOException {
+
+        dir = TestFaces.trainingSet(IDENTITIES, IMAGES_PER_IDENTITY);
+        images = dir.listFiles();
+        Arrays.sort(images);
+        gallery = new File(dir, "faces" + PackedTrainingSet.EXTENSION);
+    }
+
+    /**
+     * Deletes the training set.
+     *
+     * @throws IOException exception
+     */
+    @After
+    public void tearDown() throws IOException {
+        TestFaces.delete(dir);
+    }
+
+    /**
+     * Checks that the packed images and labels are the training ones.
+     *
+     * @throws IOException exception
+     */
+    @Test
+    public void loadsPackedImages() throws IOException {
+
+        assertFalse(PackedTrainingSet.isPacked(gallery));
+        PackedTrainingSet.pack(images, gallery, 0, 0, 2);
+        assertTrue(PackedTrainingSet.isPacked(gallery));
+        assertFalse(new File(dir, ".tmp-" + gallery.getName()).exists());
+        Size size = PackedTrainingSet.faceSize(gallery);
+        assertEquals(TestFaces.SIZE, size.width());
+        assertEquals(TestFaces.SIZE, size.height());
+
+        TrainingSet loaded = PackedTrainingSet.load(gallery);
+        assertEquals(images.length, loaded.size());
+        IntBuffer labels = loaded.getLabels().createBuffer();
+        byte[] pixels = new byte[TestFaces.SIZE * TestFaces.SIZE];
+        for (int i = 0; i < images.length; i++) {
+            int label = TrainingSet.parseLabel(images[i]);
+            assertEquals(label, labels.get(i));
+
+            Mat image = loaded.getImages().get(i);
+            assertEquals(TestFaces.SIZE, image.rows());
+            assertEquals(TestFaces.SIZE, image.cols());
+            ByteBuffer buffer = image.createBuffer();
+            buffer.get(pixels);
+            assertArrayEquals(TestFaces.pixels(label, i % IMAGES_PER_IDENTITY), pixels);
+        }
+    }
+
+    /**
+     * Checks that images of another size are resized when packed.
+     *
+     * @throws IOException exception
+     */
+    @Test
+    public void resizesImages() throws IOException {
+
+        int side = TestFaces.SIZE / 2;
+        PackedTrainingSet.pack(images, gallery, side, side, 1);
+        TrainingSet loaded = PackedTrainingSet.load(gallery);
+
+        Mat expected = new Mat();
+        opencv_imgproc.resize(TestFaces.face(0, 0), expected, new Size(side, side), 0, 0,
+                opencv_imgproc.INTER_AREA);
+        byte[] expectedPixels = new byte[side * side];
+        expected.<ByteBuffer>createBuffer().get(expectedPixels);
+        byte[] pixels = new byte[side * side];
+        loaded.getImages().get(0).<ByteBuffer>createBuffer().get(pixels);
+        assertArrayEquals(expectedPixels, pixels);
+    }
+
+    /**
+     * Checks that a truncated gallery is refused.
+     *
+     * @throws IOException expected
+     */
+    @Test(expected = IOException.class)
+    public void refusesTruncatedGallery() throws IOException {
+
+        PackedTrainingSet.pack(images, gallery, 0, 0, 1);
+        try (RandomAccessFile file = new RandomAccessFile(gallery, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+        PackedTrainingSet.load(gallery);
+    }
+
+    /**
+     * Checks that a file which is not a gallery is refused.
+     *
+     * @throws IOException expected
+     */
+    @Test(expected = IOException.class)
+    public void refusesOtherFile() throws IOException {
+        Files.write(gallery.toPath(), new byte[64]);
+        PackedTrainingSet.load(gallery);
+    }
+
+    /**
+     * Checks that an empty training set is not packed.
+     *
+     * @throws IOException expected
+     */
+    @Test(expected = IOException.class)
+    public void refusesEmptyTrainingSet() throws IOException {
+        PackedTrainingSet.pack(new File[0], gallery, 0, 0, 1);
+    }
+}
@@ -0,0 +1,123 @@
+package nifi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link ProductQuantizer}.
+ */
+public class ProductQuantizerTest {
+
+    /** Number of dimensions of a vector. */
+    private static final int DIMENSIONS = 16;
+
+    /** Number of subspaces. */
+    private static final int SUBSPACES = 4;
+
+    /**
+     * Checks that a set no larger than the codebooks is encoded without loss.
+     */
+    @Test
+    public void encodesSmallSetExactly() {
+
+        Random random = new Random(3);
+        float[] vectors = TestVectors.random(random, 100, DIMENSIONS);
+        ProductQuantizer quantizer = ProductQuantizer.train(vectors, DIMENSIONS, SUBSPACES);
+        byte[] codes = quantizer.encode(vectors);
+        assertEquals(100 * SUBSPACES, codes.length);
+
+        float[] table = new float[quantizer.tableLength()];
+        float[] query = new float[DIMENSIONS];
+        for (int n = 0; n < 100; n++) {
+            System.arraycopy(vectors, n * DIMENSIONS, query, 0, DIMENSIONS);
+            quantizer.table(query, table);
+            assertEquals(0, quantizer.distance(table, codes, n), 1e-6f);
+            for (int m = 0; m < 100; m++) {
+                assertEquals(TestVectors.distance(vectors, m, query),
+                        quantizer.distance(table, codes, m), 1e-4f);
+            }
+        }
+    }
+
+    /**
+     * Checks that the approximate distances mostly keep the nearest vector
+     * among the closest candidates.
+     */
+    @Test
+    public void keepsNearestAmongCandidates() {
+
+        Random random = new Random(5);
+        int size = 5000;
+        float[] vectors = TestVectors.random(random, size, DIMENSIONS);
+        ProductQuantizer quantizer = ProductQuantizer.train(vectors, DIMENSIONS, 8);
+        byte[] codes = quantizer.encode(vectors);
+
+        float[] table = new float[quantizer.tableLength()];
+        float[] query = new float[DIMENSIONS];
+        int found = 0;
+        int queries = 100;
+        for (int q = 0; q < queries; q++) {
+            for (int j = 0; j < DIMENSIONS; j++) {
+                query[j] = random.nextFloat();
+            }
+            quantizer.table(query, table);
+            int nearest = TestVectors.nearest(vectors, query);
+            // the nearest vector is among the 50 closest codes
+            float bound = quantizer.distance(table, codes, nearest);
+            int closer = 0;
+            for (int n = 0; n < size; n++) {
+                if (quantizer.distance(table, codes, n) < bound) {
+                    closer++;
+                }
+            }
+            if (closer < 50) {
+                found++;
+            }
+        }
+        assertTrue("found " + found, found >= queries * 9 / 10);
+    }
+
+    /**
+     * Checks that the same vectors are always encoded the same way, also
+     * with subspaces of different widths.
+     */
+    @Test
+    public void encodesReproducibly() {
+
+        float[] vectors = TestVectors.random(new Random(7), 1000, DIMENSIONS);
+        ProductQuantizer first = ProductQuantizer.train(vectors, DIMENSIONS, 5);
+        ProductQuantizer second = ProductQuantizer.train(vectors, DIMENSIONS, 5);
+        assertEquals(5, first.getSubspaces());
+        assertEquals(5 * ProductQuantizer.CENTROIDS, first.tableLength());
+        assertArrayEquals(first.encode(vectors), second.encode(vectors));
+    }
+
+    /**
+     * Checks that more subspaces than dimensions are refused.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesTooManySubspaces() {
+        ProductQuantizer.train(new float[DIMENSIONS], DIMENSIONS, DIMENSIONS + 1);
+    }
+
+    /**
+     * Checks that no subspace is refused.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesNoSubspace() {
+        ProductQuantizer.train(new float[DIMENSIONS], DIMENSIONS, 0);
+    }
+
+    /**
+     * Checks that an empty training set is refused.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesNoVector() {
+        ProductQuantizer.train(new float[0], DIMENSIONS, SUBSPACES);
+    }
+}
@@ -0,0 +1,193 @@
+package nifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link RecognitionCache}.
+ */
+public class RecognitionCacheTest {
+
+    /** Face model of the predictions. */
+    private final FaceModel model = new FaceModel("test", null);
+
+    /** Another face model. */
+    private final FaceModel otherModel = new FaceModel("test", null);
+
+    /**
+     * Checks that identical frames are matched for the same face model only.
+     */
+    @Test
+    public void matchesIdenticalFrames() {
+
+        RecognitionCache cache = new RecognitionCache(10, 60000, -1);
+        assertFalse(cache.isPerceptual());
+        List<Prediction> predictions = predictions(1);
+        cache.put(42, model, predictions);
+
+        assertSame(predictions, cache.get(42, model));
+        assertNull(cache.get(43, model));
+        assertNull(cache.get(42, otherModel));
+        // the entry of another model has been dropped
+        assertNull(cache.get(42, model));
+        assertEquals(1, cache.takeHits());
+        assertEquals(3, cache.takeMisses());
+        assertEquals(0, cache.takeHits());
+    }
+
+    /**
+     * Checks that the closest face within the distance is matched.
+     */
+    @Test
+    public void matchesClosestSimilarFace() {
+
+        RecognitionCache cache = new RecognitionCache(10, 60000, 4);
+        assertTrue(cache.isPerceptual());
+        List<Prediction> far = predictions(1);
+        List<Prediction> near = predictions(2);
+        cache.putSimilar(0xF0L, model, far);
+        cache.putSimilar(0x10L, model, near);
+
+        assertSame(near, cache.getSimilar(0x11L, model));
+        assertSame(far, cache.getSimilar(0xF1L, model));
+        assertNull(cache.getSimilar(0xFFFFL, model));
+        assertNull(cache.getSimilar(0x11L, otherModel));
+    }
+
+    /**
+     * Checks that an expired entry does not hide a valid one further away.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void skipsExpiredEntries() throws InterruptedException {
+
+        RecognitionCache cache = new RecognitionCache(10, 100, 8);
+        cache.putSimilar(0x1L, model, predictions(1));
+        Thread.sleep(200);
+        List<Prediction> valid = predictions(2);
+        cache.putSimilar(0x7L, model, valid);
+
+        assertSame(valid, cache.getSimilar(0x1L, model));
+        assertNull(cache.get(0x1L, model));
+    }
+
+    /**
+     * Checks that an entry of another face model does not hide a valid one
+     * further away.
+     */
+    @Test
+    public void skipsOtherModels() {
+
+        RecognitionCache cache = new RecognitionCache(10, 60000, 8);
+        cache.putSimilar(0x1L, otherModel, predictions(1));
+        List<Prediction> valid = predictions(2);
+        cache.putSimilar(0x7L, model, valid);
+
+        assertSame(valid, cache.getSimilar(0x1L, model));
+    }
+
+    /**
+     * Checks that the least recently used entries are evicted first.
+     */
+    @Test
+    public void evictsLeastRecentlyUsed() {
+
+        RecognitionCache cache = new RecognitionCache(2, 60000, 2);
+        List<Prediction> first = predictions(1);
+        List<Prediction> second = predictions(2);
+        List<Prediction> third = predictions(3);
+        cache.putSimilar(0xFL, model, first);
+        cache.putSimilar(0xF00L, model, second);
+        assertSame(first, cache.getSimilar(0xFL, model));
+        cache.putSimilar(0xF0000L, model, third);
+
+        assertSame(first, cache.getSimilar(0xFL, model));
+        assertNull(cache.getSimilar(0xF00L, model));
+        assertSame(third, cache.getSimilar(0xF0000L, model));
+    }
+
+    /**
+     * Checks that the segment lookup finds the same distance as a comparison
+     * with every entry, for several maximum distances.
+     */
+    @Test
+    public void findsClosestLikeFullScan() {
+
+        Random random = new Random(3);
+        for (int maxDistance : new int[] {0, 1, 5, 12, 63, 64}) {
+            RecognitionCache cache = new RecognitionCache(500, 60000, maxDistance);
+            List<Long> hashes = new ArrayList<>();
+            long base = random.nextLong();
+            for (int i = 0; i < 500; i++) {
+                long hash = flip(random, base, random.nextInt(24));
+                hashes.add(hash);
+                cache.putSimilar(hash, model, predictions(i));
+            }
+
+            for (int q = 0; q < 500; q++) {
+                long query = flip(random, base, random.nextInt(24));
+                if (64 == maxDistance && 0 == q) {
+                    query = ~hashes.get(0);
+                }
+                int best = Integer.MAX_VALUE;
+                for (long hash : hashes) {
+                    best = Math.min(best, Long.bitCount(hash ^ query));
+                }
+                List<Prediction> found = cache.getSimilar(query, model);
+                if (best > maxDistance) {
+                    assertNull(found);
+                } else {
+                    long hash = hashes.get(found.get(0).getLabel());
+                    assertEquals("max distance " + maxDistance, best,
+                            Long.bitCount(hash ^ query));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a size above the maximum is refused.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesHugeCache() {
+        new RecognitionCache(RecognitionCache.MAX_SIZE + 1, 60000, 4);
+    }
+
+    /**
+     * Flips random bits of a hash.
+     *
+     * @param aRandom random generator
+     * @param aHash hash
+     * @param aCount number of bits flipped, some possibly twice
+     * @return hash
+     */
+    private static long flip(final Random aRandom, final long aHash, final int aCount) {
+
+        long result = aHash;
+        for (int i = 0; i < aCount; i++) {
+            result ^= 1L << aRandom.nextInt(Long.SIZE);
+        }
+        return result;
+    }
+
+    /**
+     * Creates predictions.
+     *
+     * @param aLabel label of the prediction
+     * @return predictions
+     */
+    private static List<Prediction> predictions(final int aLabel) {
+        return Collections.singletonList(new Prediction(aLabel, 1));
+    }
+}
@@ -0,0 +1,152 @@
+package nifi;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * Generator of synthetic grayscale faces for the tests: every identity is a
+ * smooth texture of its own, and every image of an identity adds a little
+ * noise to it.
+ */
+final class TestFaces {
+
+    /** Side of the generated square images, in pixels. */
+    static final int SIZE = 32;
+
+    /**
+     * Constructor.
+     */
+    private TestFaces() {
+    }
+
+    /**
+     * Generates the pixels of an image of a face.
+     *
+     * @param aLabel identity
+     * @param aVariant variant of the image, 0 without noise
+     * @return pixels, row by row
+     */
+    static byte[] pixels(final int aLabel, final int aVariant) {
+
+        Random identity = new Random(31 + aLabel);
+        double[] waves = new double[9];
+        for (int i = 0; i < waves.length; i++) {
+            waves[i] = identity.nextDouble();
+        }
+        Random noise = new Random(131 + aLabel * 1009L + aVariant);
+
+        byte[] result = new byte[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                double value = 128;
+                for (int i = 0; i < 3; i++) {
+                    value += 40 * waves[3 * i] * Math.sin(
+                            (1 + 4 * waves[3 * i + 1]) * x / SIZE * 2 * Math.PI
+                            + (1 + 4 * waves[3 * i + 2]) * y / SIZE * 2 * Math.PI);
+                }
+                if (aVariant > 0) {
+                    value += noise.nextGaussian() * 3;
+                }
+                result[y * SIZE + x] = (byte) Math.max(0, Math.min(255, (int) value));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Generates an image of a face.
+     *
+     * @param aLabel identity
+     * @param aVariant variant of the image, 0 without noise
+     * @return grayscale image of {@link #SIZE} x {@link #SIZE} pixels
+     */
+    static Mat face(final int aLabel, final int aVariant) {
+
+        Mat result = new Mat(SIZE, SIZE, CV_8UC1);
+        ByteBuffer buffer = result.createBuffer();
+        buffer.put(pixels(aLabel, aVariant));
+        return result;
+    }
+
+    /**
+     * Encodes an image of a face as PNG.
+     *
+     * @param aLabel identity
+     * @param aVariant variant of the image, 0 without noise
+     * @return encoded image
+     * @throws IOException exception
+     */
+    static byte[] png(final int aLabel, final int aVariant) throws IOException {
+
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_GRAY);
+        image.getRaster().setDataElements(0, 0, SIZE, SIZE, pixels(aLabel, aVariant));
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", result);
+        return result.toByteArray();
+    }
+
+    /**
+     * Generates a training set folder with images named
+     * "&lt;label&gt;-&lt;variant&gt;.png", variants starting at 0.
+     *
+     * @param aIdentities number of identities
+     * @param aImagesPerIdentity number of images per identity
+     * @return training set folder
+     * @throws IOException exception
+     */
+    static File trainingSet(final int aIdentities, final int aImagesPerIdentity)
+            throws IOException {
+
+        File dir = Files.createTempDirectory("faces-").toFile();
+        for (int label = 0; label < aIdentities; label++) {
+            for (int n = 0; n < aImagesPerIdentity; n++) {
+                Files.write(new File(dir, label + "-" + n + ".png").toPath(), png(label, n));
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * Deletes a generated folder.
+     *
+     * @param aDir folder, or null
+     * @throws IOException exception
+     */
+    static void delete(final File aDir) throws IOException {
+
+        if (null == aDir || !aDir.exists()) {
+            return;
+        }
+        Files.walkFileTree(aDir.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(final Path aFile, final BasicFileAttributes aAttrs)
+                    throws IOException {
+                Files.delete(aFile);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path aPath, final IOException aExc)
+                    throws IOException {
+                Files.delete(aPath);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,74 @@
+package nifi;
+
+import java.util.Random;
+
+/**
+ * Generator of random vectors for the tests of the nearest neighbour
+ * searches, and the exact distances they are checked against. Vectors are
+ * stored one after the other in a single array.
+ */
+final class TestVectors {
+
+    /**
+     * Constructor.
+     */
+    private TestVectors() {
+    }
+
+    /**
+     * Generates uniformly distributed vectors.
+     *
+     * @param aRandom random generator
+     * @param aCount number of vectors
+     * @param aDimensions number of dimensions of a vector
+     * @return vectors, one after the other
+     */
+    static float[] random(final Random aRandom, final int aCount, final int aDimensions) {
+
+        float[] result = new float[aCount * aDimensions];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = aRandom.nextFloat();
+        }
+        return result;
+    }
+
+    /**
+     * Finds the nearest vector of a query by comparing it with every vector.
+     *
+     * @param aVectors vectors, of the dimensions of the query
+     * @param aQuery query
+     * @return index of the nearest vector, the first one of equal ones
+     */
+    static int nearest(final float[] aVectors, final float[] aQuery) {
+
+        int result = -1;
+        float best = Float.MAX_VALUE;
+        for (int i = 0; i < aVectors.length / aQuery.length; i++) {
+            float distance = distance(aVectors, i, aQuery);
+            if (distance < best) {
+                best = distance;
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the squared distance between a query and a vector.
+     *
+     * @param aVectors vectors, of the dimensions of the query
+     * @param aVector index of the vector
+     * @param aQuery query
+     * @return squared distance
+     */
+    static float distance(final float[] aVectors, final int aVector, final float[] aQuery) {
+
+        float result = 0;
+        int offset = aVector * aQuery.length;
+        for (int j = 0; j < aQuery.length; j++) {
+            float diff = aVectors[offset + j] - aQuery[j];
+            result += diff * diff;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,119 @@
+package nifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link TopK}.
+ */
+public class TopKTest {
+
+    /**
+     * Checks that the closest labels are collected in order.
+     */
+    @Test
+    public void collectsClosestLabels() {
+
+        TopK topK = new TopK(3);
+        assertEquals(Double.MAX_VALUE, topK.bound(), 0);
+        topK.offer(1, 5);
+        topK.offer(2, 3);
+        topK.offer(3, 9);
+        assertEquals(9, topK.bound(), 0);
+        topK.offer(4, 1);
+        topK.offer(5, 10);
+
+        assertEquals(3, topK.size());
+        assertEquals(3, topK.capacity());
+        assertEquals(4, topK.getLabel(0));
+        assertEquals(2, topK.getLabel(1));
+        assertEquals(1, topK.getLabel(2));
+        assertEquals(5, topK.bound(), 0);
+    }
+
+    /**
+     * Checks that a label is collected once, with its smallest distance.
+     */
+    @Test
+    public void keepsSmallestDistanceOfLabel() {
+
+        TopK topK = new TopK(3);
+        topK.offer(1, 5);
+        topK.offer(2, 4);
+        topK.offer(1, 7);
+        assertEquals(2, topK.size());
+        assertEquals(5, topK.getDistance(1), 0);
+
+        topK.offer(1, 2);
+        assertEquals(2, topK.size());
+        assertEquals(1, topK.getLabel(0));
+        assertEquals(2, topK.getDistance(0), 0);
+        assertEquals(2, topK.getLabel(1));
+    }
+
+    /**
+     * Checks that the predictions are the closest distinct labels of random
+     * candidates, the closest first.
+     */
+    @Test
+    public void matchesSortedCandidates() {
+
+        Random random = new Random(5);
+        TopK topK = new TopK(5);
+        for (int round = 0; round < 100; round++) {
+            topK.clear();
+            Map<Integer, Double> best = new HashMap<>();
+            for (int i = 0; i < 200; i++) {
+                int label = random.nextInt(20);
+                double distance = random.nextDouble();
+                topK.offer(label, distance);
+                Double known = best.get(label);
+                if (null == known || distance < known) {
+                    best.put(label, distance);
+                }
+            }
+
+            List<Map.Entry<Integer, Double>> expected = new ArrayList<>(best.entrySet());
+            Collections.sort(expected, new Comparator<Map.Entry<Integer, Double>>() {
+                @Override
+                public int compare(final Map.Entry<Integer, Double> aFirst,
+                        final Map.Entry<Integer, Double> aSecond) {
+                    return Double.compare(aFirst.getValue(), aSecond.getValue());
+                }
+            });
+            List<Prediction> predictions = topK.toPredictions();
+            assertEquals(5, predictions.size());
+            for (int i = 0; i < predictions.size(); i++) {
+                assertEquals(expected.get(i).getKey().intValue(), predictions.get(i).getLabel());
+                assertEquals(expected.get(i).getValue(), predictions.get(i).getConfidence(), 0);
+            }
+        }
+    }
+
+    /**
+     * Checks that a cleared instance collects from scratch.
+     */
+    @Test
+    public void clears() {
+
+        TopK topK = new TopK(2);
+        topK.offer(1, 1);
+        topK.offer(2, 2);
+        topK.clear();
+        assertEquals(0, topK.size());
+        assertTrue(topK.toPredictions().isEmpty());
+        topK.offer(3, 3);
+        assertEquals(3, topK.getLabel(0));
+        assertEquals(Double.MAX_VALUE, topK.bound(), 0);
+    }
+}
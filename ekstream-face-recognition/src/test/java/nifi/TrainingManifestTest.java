@@ -0,0 +1,120 @@
+package nifi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link TrainingManifest}.
+ */
+public class TrainingManifestTest {
+
+    /** Face recognition algorithm of the manifests. */
+    private static final String ALGORITHM = "LBPH";
+
+    /** Folder of the training images and the manifest. */
+    private File dir;
+
+    /**
+     * Creates the folder.
+     *
+     * @throws IOException exception
+     */
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("manifest-").toFile();
+    }
+
+    /**
+     * Deletes the folder.
+     *
+     * @throws IOException exception
+     */
+    @After
+    public void tearDown() throws IOException {
+        TestFaces.delete(dir);
+    }
+
+    /**
+     * Checks that a written manifest is read back for the same algorithm
+     * only.
+     *
+     * @throws IOException exception
+     */
+    @Test
+    public void readsWrittenManifest() throws IOException {
+
+        File[] images = {image("0-a.png", 10), image("1-b.png", 20)};
+        File file = new File(dir, "model.manifest");
+        TrainingManifest manifest = TrainingManifest.of(images);
+        manifest.write(file, ALGORITHM);
+
+        TrainingManifest read = TrainingManifest.read(file, ALGORITHM);
+        assertEquals(2, read.size());
+        assertTrue(read.isContainedIn(manifest));
+        assertTrue(manifest.isContainedIn(read));
+        assertNull(TrainingManifest.read(file, "Eigen"));
+        assertNull(TrainingManifest.read(new File(dir, "missing"), ALGORITHM));
+    }
+
+    /**
+     * Checks that added images are found and keep the old manifest
+     * contained in the new one.
+     *
+     * @throws IOException exception
+     */
+    @Test
+    public void findsAddedImages() throws IOException {
+
+        File first = image("0-a.png", 10);
+        File second = image("1-b.png", 20);
+        TrainingManifest manifest = TrainingManifest.of(new File[] {first});
+
+        File[] images = {first, second};
+        assertTrue(manifest.isContainedIn(TrainingManifest.of(images)));
+        assertArrayEquals(new File[] {second}, manifest.added(images));
+        assertEquals(0, TrainingManifest.of(images).added(images).length);
+    }
+
+    /**
+     * Checks that a changed or removed image is detected.
+     *
+     * @throws IOException exception
+     */
+    @Test
+    public void detectsChangedImages() throws IOException {
+
+        File first = image("0-a.png", 10);
+        File second = image("1-b.png", 20);
+        TrainingManifest manifest = TrainingManifest.of(new File[] {first, second});
+
+        assertFalse(manifest.isContainedIn(TrainingManifest.of(new File[] {first})));
+        Files.write(second.toPath(), new byte[21]);
+        assertFalse(manifest.isContainedIn(TrainingManifest.of(new File[] {first, second})));
+    }
+
+    /**
+     * Creates an image file.
+     *
+     * @param aName file name
+     * @param aLength file length
+     * @return file
+     * @throws IOException exception
+     */
+    private File image(final String aName, final int aLength) throws IOException {
+
+        File result = new File(dir, aName);
+        Files.write(result.toPath(), new byte[aLength]);
+        return result;
+    }
+}